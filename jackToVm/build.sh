@@ -0,0 +1,19 @@
+#!/bin/sh
+# Builds the compiler into build/ for quick starts (see "Startup" in README.md): its classes, a jar of them,
+# a class-data-sharing archive recorded from a training run, and a native image if GraalVM's native-image is on the PATH.
+# The jackc launcher runs the best of them.
+set -e
+cd "$(dirname "$0")"
+rm -rf build
+# strings are concatenated with StringBuilders rather than code generated the first time each concatenation runs,
+# which a class-data-sharing archive cannot hold
+javac -XDstringConcat=inline -d build/classes src/*.java ../vmToAssembly/src/*.java
+# class-data sharing only archives classes loaded from jars
+jar --create --file build/jackc.jar --main-class JackAnalyzer -C build/classes .
+# every class the training run loads is archived when it exits; the archive is only used with the same
+# class path, so the jar is named by its absolute path, as jackc does
+java -XX:ArchiveClassesAtExit=build/jackc.jsa -cp "$PWD/build/jackc.jar" StartupTraining build/training
+rm -rf build/training
+if command -v native-image >/dev/null 2>&1; then
+    native-image --no-fallback -cp build/jackc.jar -o build/jackc-native JackAnalyzer
+fi
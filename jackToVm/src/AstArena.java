@@ -0,0 +1,150 @@
+import java.util.Arrays;
+
+/**
+ * A compact abstract syntax tree for a single .jack file.
+ * Nodes are not objects: each node is an int id indexing into parallel primitive arrays
+ * (kind, first child, next sibling, token index), so building and walking the tree
+ * creates no garbage per node and analysis passes can revisit the tree cheaply.
+ * Node text (names, constants, operators) is not copied into the tree; it is looked up
+ * in the tokenizer's token list through the node's token index.
+ */
+public class AstArena {
+    public final static int NONE = -1;
+
+    // declarations
+    public final static int FILE = 0;              // children: CLASS
+    public final static int CLASS = 1;             // token: class name
+    public final static int CLASS_VAR_DEC = 2;     // token: 'static'/'field' keyword (type is the next token); children: NAME
+    public final static int SUBROUTINE_DEC = 3;    // token: 'constructor'/'function'/'method' keyword; children: PARAMETER_LIST, STATEMENTS
+    public final static int PARAMETER_LIST = 4;    // children: PARAMETER
+    public final static int PARAMETER = 5;         // token: parameter name (type is the previous token)
+    public final static int VAR_DEC = 6;           // token: 'var' keyword (type is the next token); children: NAME
+    public final static int NAME = 7;              // token: declared identifier
+
+    // statements
+    public final static int STATEMENTS = 8;        // children: statements
+    public final static int LET = 9;               // children: target (VAR_REF or INDEX), value expression
+    public final static int IF = 10;               // children: condition, STATEMENTS, STATEMENTS (else, optional)
+    public final static int WHILE = 11;            // children: condition, STATEMENTS
+    public final static int DO = 12;               // children: CALL
+    public final static int RETURN = 13;           // children: expression (optional)
+
+    // expressions
+    public final static int BINARY_OP = 14;        // token: operator; children: left, right
+    public final static int UNARY_OP = 15;         // token: operator; children: operand
+    public final static int INT_CONST = 16;        // token: the constant
+    public final static int STRING_CONST = 17;     // token: the constant, including quotes
+    public final static int KEYWORD_CONST = 18;    // token: true, false, null or this
+    public final static int VAR_REF = 19;          // token: variable name
+    public final static int INDEX = 20;            // token: [ symbol; children: array, index expression
+    public final static int CALL = 21;             // token: first identifier of the call (qualifier or subroutine name); children: EXPRESSION_LIST
+    public final static int EXPRESSION_LIST = 22;  // children: expressions
+
+    private final static int INITIAL_CAPACITY = 256;
+
+    private int[] kind = new int[INITIAL_CAPACITY];
+    private int[] firstChild = new int[INITIAL_CAPACITY];
+    private int[] nextSibling = new int[INITIAL_CAPACITY];
+    private int[] token = new int[INITIAL_CAPACITY];
+    // only needed while building, so children can be appended in O(1)
+    private int[] lastChild = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Allocates a new node with no children.
+     * @param nodeKind - one of the node kind constants of this class
+     * @param tokenIndex - the index of the node's token in the tokenizer's token list
+     * @return the id of the new node
+     */
+    public int add(int nodeKind, int tokenIndex) {
+        if (size == kind.length) {
+            int capacity = size * 2;
+            kind = Arrays.copyOf(kind, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            token = Arrays.copyOf(token, capacity);
+            lastChild = Arrays.copyOf(lastChild, capacity);
+        }
+
+        kind[size] = nodeKind;
+        token[size] = tokenIndex;
+        firstChild[size] = NONE;
+        nextSibling[size] = NONE;
+        lastChild[size] = NONE;
+        return size++;
+    }
+
+    /**
+     * Syntactic sugar to allocate a new node and append it as the last child of parent.
+     * @return the id of the new node
+     */
+    public int add(int parent, int nodeKind, int tokenIndex) {
+        int node = add(nodeKind, tokenIndex);
+        appendChild(parent, node);
+        return node;
+    }
+
+    /**
+     * Appends child as the last child of parent.
+     * @precondition - child is not yet attached to any parent
+     */
+    public void appendChild(int parent, int child) {
+        if (lastChild[parent] == NONE) {
+            firstChild[parent] = child;
+        }
+        else {
+            nextSibling[lastChild[parent]] = child;
+        }
+        lastChild[parent] = child;
+    }
+
+    public int kind(int node) {
+        return kind[node];
+    }
+
+    public int firstChild(int node) {
+        return firstChild[node];
+    }
+
+    public int nextSibling(int node) {
+        return nextSibling[node];
+    }
+
+    public int token(int node) {
+        return token[node];
+    }
+
+    /**
+     * Returns the nth (0-based) child of node, or NONE if it has fewer children.
+     */
+    public int child(int node, int n) {
+        int child = firstChild[node];
+        while (child != NONE && n > 0) {
+            child = nextSibling[child];
+            n--;
+        }
+        return child;
+    }
+
+    public int childCount(int node) {
+        int count = 0;
+        for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of nodes in the arena.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the id of the FILE root node (the node allocated first), or NONE if the arena is empty.
+     */
+    public int root() {
+        return size == 0 ? NONE : 0;
+    }
+}
@@ -0,0 +1,170 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * Compiles every benchmark program with every configuration, runs it on the HackEmulator, and compares
+ * its cycles, ROM words and peak RAM against a baseline file, failing if any of them got worse by more
+ * than a threshold.
+ *
+ * Cycles only count the program's own instructions, not the StubOS's estimates for OS calls, so that they
+ * follow the compiler's changes closely.  Peak RAM is the peak stack plus the peak heap, in words.
+ */
+public class BenchmarkSuite {
+    private final static String[] CONFIGURATIONS = { "-O0", "-O1", "-O2", "-O2 --optimize=size" };
+    private final static String[] METRICS = { "cycles", "rom", "ram" };
+    private final static String BASELINE_FILE = "baseline.txt";
+
+    public static void main(String[] args) throws Exception {
+        String benchmarksLocation = "benchmarks";
+        double threshold = 2.0;
+        boolean update = false;
+        boolean properUsage = true;
+        for (String arg : args) {
+            if (arg.startsWith("--threshold=")) {
+                threshold = Double.parseDouble(arg.substring("--threshold=".length()));
+            }
+            else if (arg.equals("--update")) {
+                update = true;
+            }
+            else if (!arg.startsWith("-")) {
+                benchmarksLocation = arg;
+            }
+            else {
+                properUsage = false;
+            }
+        }
+
+        File benchmarks = new File(benchmarksLocation);
+        // check for proper usage
+        if (!properUsage || !benchmarks.isDirectory()) {
+            System.out.println("IMPROPER USAGE!");
+            System.out.println("CORRECT USAGE: BenchmarkSuite [--threshold=PERCENT] [--update] [benchmarksFolder]");
+            System.out.println("where benchmarksFolder (default: benchmarks) has a folder of .jack files for each program");
+            System.out.println("  --threshold=PERCENT  fail if a result is more than PERCENT% worse than the baseline (default 2)");
+            System.out.println("  --update             write the results as the new baseline");
+            System.exit(1);
+        }
+
+        File baselineFile = new File(benchmarks, BASELINE_FILE);
+        LinkedHashMap<String, long[]> baseline = baselineFile.exists() ? readBaseline(baselineFile) : new LinkedHashMap<String, long[]>();
+        LinkedHashMap<String, long[]> results = new LinkedHashMap<String, long[]>();
+
+        File[] programs = benchmarks.listFiles(File::isDirectory);
+        Arrays.sort(programs);
+        int regressions = 0;
+        System.out.println(String.format("%-30s %12s %8s %8s", "benchmark", "cycles", "rom", "ram"));
+        for (File program : programs) {
+            for (String configuration : CONFIGURATIONS) {
+                String key = program.getName() + " " + configuration;
+                long[] result = run(program, configuration);
+                results.put(key, result);
+
+                StringBuilder line = new StringBuilder(String.format("%-30s %12d %8d %8d", key, result[0], result[1], result[2]));
+                long[] previous = baseline.get(key);
+                if (previous != null) {
+                    for (int metric = 0; metric < METRICS.length; metric++) {
+                        double change = previous[metric] == 0 ? 0 : 100.0 * (result[metric] - previous[metric]) / previous[metric];
+                        if (change > threshold) {
+                            regressions++;
+                            line.append(String.format("  REGRESSION: %s %+.1f%%", METRICS[metric], change));
+                        }
+                        else if (change != 0) {
+                            line.append(String.format("  %s %+.1f%%", METRICS[metric], change));
+                        }
+                    }
+                }
+                System.out.println(line);
+            }
+        }
+
+        if (update || baseline.isEmpty()) {
+            writeBaseline(baselineFile, results);
+            System.out.println("baseline written to " + baselineFile.getPath());
+        }
+        if (regressions > 0 && !update) {
+            System.out.println(regressions + " results regressed by more than " + threshold + "%");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Compiles a program with a configuration and runs it.
+     * @return its cycles, ROM words and peak RAM
+     * @throws Exception if it does not compile, or does not halt normally
+     */
+    private static long[] run(File program, String configuration) throws Exception {
+        CompilerOptions options = CompilerOptions.parse((configuration + " " + program.getPath()).split(" "));
+        options.quiet = true;
+        options.wholeProgram = true;
+        options.target = "asm";
+
+        ArrayList<String> classNames = new ArrayList<String>();
+        ArrayList<VMInstructions> classes = new ArrayList<VMInstructions>();
+        File[] inFiles = program.listFiles();
+        Arrays.sort(inFiles);
+        for (File inFile : inFiles) {
+            String inFileName = inFile.getName();
+            if (inFileName.endsWith(".jack")) {
+                CompilationEngine compiler = new CompilationEngine(inFile, null, null, options);
+                classNames.add(inFileName.substring(0, inFileName.indexOf(".jack")));
+                classes.add(compiler.getVMInstructions());
+            }
+        }
+        CodeWriter codeWriter = new CodeWriter(options.optimizeForSize);
+        if (options.optimizationLevel >= 1) {
+            Linker linker = new Linker(classNames, classes);
+            VMTranslator.translateProgram(codeWriter, linker.getClassNames(), linker.getFunctions(), true);
+        }
+        else {
+            VMTranslator.translateProgram(codeWriter, classNames, classes, false);
+        }
+        codeWriter.close();
+
+        HackEmulator emulator = new HackEmulator(codeWriter.getAssembly());
+        if (!emulator.run(HackEmulator.DEFAULT_MAX_CYCLES)) {
+            throw new Exception(program.getName() + " did not halt within " + HackEmulator.DEFAULT_MAX_CYCLES + " cycles");
+        }
+        if (emulator.getErrorCode() != 0) {
+            throw new Exception(program.getName() + " failed with Sys.error " + emulator.getErrorCode());
+        }
+
+        return new long[] {
+                emulator.getCycles() - emulator.getOSCycles(),
+                codeWriter.getRomWords(),
+                emulator.getPeakStack() + emulator.getPeakHeap()
+        };
+    }
+
+    /**
+     * Reads a baseline file, with a line "program configuration: cycles rom ram" per result.
+     */
+    private static LinkedHashMap<String, long[]> readBaseline(File baselineFile) throws Exception {
+        LinkedHashMap<String, long[]> baseline = new LinkedHashMap<String, long[]>();
+        for (String line : Files.readAllLines(baselineFile.toPath())) {
+            if (line.trim().isEmpty() || line.startsWith("#")) continue;
+            int colon = line.indexOf(':');
+            String[] values = line.substring(colon + 1).trim().split("\\s+");
+            long[] result = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                result[i] = Long.parseLong(values[i]);
+            }
+            baseline.put(line.substring(0, colon), result);
+        }
+        return baseline;
+    }
+
+    private static void writeBaseline(File baselineFile, LinkedHashMap<String, long[]> results) throws Exception {
+        StringBuilder text = new StringBuilder("# program configuration: cycles rom ram\n");
+        for (String key : results.keySet()) {
+            long[] result = results.get(key);
+            text.append(key).append(": ").append(result[0]).append(' ').append(result[1]).append(' ').append(result[2]).append('\n');
+        }
+        FileWriter writer = new FileWriter(baselineFile);
+        writer.write(text.toString());
+        writer.close();
+    }
+}
@@ -0,0 +1,1282 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Generates VM code by walking the syntax tree built by the CompilationEngine.
+ * Symbols are resolved here, one class and subroutine scope at a time, so the parse
+ * itself does not need to know anything about VM code.
+ */
+public class CodeGenerator {
+    // classes with fewer subroutines than this are not worth splitting across threads
+    private final static int PARALLEL_THRESHOLD = 8;
+    // the name of the label a subroutine's tail calls of itself jump to, less its number
+    final static String TAIL_CALL_LABEL = "TAIL_CALL";
+    // the fewest cases of an if-else chain worth a jump table, and the most entries its table may have per case
+    private final static int MIN_JUMP_TABLE_CASES = 3;
+    private final static int MAX_JUMP_TABLE_ENTRIES_PER_CASE = 2;
+
+    private AstArena ast;
+    private JackTokenizer tokenizer;
+    private VMWriter vmWriter;
+    private CompilerOptions options;
+    private SymbolTable symbolTable;
+
+    private String className;
+    private String functionName;
+    private String subroutineKind;
+    private int ifCounter;
+    private int whileCounter;
+    private int stringCounter;
+
+    // the labels of the current subroutine, by id: each is named by its prefix and number (like IF_TRUE3),
+    // but only once the subroutine is finished and its jumps threaded, for the labels still used
+    private String[] labelPrefixes = new String[16];
+    private int[] labelNumbers = new int[16];
+    private int labels;
+
+    // at -O1 and above, in a subroutine which returns a call to itself: the label just after its prologue,
+    // which such a return jumps to instead, and where that label is in the subroutine's vm code; -1 otherwise
+    private int tailCallEntry;
+    private int tailCallEntryPosition;
+    // the total over the class, for the report
+    private int tailCalls;
+    // at -O1 and above: totals over the class of the dead stores removed, and of the locals (declared and
+    // generated) and the slots they were packed into, for the report
+    private int deadStores;
+    private int allocatedLocals;
+    private int localSlots;
+    // totals over the class of the if-else chains compiled as jump tables, and their cases, for the report
+    private int jumpTables;
+    private int jumpTableCases;
+
+    // the address pointer 1 is known to hold: the array variable ("segment index"), followed by
+    // " + segment index" of the index variable unless the index was a constant; null if unknown
+    private String thatAddress;
+
+    // at -O2: the repeated subexpressions of the current subroutine kept in generated locals
+    private CommonSubexpressions commonSubexpressions;
+    // totals over the class, for the report
+    private int eliminatedSubexpressions;
+    private int subexpressionTemporaries;
+
+    // in a whole program at -O1 and above: the fields of the class that are never read, which are numbered
+    // after the others and left out of its objects, so storing into one only pops the value; empty otherwise
+    private LinkedHashSet<String> unusedFields = new LinkedHashSet<String>();
+    // the number of words a constructor allocates for an object of the class
+    private int objectSize;
+
+    // with --pool-strings: the static variable each distinct string literal of the class is built into
+    private LinkedHashMap<String, Integer> stringPool;
+
+    // with --profile-use: the cold branches moved to the end of the current subroutine, each with the
+    // label it starts at, the label it goes back to, and the if and while numbers its statements start at
+    private ArrayList<Integer> deferredStatements = new ArrayList<Integer>();
+    private ArrayList<Integer> deferredLabels = new ArrayList<Integer>();
+    private ArrayList<Integer> deferredReturnLabels = new ArrayList<Integer>();
+    private ArrayList<int[]> deferredCounters = new ArrayList<int[]>();
+
+    public CodeGenerator(AstArena ast, JackTokenizer tokenizer, VMWriter vmWriter, CompilerOptions options) {
+        this.ast = ast;
+        this.tokenizer = tokenizer;
+        this.vmWriter = vmWriter;
+        this.options = options;
+    }
+
+    /**
+     * Creates a generator for a single subroutine of the class classGenerator is compiling.
+     * It has its own subroutine scope, labels and vm code buffer, so it can run on another thread.
+     */
+    private CodeGenerator(CodeGenerator classGenerator) {
+        this(classGenerator.ast, classGenerator.tokenizer, new VMWriter(), classGenerator.options);
+        className = classGenerator.className;
+        symbolTable = new SymbolTable(classGenerator.symbolTable);
+        stringPool = classGenerator.stringPool;
+        unusedFields = classGenerator.unusedFields;
+        objectSize = classGenerator.objectSize;
+    }
+
+    /**
+     * Writes the VM code for every class in the file.
+     * @throws Exception
+     */
+    public void compileFile() throws Exception {
+        for (int classNode = ast.firstChild(ast.root()); classNode != AstArena.NONE; classNode = ast.nextSibling(classNode)) {
+            compileClass(classNode);
+        }
+    }
+
+    /**
+     * @param classNode - a CLASS node
+     * @throws Exception
+     */
+    public void compileClass(int classNode) throws Exception {
+        className = tokenText(classNode);
+        symbolTable = new SymbolTable();
+
+        unusedFields = new LinkedHashSet<String>();
+        if (options.wholeProgram && options.optimizationLevel >= 1) {
+            unusedFields = UnusedFields.find(ast, tokenizer, classNode);
+        }
+
+        // define every class variable first, so constructors know the number of fields,
+        // the fields that are read first, so they are the ones objects have room for
+        for (int child = ast.firstChild(classNode); child != AstArena.NONE; child = ast.nextSibling(child)) {
+            if (ast.kind(child) == AstArena.CLASS_VAR_DEC) {
+                defineVariables(child, tokenText(child), false);
+            }
+        }
+        for (int child = ast.firstChild(classNode); child != AstArena.NONE; child = ast.nextSibling(child)) {
+            if (ast.kind(child) == AstArena.CLASS_VAR_DEC) {
+                defineVariables(child, tokenText(child), true);
+            }
+        }
+        int fields = symbolTable.varCount("FIELD");
+        // an object with no fields left still gets a word, since the OS's Memory.alloc refuses to allocate none
+        objectSize = Math.max(fields - unusedFields.size(), Math.min(fields, 1));
+
+        if (options.poolStrings) {
+            createStringPool(classNode);
+        }
+
+        ArrayList<Integer> subroutines = new ArrayList<Integer>();
+        for (int child = ast.firstChild(classNode); child != AstArena.NONE; child = ast.nextSibling(child)) {
+            if (ast.kind(child) == AstArena.SUBROUTINE_DEC) {
+                subroutines.add(child);
+            }
+        }
+
+        eliminatedSubexpressions = 0;
+        subexpressionTemporaries = 0;
+        tailCalls = 0;
+        jumpTables = 0;
+        jumpTableCases = 0;
+        deadStores = 0;
+        allocatedLocals = 0;
+        localSlots = 0;
+        if (options.parallelCodegen && subroutines.size() >= PARALLEL_THRESHOLD) {
+            compileSubroutinesInParallel(subroutines);
+        }
+        else {
+            for (int subroutine : subroutines) {
+                compileSubroutine(subroutine);
+            }
+        }
+
+        if (eliminatedSubexpressions > 0 && !options.quiet) {
+            options.log.println("common subexpressions in " + className + ": " + eliminatedSubexpressions
+                    + " eliminated, using " + subexpressionTemporaries + " generated locals");
+        }
+        if (tailCalls > 0 && !options.quiet) {
+            options.log.println("tail calls in " + className + ": " + tailCalls + " made into jumps");
+        }
+        if ((deadStores > 0 || localSlots < allocatedLocals) && !options.quiet) {
+            options.log.println("locals in " + className + ": " + deadStores + " dead stores removed, "
+                    + allocatedLocals + " locals packed into " + localSlots + " slots");
+        }
+        if (jumpTables > 0 && !options.quiet) {
+            options.log.println("jump tables in " + className + ": " + jumpTables + " if-else chains of "
+                    + jumpTableCases + " cases made into indexed jumps");
+        }
+        if (!unusedFields.isEmpty() && !options.quiet) {
+            options.log.println("unused fields in " + className + ": " + String.join(", ", unusedFields) + " removed, "
+                    + (fields - objectSize) + " heap words saved per object");
+        }
+    }
+
+    /**
+     * Compiles each subroutine on the fork/join pool into its own buffer, then appends the buffers
+     * in source order, so the output is identical to compiling them one after another.
+     * @precondition - every class variable has already been defined
+     * @throws Exception
+     */
+    private void compileSubroutinesInParallel(ArrayList<Integer> subroutines) throws Exception {
+        ArrayList<SubroutineTask> tasks = new ArrayList<SubroutineTask>();
+        for (int subroutine : subroutines) {
+            tasks.add(new SubroutineTask(new CodeGenerator(this), subroutine));
+        }
+
+        ForkJoinPool.commonPool().invoke(new RecursiveTask<Void>() {
+            protected Void compute() {
+                invokeAll(tasks);
+                return null;
+            }
+        });
+
+        for (SubroutineTask task : tasks) {
+            if (task.tooDeep) {
+                // the pool's threads have smaller stacks than the one compiling the file
+                task.generator = new CodeGenerator(this);
+                task.generator.compileSubroutine(task.subroutine);
+            }
+            if (task.error != null) {
+                throw task.error;
+            }
+            vmWriter.append(task.generator.vmWriter);
+            eliminatedSubexpressions += task.generator.eliminatedSubexpressions;
+            subexpressionTemporaries += task.generator.subexpressionTemporaries;
+            tailCalls += task.generator.tailCalls;
+            jumpTables += task.generator.jumpTables;
+            jumpTableCases += task.generator.jumpTableCases;
+            deadStores += task.generator.deadStores;
+            allocatedLocals += task.generator.allocatedLocals;
+            localSlots += task.generator.localSlots;
+        }
+    }
+
+    /**
+     * Compiles one subroutine with its own generator.  Errors are kept so the first one
+     * in source order can be rethrown as-is on the calling thread.
+     */
+    private static class SubroutineTask extends RecursiveTask<Void> {
+        private final static long serialVersionUID = 1L;
+
+        private CodeGenerator generator;
+        private int subroutine;
+        private Exception error = null;
+        // whether the subroutine's expressions are nested too deeply to compile on a pool thread
+        private boolean tooDeep = false;
+
+        private SubroutineTask(CodeGenerator generator, int subroutine) {
+            this.generator = generator;
+            this.subroutine = subroutine;
+        }
+
+        protected Void compute() {
+            try {
+                generator.compileSubroutine(subroutine);
+            } catch (Exception e) {
+                error = e;
+            } catch (StackOverflowError e) {
+                tooDeep = true;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param subroutineNode - a SUBROUTINE_DEC node
+     * @throws Exception
+     */
+    public void compileSubroutine(int subroutineNode) throws Exception {
+        subroutineKind = tokenText(subroutineNode).toUpperCase();
+        String subroutineName = tokenizer.getToken(ast.token(subroutineNode) + 2);
+        int parameterList = ast.child(subroutineNode, 0);
+        int body = ast.child(subroutineNode, 1);
+
+        symbolTable.startSubroutine();
+        ifCounter = 0;
+        whileCounter = 0;
+        stringCounter = 0;
+        labels = 0;
+        tailCallEntry = -1;
+        thatAddress = null;
+
+        // a method receives the object it operates on as its hidden first argument
+        if (subroutineKind.equals("METHOD")) {
+            symbolTable.define("this", className, "ARG");
+        }
+        for (int parameter = ast.firstChild(parameterList); parameter != AstArena.NONE; parameter = ast.nextSibling(parameter)) {
+            symbolTable.define(tokenText(parameter), tokenizer.getToken(ast.token(parameter) - 1), "ARG");
+        }
+
+        // the function declaration needs the number of locals before any statement is compiled
+        defineLocals(body);
+        int nLocals = symbolTable.varCount("VAR");
+
+        commonSubexpressions = null;
+        if (options.optimizationLevel >= 2) {
+            commonSubexpressions = new CommonSubexpressions(ast, tokenizer, symbolTable, nLocals);
+            commonSubexpressions.analyze(body);
+            nLocals += commonSubexpressions.temporaries();
+            eliminatedSubexpressions += commonSubexpressions.eliminated();
+            subexpressionTemporaries += commonSubexpressions.temporaries();
+        }
+
+        functionName = className + "." + subroutineName;
+        // the subroutine is compiled on its own, so its jumps can be threaded before it joins the class
+        VMWriter classWriter = vmWriter;
+        VMWriter subroutineWriter = new VMWriter();
+        vmWriter = subroutineWriter;
+        try {
+            markSource(subroutineNode);
+            vmWriter.writeFunction(functionName, nLocals);
+            compileSubroutineBody(body);
+        } finally {
+            vmWriter = classWriter;
+        }
+        // a profile names branches by the labels their if-gotos are compiled with, so those keep their labels
+        VMInstructions subroutine = JumpThreader.thread(subroutineWriter.getInstructions(), labelPrefixes, labelNumbers,
+                options.optimizationLevel >= 1, options.profileGenerate == null);
+        if (options.optimizationLevel >= 1) {
+            LocalAllocator allocator = new LocalAllocator(subroutine);
+            subroutine = allocator.allocate();
+            deadStores += allocator.deadStores();
+            allocatedLocals += allocator.locals();
+            localSlots += allocator.slots();
+        }
+        vmWriter.getInstructions().addAll(subroutine);
+    }
+
+    private void compileSubroutineBody(int body) throws Exception {
+
+        switch (subroutineKind) {
+            case "CONSTRUCTOR":
+                vmWriter.writePush("constant", objectSize);
+                writeCall("Memory.alloc", 1);
+                vmWriter.writePop("pointer", 0);
+                break;
+            case "METHOD":
+                vmWriter.writePush("argument", 0);
+                vmWriter.writePop("pointer", 0);
+                break;
+        }
+
+        if (options.optimizationLevel >= 1 && returnsSelfCall(body)) {
+            tailCallEntry = newLabel(TAIL_CALL_LABEL, 0);
+            writeLabel(tailCallEntry);
+            tailCallEntryPosition = vmWriter.getInstructions().size();
+        }
+
+        compileStatements(body);
+        compileDeferredStatements();
+    }
+
+    /**
+     * Returns whether any return statement among statements, however deeply nested, returns a call to
+     * the current subroutine.
+     * @param statements - a STATEMENTS node
+     */
+    private boolean returnsSelfCall(int statements) {
+        for (int statement = ast.firstChild(statements); statement != AstArena.NONE; statement = ast.nextSibling(statement)) {
+            switch (ast.kind(statement)) {
+                case AstArena.RETURN:
+                    if (isSelfCall(ast.child(statement, 0))) {
+                        return true;
+                    }
+                    break;
+                case AstArena.IF:
+                case AstArena.WHILE:
+                    for (int child = ast.firstChild(statement); child != AstArena.NONE; child = ast.nextSibling(child)) {
+                        if (ast.kind(child) == AstArena.STATEMENTS && returnsSelfCall(child)) {
+                            return true;
+                        }
+                    }
+                    break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether an expression is a call of the current subroutine with all its arguments: ClassName.f()
+     * in a function f, or f() (on the same object) in a method f.
+     * @param expression - any expression node, or NONE
+     */
+    private boolean isSelfCall(int expression) {
+        if (expression == AstArena.NONE || ast.kind(expression) != AstArena.CALL) {
+            return false;
+        }
+        int firstToken = ast.token(expression);
+        String firstIdentifier = tokenizer.getToken(firstToken);
+        int nArgs = ast.childCount(ast.child(expression, 0));
+
+        if (tokenizer.getToken(firstToken + 1).equals(".")) {
+            return subroutineKind.equals("FUNCTION") && symbolTable.kindOf(firstIdentifier).equals("NONE")
+                    && functionName.equals(firstIdentifier + "." + tokenizer.getToken(firstToken + 2))
+                    && nArgs == symbolTable.varCount("ARG");
+        }
+        return subroutineKind.equals("METHOD") && functionName.equals(className + "." + firstIdentifier)
+                && nArgs + 1 == symbolTable.varCount("ARG");
+    }
+
+    /**
+     * Defines every local variable declared anywhere in the given statements.
+     * @param statements - a STATEMENTS node
+     * @throws Exception
+     */
+    private void defineLocals(int statements) throws Exception {
+        for (int statement = ast.firstChild(statements); statement != AstArena.NONE; statement = ast.nextSibling(statement)) {
+            switch (ast.kind(statement)) {
+                case AstArena.VAR_DEC:
+                    defineVariables(statement, "VAR");
+                    break;
+                case AstArena.IF:
+                case AstArena.WHILE:
+                    for (int child = ast.firstChild(statement); child != AstArena.NONE; child = ast.nextSibling(child)) {
+                        if (ast.kind(child) == AstArena.STATEMENTS) {
+                            defineLocals(child);
+                        }
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Defines each name declared by a VAR_DEC or CLASS_VAR_DEC node.
+     * @param declaration - the declaration node, whose type is the token after its keyword
+     * @param kind - the kind of the variables being declared (FIELD, STATIC, VAR)
+     * @throws Exception
+     */
+    private void defineVariables(int declaration, String kind) throws Exception {
+        String type = tokenizer.getToken(ast.token(declaration) + 1);
+        for (int name = ast.firstChild(declaration); name != AstArena.NONE; name = ast.nextSibling(name)) {
+            symbolTable.define(tokenText(name), type, kind);
+        }
+    }
+
+    /**
+     * Defines either the unused fields declared by a CLASS_VAR_DEC node, or its other variables.
+     * @param unused - whether to define only the unused fields, or only the others
+     * @throws Exception
+     */
+    private void defineVariables(int declaration, String kind, boolean unused) throws Exception {
+        String type = tokenizer.getToken(ast.token(declaration) + 1);
+        for (int name = ast.firstChild(declaration); name != AstArena.NONE; name = ast.nextSibling(name)) {
+            if (unusedFields.contains(tokenText(name)) == unused) {
+                symbolTable.define(tokenText(name), type, kind);
+            }
+        }
+    }
+
+    /**
+     * @param statements - a STATEMENTS node
+     * @throws Exception
+     */
+    private void compileStatements(int statements) throws Exception {
+        for (int statement = ast.firstChild(statements); statement != AstArena.NONE; statement = ast.nextSibling(statement)) {
+            if (ast.kind(statement) != AstArena.VAR_DEC) {
+                markSource(statement);
+            }
+            switch (ast.kind(statement)) {
+                case AstArena.LET:
+                    compileLet(statement);
+                    break;
+                case AstArena.IF:
+                    compileIf(statement);
+                    break;
+                case AstArena.WHILE:
+                    compileWhile(statement);
+                    break;
+                case AstArena.DO:
+                    compileDo(statement);
+                    break;
+                case AstArena.RETURN:
+                    compileReturn(statement);
+                    break;
+                case AstArena.VAR_DEC:
+                    // locals were already defined before the function declaration was written
+                    break;
+                default:
+                    throw new Exception("ERROR: unexpected syntax tree node where a statement was expected: " + ast.kind(statement));
+            }
+        }
+    }
+
+    private void compileLet(int letStatement) throws Exception {
+        int target = ast.child(letStatement, 0);
+        int value = ast.child(letStatement, 1);
+
+        switch (ast.kind(target)) {
+            case AstArena.VAR_REF:
+                compileExpression(value);
+                String name = tokenText(target);
+                if (symbolTable.kindOf(name).equals("field") && unusedFields.contains(name)) {
+                    // nothing reads the field, so objects have no room for it
+                    vmWriter.writePop("temp", 0);
+                    break;
+                }
+                writeStore(segmentOf(name), symbolTable.indexOf(name));
+                break;
+            case AstArena.INDEX:
+                compileArrayStore(target, value);
+                break;
+            default:
+                throw new Exception("ERROR: cannot assign to " + tokenText(target));
+        }
+    }
+
+    private void compileIf(int ifStatement) throws Exception {
+        int condition = ast.child(ifStatement, 0);
+        int ifBody = ast.child(ifStatement, 1);
+        int elseBody = ast.child(ifStatement, 2);
+
+        if (compileJumpTable(ifStatement)) {
+            return;
+        }
+        int number = ifCounter++;
+        long[] counts = branchCounts("IF_TRUE" + number);
+        if (counts != null) {
+            compileProfiledIf(condition, ifBody, elseBody, number, counts[0] >= counts[1]);
+            return;
+        }
+
+        int ifTrue = newLabel("IF_TRUE", number);
+        int ifFalse = newLabel("IF_FALSE", number);
+        int ifEnd = newLabel("IF_END", number);
+        compileExpression(condition);
+        vmWriter.writeIf(ifTrue);
+        vmWriter.writeGoto(ifFalse);
+        writeLabel(ifTrue);
+        compileStatements(ifBody);
+        vmWriter.writeGoto(ifEnd);
+        writeLabel(ifFalse);
+        if (elseBody != AstArena.NONE) {
+            compileStatements(elseBody);
+        }
+        writeLabel(ifEnd);
+    }
+
+    /**
+     * Compiles an if statement as a jump table, if it starts a chain of ifs that compare the same variable with
+     * distinct constants, each if the only statement of the else of the one before:
+     * `if (k = 1) {...} else { if (k = 2) {...} else { if (k = 3) {...} else {...} } }`.
+     * The chain is tested one if after another, and none of its bodies runs before the last test, so jumping
+     * straight to the body of the variable's value does the same with one test instead of one per case.
+     * It is only worth it for at least MIN_JUMP_TABLE_CASES cases, spread over at most
+     * MAX_JUMP_TABLE_ENTRIES_PER_CASE table entries each; sparser chains are compiled as ifs.
+     *
+     * Each if keeps its number, and its body its IF_TRUE label.  Only done at -O1 and above when translating
+     * to assembly, since a jump-table is not a command of the standard VM, and not while profiling, which counts
+     * the branches of every if.
+     * @return whether the if was compiled as a jump table
+     */
+    private boolean compileJumpTable(int ifStatement) throws Exception {
+        if (options.optimizationLevel < 1 || !options.target.equals("asm") || options.profileGenerate != null) {
+            return false;
+        }
+
+        // the cases: the value and body of each if of the chain
+        int variable = AstArena.NONE;
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        ArrayList<Integer> bodies = new ArrayList<Integer>();
+        int elseBody = AstArena.NONE;
+        for (int statement = ifStatement; statement != AstArena.NONE; ) {
+            int condition = ast.child(statement, 0);
+            if (ast.kind(condition) != AstArena.BINARY_OP || !tokenText(condition).equals("=")) {
+                break;
+            }
+            int compared = ast.child(condition, 0);
+            int constant = ast.child(condition, 1);
+            if (ast.kind(compared) == AstArena.INT_CONST) {
+                compared = constant;
+                constant = ast.child(condition, 0);
+            }
+            if (ast.kind(compared) != AstArena.VAR_REF || ast.kind(constant) != AstArena.INT_CONST
+                    || variable != AstArena.NONE && !tokenText(compared).equals(tokenText(variable))
+                    || values.contains(Integer.parseInt(tokenText(constant)))) {
+                break;
+            }
+            variable = compared;
+            values.add(Integer.parseInt(tokenText(constant)));
+            bodies.add(ast.child(statement, 1));
+            elseBody = ast.child(statement, 2);
+
+            // the next if of the chain, if the else holds nothing else
+            statement = AstArena.NONE;
+            if (elseBody != AstArena.NONE) {
+                int only = ast.firstChild(elseBody);
+                if (only != AstArena.NONE && ast.kind(only) == AstArena.IF && ast.nextSibling(only) == AstArena.NONE) {
+                    statement = only;
+                }
+            }
+        }
+        if (values.size() < MIN_JUMP_TABLE_CASES) {
+            return false;
+        }
+        int first = values.stream().min(Integer::compare).get();
+        int entries = values.stream().max(Integer::compare).get() - first + 1;
+        if (entries > values.size() * MAX_JUMP_TABLE_ENTRIES_PER_CASE) {
+            return false;
+        }
+
+        // the else is compiled first, since the table falls through to it, so like deferred statements each body
+        // is compiled with the counters it would have had in place
+        int[] numbers = new int[values.size()];
+        int[][] counters = new int[values.size()][];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = ifCounter++;
+            counters[i] = new int[] { ifCounter, whileCounter };
+            skipCounters(bodies.get(i));
+        }
+
+        int[] caseLabels = new int[values.size()];
+        for (int i = 0; i < caseLabels.length; i++) {
+            caseLabels[i] = newLabel("IF_TRUE", numbers[i]);
+        }
+        int ifFalse = newLabel("IF_FALSE", numbers[numbers.length - 1]);
+        int ifEnd = newLabel("IF_END", numbers[0]);
+        int[] table = new int[entries];
+        Arrays.fill(table, ifFalse);
+        for (int i = 0; i < caseLabels.length; i++) {
+            table[values.get(i) - first] = caseLabels[i];
+        }
+
+        compileExpression(variable);
+        vmWriter.writeJumpTable(first, table);
+        writeLabel(ifFalse);
+        if (elseBody != AstArena.NONE) {
+            compileStatements(elseBody);
+        }
+        int[] after = { ifCounter, whileCounter };
+        for (int i = 0; i < caseLabels.length; i++) {
+            vmWriter.writeGoto(ifEnd);
+            writeLabel(caseLabels[i]);
+            ifCounter = counters[i][0];
+            whileCounter = counters[i][1];
+            compileStatements(bodies.get(i));
+        }
+        writeLabel(ifEnd);
+        ifCounter = after[0];
+        whileCounter = after[1];
+
+        jumpTables++;
+        jumpTableCases += values.size();
+        return true;
+    }
+
+    private void compileWhile(int whileStatement) throws Exception {
+        int condition = ast.child(whileStatement, 0);
+        int body = ast.child(whileStatement, 1);
+
+        int number = whileCounter++;
+        long[] counts = branchCounts("WHILE_END" + number);
+        int whileExp = newLabel("WHILE_EXP", number);
+        if (counts != null && counts[1] >= counts[0]) {
+            // a hot loop: test the condition at the bottom, so each iteration takes one jump instead of two
+            int whileStart = newLabel("WHILE_START", number);
+            vmWriter.writeGoto(whileExp);
+            writeLabel(whileStart);
+            compileStatements(body);
+            markSource(whileStatement);
+            writeLabel(whileExp);
+            compileExpression(condition);
+            vmWriter.writeIf(whileStart);
+            return;
+        }
+
+        int whileEnd = newLabel("WHILE_END", number);
+        writeLabel(whileExp);
+        compileExpression(condition);
+        vmWriter.writeArithmetic("not");
+        vmWriter.writeIf(whileEnd);
+        compileStatements(body);
+        markSource(whileStatement);
+        vmWriter.writeGoto(whileExp);
+        writeLabel(whileEnd);
+    }
+
+    /**
+     * Compiles an if statement laid out by its profile: the hot branch falls through from the condition,
+     * and the cold one is moved to the end of the subroutine, so the hot path takes no jumps.
+     * @param thenIsHot - whether the condition was true at least as often as it was false
+     */
+    private void compileProfiledIf(int condition, int ifBody, int elseBody, int number, boolean thenIsHot) throws Exception {
+        int ifEnd = newLabel("IF_END", number);
+        compileExpression(condition);
+        if (thenIsHot) {
+            vmWriter.writeArithmetic("not");
+            if (elseBody != AstArena.NONE) {
+                int ifFalse = newLabel("IF_FALSE", number);
+                vmWriter.writeIf(ifFalse);
+                compileStatements(ifBody);
+                deferStatements(elseBody, ifFalse, ifEnd);
+            }
+            else {
+                vmWriter.writeIf(ifEnd);
+                compileStatements(ifBody);
+            }
+        }
+        else {
+            int ifTrue = newLabel("IF_TRUE", number);
+            vmWriter.writeIf(ifTrue);
+            deferStatements(ifBody, ifTrue, ifEnd);
+            if (elseBody != AstArena.NONE) {
+                compileStatements(elseBody);
+            }
+        }
+        writeLabel(ifEnd);
+    }
+
+    /**
+     * Queues statements to be compiled at the end of the subroutine, starting at label and going back to
+     * returnLabel, and advances the if and while counters past them, so every if and while keeps the
+     * number (and so the labels and profile counts) it would have had compiled in place.
+     */
+    private void deferStatements(int statements, int label, int returnLabel) {
+        deferredStatements.add(statements);
+        deferredLabels.add(label);
+        deferredReturnLabels.add(returnLabel);
+        deferredCounters.add(new int[] { ifCounter, whileCounter });
+        skipCounters(statements);
+    }
+
+    /**
+     * Advances the if and while counters past every if and while in the given statements.
+     */
+    private void skipCounters(int statements) {
+        for (int statement = ast.firstChild(statements); statement != AstArena.NONE; statement = ast.nextSibling(statement)) {
+            if (ast.kind(statement) == AstArena.IF || ast.kind(statement) == AstArena.WHILE) {
+                if (ast.kind(statement) == AstArena.IF) {
+                    ifCounter++;
+                }
+                else {
+                    whileCounter++;
+                }
+                for (int child = ast.firstChild(statement); child != AstArena.NONE; child = ast.nextSibling(child)) {
+                    if (ast.kind(child) == AstArena.STATEMENTS) {
+                        skipCounters(child);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles the statements deferStatements queued, including the ones queued while doing so,
+     * with the labels and counters they would have had in place.
+     */
+    private void compileDeferredStatements() throws Exception {
+        for (int i = 0; i < deferredStatements.size(); i++) {
+            int[] counters = { ifCounter, whileCounter };
+            ifCounter = deferredCounters.get(i)[0];
+            whileCounter = deferredCounters.get(i)[1];
+            writeLabel(deferredLabels.get(i));
+            compileStatements(deferredStatements.get(i));
+            vmWriter.writeGoto(deferredReturnLabels.get(i));
+            ifCounter = counters[0];
+            whileCounter = counters[1];
+        }
+        deferredStatements.clear();
+        deferredLabels.clear();
+        deferredReturnLabels.clear();
+        deferredCounters.clear();
+    }
+
+    /**
+     * Returns how often the current subroutine's if-goto to label jumped and fell through in the profile,
+     * or null if there is no profile or it never ran.
+     */
+    private long[] branchCounts(String label) {
+        if (options.profile == null) {
+            return null;
+        }
+        long[] counts = options.profile.branchCounts(functionName, label);
+        return counts != null && counts[0] + counts[1] > 0 ? counts : null;
+    }
+
+    private void compileDo(int doStatement) throws Exception {
+        compileCall(ast.child(doStatement, 0));
+        // a do statement ignores the returned value
+        vmWriter.writePop("temp", 0);
+    }
+
+    private void compileReturn(int returnStatement) throws Exception {
+        int value = ast.child(returnStatement, 0);
+        if (tailCallEntry >= 0 && isSelfCall(value)) {
+            compileTailCall(value);
+            return;
+        }
+        if (value != AstArena.NONE) {
+            compileExpression(value);
+        }
+        else {
+            // void subroutines still return a value, which the caller discards
+            vmWriter.writePush("constant", 0);
+        }
+        vmWriter.writeReturn();
+    }
+
+    /**
+     * Writes VM code for returning a call of the current subroutine, which instead of calling it sets its
+     * arguments to the new ones and jumps back to the start of its body, so the recursion takes no stack.
+     * The object of a method stays the same, and locals are set back to 0, as a call would start with them,
+     * unless they are always set before they are read.
+     * @param call - a CALL node for which isSelfCall is true
+     */
+    private void compileTailCall(int call) throws Exception {
+        int expressionList = ast.child(call, 0);
+        int firstArgument = subroutineKind.equals("METHOD") ? 1 : 0;
+
+        // every argument is computed before any is set, since they may read the old ones;
+        // one passed on unchanged is left where it is
+        ArrayList<Integer> changed = new ArrayList<Integer>();
+        int position = firstArgument;
+        for (int argument = ast.firstChild(expressionList); argument != AstArena.NONE; argument = ast.nextSibling(argument)) {
+            if (ast.kind(argument) != AstArena.VAR_REF || !variableKey(tokenText(argument)).equals("argument " + position)) {
+                compileExpression(argument);
+                changed.add(position);
+            }
+            position++;
+        }
+        for (int i = changed.size() - 1; i >= 0; i--) {
+            writeStore("argument", changed.get(i));
+        }
+
+        for (int local = 0; local < symbolTable.varCount("VAR"); local++) {
+            if (!isSetBeforeRead(local)) {
+                vmWriter.writePush("constant", 0);
+                writeStore("local", local);
+            }
+        }
+        vmWriter.writeGoto(tailCallEntry);
+        tailCalls++;
+    }
+
+    /**
+     * Returns whether the code from the tail call entry of the current subroutine pops into a local before
+     * any push of it, label or jump, so the local never needs to be set back to 0 before jumping there.
+     */
+    private boolean isSetBeforeRead(int local) {
+        VMInstructions instructions = vmWriter.getInstructions();
+        for (int i = tailCallEntryPosition; i < instructions.size(); i++) {
+            int opcode = instructions.opcode(i);
+            if (opcode == VMInstructions.LABEL || opcode == VMInstructions.GOTO || opcode == VMInstructions.IF_GOTO
+                    || opcode == VMInstructions.JUMP_TABLE || opcode == VMInstructions.RETURN) {
+                return false;
+            }
+            if ((opcode == VMInstructions.PUSH || opcode == VMInstructions.POP)
+                    && instructions.argument(i) == VMInstructions.LOCAL && instructions.index(i) == local) {
+                return opcode == VMInstructions.POP;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes VM code which leaves the value of the expression on top of the stack.
+     * @param expression - any expression node
+     * @throws Exception
+     */
+    private void compileExpression(int expression) throws Exception {
+        if (commonSubexpressions != null && commonSubexpressions.reuseFrom(expression) >= 0) {
+            vmWriter.writePush("local", commonSubexpressions.reuseFrom(expression));
+            return;
+        }
+
+        switch (ast.kind(expression)) {
+            case AstArena.BINARY_OP:
+                compileExpression(ast.child(expression, 0));
+                compileExpression(ast.child(expression, 1));
+                compileBinaryOperation(tokenText(expression).charAt(0));
+                break;
+            case AstArena.UNARY_OP:
+                compileExpression(ast.child(expression, 0));
+                vmWriter.writeArithmetic(tokenText(expression).equals("-") ? "neg" : "not");
+                break;
+            case AstArena.INT_CONST:
+                vmWriter.writePush("constant", Integer.parseInt(tokenText(expression)));
+                break;
+            case AstArena.STRING_CONST:
+                compileStringConstant(tokenText(expression));
+                break;
+            case AstArena.KEYWORD_CONST:
+                compileKeywordConstant(tokenText(expression));
+                break;
+            case AstArena.VAR_REF:
+                String name = tokenText(expression);
+                vmWriter.writePush(segmentOf(name), symbolTable.indexOf(name));
+                break;
+            case AstArena.INDEX:
+                compileArrayRead(expression);
+                break;
+            case AstArena.CALL:
+                compileCall(expression);
+                break;
+            default:
+                throw new Exception("ERROR: unexpected syntax tree node where an expression was expected: " + ast.kind(expression));
+        }
+
+        if (commonSubexpressions != null && commonSubexpressions.saveTo(expression) >= 0) {
+            writeStore("local", commonSubexpressions.saveTo(expression));
+            vmWriter.writePush("local", commonSubexpressions.saveTo(expression));
+        }
+    }
+
+    /**
+     * Writes VM code which pushes the array element an INDEX node refers to.
+     * The element address is only computed if pointer 1 does not already hold it.
+     * @param index - an INDEX node
+     */
+    private void compileArrayRead(int index) throws Exception {
+        String address = arrayAddress(index);
+        if (address == null || !address.equals(thatAddress)) {
+            compileArrayAddress(index, address);
+        }
+        vmWriter.writePush("that", constantIndex(index));
+    }
+
+    /**
+     * Writes VM code for let array[index] = value.
+     * If value cannot change pointer 1 (it reads no other array element, and does not read this one
+     * after a call), the element address is set before value is computed and the value popped straight
+     * into it; otherwise the address waits on the stack while value is computed.
+     * Either way the address is computed before value, as Jack's evaluation order requires.
+     * @param target - the INDEX node assigned to
+     * @param value - the expression assigned
+     */
+    private void compileArrayStore(int target, int value) throws Exception {
+        String address = arrayAddress(target);
+        int offset = constantIndex(target);
+        boolean[] found = new boolean[3];
+        findCallsAndArrayReads(value, address, found);
+
+        if (!found[2] && !(found[0] && found[1])) {
+            if (address == null || !address.equals(thatAddress)) {
+                compileArrayAddress(target, address);
+            }
+            // calls restore pointer 1 when they return, so it still holds the address here
+            compileExpression(value);
+            vmWriter.writePop("that", offset);
+        }
+        else {
+            compileExpression(ast.child(target, 0));
+            if (ast.kind(ast.child(target, 1)) != AstArena.INT_CONST) {
+                compileExpression(ast.child(target, 1));
+                vmWriter.writeArithmetic("add");
+            }
+            else if (offset != 0) {
+                vmWriter.writePush("constant", offset);
+                vmWriter.writeArithmetic("add");
+            }
+            compileExpression(value);
+            vmWriter.writePop("temp", 0);
+            vmWriter.writePop("pointer", 1);
+            vmWriter.writePush("temp", 0);
+            vmWriter.writePop("that", 0);
+            // a call in value may have changed the variables the address was computed from
+            thatAddress = offset == 0 && !found[0] ? address : null;
+        }
+
+        // an array may hold the same memory as this object's fields
+        if (thatAddress != null && thatAddress.contains("this ")) {
+            thatAddress = null;
+        }
+    }
+
+    /**
+     * Writes VM code which points pointer 1 at the element an INDEX node refers to, except that a
+     * constant index is left out of the address to be used as the offset into the that segment.
+     * @param index - an INDEX node
+     * @param address - the key of the address, from arrayAddress
+     */
+    private void compileArrayAddress(int index, String address) throws Exception {
+        compileExpression(ast.child(index, 0));
+        if (ast.kind(ast.child(index, 1)) != AstArena.INT_CONST) {
+            compileExpression(ast.child(index, 1));
+            vmWriter.writeArithmetic("add");
+        }
+        vmWriter.writePop("pointer", 1);
+        thatAddress = address;
+    }
+
+    /**
+     * Returns the key of the address compileArrayAddress computes for an INDEX node, or null if the
+     * array is not a variable or the index is neither a constant nor a variable.
+     */
+    private String arrayAddress(int index) throws Exception {
+        int array = ast.child(index, 0);
+        int indexExpression = ast.child(index, 1);
+        if (ast.kind(array) != AstArena.VAR_REF) {
+            return null;
+        }
+
+        String address = variableKey(tokenText(array));
+        switch (ast.kind(indexExpression)) {
+            case AstArena.INT_CONST:
+                return address;
+            case AstArena.VAR_REF:
+                return address + " + " + variableKey(tokenText(indexExpression));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the constant index of an INDEX node, or 0 if its index is not a constant.
+     */
+    private int constantIndex(int index) {
+        int indexExpression = ast.child(index, 1);
+        return ast.kind(indexExpression) == AstArena.INT_CONST ? Integer.parseInt(tokenText(indexExpression)) : 0;
+    }
+
+    /**
+     * Records in found whether expression has a call (including the ones written for *, / and
+     * string constants), reads the array element at address, or reads any other array element.
+     */
+    private void findCallsAndArrayReads(int node, String address, boolean[] found) throws Exception {
+        switch (ast.kind(node)) {
+            case AstArena.CALL:
+            case AstArena.STRING_CONST:
+                found[0] = true;
+                break;
+            case AstArena.BINARY_OP:
+                found[0] |= tokenText(node).equals("*") || tokenText(node).equals("/");
+                break;
+            case AstArena.INDEX:
+                if (address != null && address.equals(arrayAddress(node))) {
+                    found[1] = true;
+                }
+                else {
+                    found[2] = true;
+                }
+                break;
+        }
+        for (int child = ast.firstChild(node); child != AstArena.NONE; child = ast.nextSibling(child)) {
+            findCallsAndArrayReads(child, address, found);
+        }
+    }
+
+    private void compileBinaryOperation(char operator) throws Exception {
+        switch (operator) {
+            case '+':
+                vmWriter.writeArithmetic("add");
+                break;
+            case '-':
+                vmWriter.writeArithmetic("sub");
+                break;
+            case '*':
+                writeCall("Math.multiply", 2);
+                break;
+            case '/':
+                writeCall("Math.divide", 2);
+                break;
+            case '&':
+                vmWriter.writeArithmetic("and");
+                break;
+            case '|':
+                vmWriter.writeArithmetic("or");
+                break;
+            case '<':
+                vmWriter.writeArithmetic("lt");
+                break;
+            case '>':
+                vmWriter.writeArithmetic("gt");
+                break;
+            case '=':
+                vmWriter.writeArithmetic("eq");
+                break;
+            default:
+                throw new Exception("ERROR: unknown binary operator " + operator);
+        }
+    }
+
+    /**
+     * Writes VM code which leaves a String object holding the literal on top of the stack.
+     * Without --pool-strings a new String is built every time the code runs; with it, the String
+     * is built into the literal's static variable the first time and reused after that.
+     * @param literal - the string constant token, including its quotes
+     */
+    private void compileStringConstant(String literal) {
+        String value = literal.substring(1, literal.length() - 1);
+
+        if (stringPool == null) {
+            writeNewString(value);
+            return;
+        }
+
+        int slot = stringPool.get(value);
+        int readyLabel = newLabel("STRING_READY", stringCounter++);
+        vmWriter.writePush("static", slot);
+        vmWriter.writeIf(readyLabel);
+        writeNewString(value);
+        writeStore("static", slot);
+        writeLabel(readyLabel);
+        vmWriter.writePush("static", slot);
+    }
+
+    /**
+     * Writes VM code which builds a new String holding value, leaving it on top of the stack.
+     */
+    private void writeNewString(String value) {
+        vmWriter.writePush("constant", value.length());
+        writeCall("String.new", 1);
+        for (int i = 0; i < value.length(); i++) {
+            vmWriter.writePush("constant", value.charAt(i));
+            writeCall("String.appendChar", 2);
+        }
+    }
+
+    /**
+     * Gives each distinct string literal of the class a static variable after the class's own
+     * static variables, and reports what reusing the pooled Strings saves.
+     * @param classNode - a CLASS node
+     * @precondition - every class variable has already been defined
+     */
+    private void createStringPool(int classNode) {
+        stringPool = new LinkedHashMap<String, Integer>();
+        // uses, then heap words, OS calls and VM commands saved when every use runs once more
+        int[] savings = new int[4];
+        collectStrings(classNode, savings);
+        if (stringPool.isEmpty() || options.quiet) {
+            return;
+        }
+
+        options.log.println("string pool for " + className + ": " + stringPool.size() + " distinct literals used in "
+                + savings[0] + " places");
+        options.log.println("  each later evaluation of all of them saves " + savings[1] + " heap words, " + savings[2]
+                + " OS calls and " + (savings[3] - 3 * savings[0]) + " VM commands");
+    }
+
+    /**
+     * Adds the string literals under node to the string pool in source order.
+     * @param savings - totals to add each literal's uses and per-evaluation savings to
+     */
+    private void collectStrings(int node, int[] savings) {
+        if (ast.kind(node) == AstArena.STRING_CONST) {
+            String literal = tokenText(node);
+            String value = literal.substring(1, literal.length() - 1);
+            if (!stringPool.containsKey(value)) {
+                stringPool.put(value, symbolTable.varCount("STATIC") + stringPool.size());
+            }
+
+            // a pooled evaluation skips String.new, one String.appendChar per character and the
+            // allocations of the String object (3 fields) and its character array, each of which
+            // carries a one-word allocation header; it costs 3 VM commands to check the pool
+            savings[0]++;
+            savings[1] += 3 + 1 + Math.max(value.length(), 1) + 1;
+            savings[2] += 1 + value.length();
+            savings[3] += 2 + 2 * value.length();
+        }
+        for (int child = ast.firstChild(node); child != AstArena.NONE; child = ast.nextSibling(child)) {
+            collectStrings(child, savings);
+        }
+    }
+
+    private void compileKeywordConstant(String keyword) throws Exception {
+        switch (keyword) {
+            case "true":
+                // true is -1, which cannot be pushed as a constant directly
+                vmWriter.writePush("constant", 0);
+                vmWriter.writeArithmetic("not");
+                break;
+            case "false":
+            case "null":
+                vmWriter.writePush("constant", 0);
+                break;
+            case "this":
+                vmWriter.writePush("pointer", 0);
+                break;
+            default:
+                throw new Exception("ERROR: unexpected keyword in expression: " + keyword);
+        }
+    }
+
+    /**
+     * Writes the VM code for a subroutine call, leaving the returned value on top of the stack.
+     * @param call - a CALL node
+     * @throws Exception
+     */
+    private void compileCall(int call) throws Exception {
+        int firstToken = ast.token(call);
+        String firstIdentifier = tokenizer.getToken(firstToken);
+        int expressionList = ast.child(call, 0);
+        int nArgs = ast.childCount(expressionList);
+        String functionName;
+
+        if (tokenizer.getToken(firstToken + 1).equals(".")) {
+            String subroutineName = tokenizer.getToken(firstToken + 2);
+            if (symbolTable.kindOf(firstIdentifier).equals("NONE")) {
+                // ClassName.subroutine(): a function or constructor call
+                functionName = firstIdentifier + "." + subroutineName;
+            }
+            else {
+                // variable.subroutine(): a method call on the object stored in the variable
+                vmWriter.writePush(segmentOf(firstIdentifier), symbolTable.indexOf(firstIdentifier));
+                functionName = symbolTable.typeOf(firstIdentifier) + "." + subroutineName;
+                nArgs++;
+            }
+        }
+        else {
+            // subroutine(): a method call on this object
+            vmWriter.writePush("pointer", 0);
+            functionName = className + "." + firstIdentifier;
+            nArgs++;
+        }
+
+        for (int argument = ast.firstChild(expressionList); argument != AstArena.NONE; argument = ast.nextSibling(argument)) {
+            compileExpression(argument);
+        }
+        writeCall(functionName, nArgs);
+    }
+
+    /**
+     * Writes a call, after which pointer 1 is no longer known to hold any particular address,
+     * since the call may have changed the variables it was computed from.
+     */
+    private void writeCall(String name, int nArgs) {
+        vmWriter.writeCall(name, nArgs);
+        thatAddress = null;
+    }
+
+    /**
+     * Gives the commands written from now on the source position of a node's token.
+     */
+    private void markSource(int node) {
+        int token = ast.token(node);
+        vmWriter.setSource(tokenizer.getFileName(), tokenizer.getLine(token), tokenizer.getColumn(token));
+    }
+
+    /**
+     * Writes a label, where control may arrive from elsewhere with pointer 1 holding anything.
+     */
+    private void writeLabel(int label) {
+        vmWriter.writeLabel(label);
+        thatAddress = null;
+    }
+
+    /**
+     * Returns the id of a new label of the current subroutine, which will be named prefix followed by number.
+     */
+    private int newLabel(String prefix, int number) {
+        if (labels == labelPrefixes.length) {
+            labelPrefixes = Arrays.copyOf(labelPrefixes, labels * 2);
+            labelNumbers = Arrays.copyOf(labelNumbers, labels * 2);
+        }
+        labelPrefixes[labels] = prefix;
+        labelNumbers[labels] = number;
+        return labels++;
+    }
+
+    /**
+     * Writes a pop into a variable, forgetting the address in pointer 1 if it was computed from that variable.
+     */
+    private void writeStore(String segment, int index) {
+        vmWriter.writePop(segment, index);
+        if (thatAddress != null) {
+            for (String variable : thatAddress.split(" \\+ ")) {
+                if (variable.equals(segment + " " + index)) {
+                    thatAddress = null;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the "segment index" a variable is stored in.
+     */
+    private String variableKey(String name) throws Exception {
+        return segmentOf(name) + " " + symbolTable.indexOf(name);
+    }
+
+    /**
+     * Returns the VM segment a variable is stored in.
+     * @throws Exception if the variable is not defined
+     */
+    private String segmentOf(String name) throws Exception {
+        String kind = symbolTable.kindOf(name);
+        if (kind.equals("NONE")) {
+            throw new Exception("ERROR: undefined variable " + name + " in class " + className);
+        }
+        return SymbolTable.convertSegmentName(kind);
+    }
+
+    private String tokenText(int node) {
+        return tokenizer.getToken(ast.token(node));
+    }
+}
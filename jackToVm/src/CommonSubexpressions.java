@@ -0,0 +1,356 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * Finds repeated side-effect-free subexpressions within each basic block of a subroutine, so that
+ * the CodeGenerator can compute each one once into a compiler-generated local and push that local
+ * everywhere else the same value is needed.
+ *
+ * Two occurrences have the same value when they have the same shape and no variable (or array
+ * memory) they read was changed between them.  Each variable has a version which is bumped when
+ * it is assigned; calls bump the versions of fields, statics and array memory, since the callee may
+ * change them, but not of locals and arguments.
+ *
+ * An array element read costs a single push when pointer 1 still holds its address from the access
+ * before it (see CodeGenerator.compileArrayRead), so the analysis follows which address pointer 1 holds
+ * as the generated code would, and only counts what each occurrence really costs.
+ */
+public class CommonSubexpressions {
+    // the extra VM commands the first occurrence costs to save its value (pop local, push local)
+    private final static int SAVE_COST = 2;
+
+    private AstArena ast;
+    private JackTokenizer tokenizer;
+    private SymbolTable symbolTable;
+    private int firstTemporary;
+
+    // results: the local each chosen node saves its value to, or pushes its value from
+    private HashMap<Integer, Integer> saveTo = new HashMap<Integer, Integer>();
+    private HashMap<Integer, Integer> reuseFrom = new HashMap<Integer, Integer>();
+    private int temporaries = 0;
+
+    // the state of the basic block being analyzed
+    private HashMap<String, Integer> versions = new HashMap<String, Integer>();
+    private int nextVersion = 1;
+    // the id of each value key, which names the children of a value by their ids rather than spelling them out,
+    // so a key takes the same time to build however large the expression is
+    private HashMap<String, Integer> keyIds = new HashMap<String, Integer>();
+    private LinkedHashMap<Integer, ArrayList<Integer>> occurrences = new LinkedHashMap<Integer, ArrayList<Integer>>();
+    private HashMap<Integer, Integer> costs = new HashMap<Integer, Integer>();
+    private HashMap<Integer, Integer> sizes = new HashMap<Integer, Integer>();
+    // the versioned key of the address pointer 1 holds, as CodeGenerator's thatAddress, or null
+    private String thatAddress;
+    // the calls made so far, counting those of * and /
+    private int calls = 0;
+
+    /**
+     * @param symbolTable - the symbol table, with every variable of the subroutine defined
+     * @param firstTemporary - the local index to number the generated locals from
+     */
+    public CommonSubexpressions(AstArena ast, JackTokenizer tokenizer, SymbolTable symbolTable, int firstTemporary) {
+        this.ast = ast;
+        this.tokenizer = tokenizer;
+        this.symbolTable = symbolTable;
+        this.firstTemporary = firstTemporary;
+    }
+
+    /**
+     * Analyzes a subroutine body.
+     * @param body - the STATEMENTS node of the subroutine
+     * @throws Exception
+     */
+    public void analyze(int body) throws Exception {
+        analyzeStatements(body);
+    }
+
+    /**
+     * Returns the local the value of node should be saved to after it is computed, or -1.
+     */
+    public int saveTo(int node) {
+        return saveTo.containsKey(node) ? saveTo.get(node) : -1;
+    }
+
+    /**
+     * Returns the local the value of node should be pushed from instead of computing it, or -1.
+     */
+    public int reuseFrom(int node) {
+        return reuseFrom.containsKey(node) ? reuseFrom.get(node) : -1;
+    }
+
+    /**
+     * Returns the number of generated locals.
+     */
+    public int temporaries() {
+        return temporaries;
+    }
+
+    /**
+     * Returns the number of subexpression occurrences which will not be computed.
+     */
+    public int eliminated() {
+        return reuseFrom.size();
+    }
+
+    /**
+     * Splits statements into basic blocks: a block ends at every if and while statement.
+     * An if condition is evaluated before the branch, so it ends the block before it;
+     * a while condition is evaluated at the loop's label, so it is a block of its own.
+     */
+    private void analyzeStatements(int statements) throws Exception {
+        for (int statement = ast.firstChild(statements); statement != AstArena.NONE; statement = ast.nextSibling(statement)) {
+            switch (ast.kind(statement)) {
+                case AstArena.LET:
+                    int target = ast.child(statement, 0);
+                    String targetAddress = null;
+                    if (ast.kind(target) == AstArena.INDEX) {
+                        // the element address is computed before the value
+                        visit(ast.child(target, 0));
+                        visit(ast.child(target, 1));
+                        targetAddress = arrayAddress(target);
+                    }
+                    int callsBefore = calls;
+                    visit(ast.child(statement, 1));
+                    if (ast.kind(target) == AstArena.VAR_REF) {
+                        assign(variableKey(target));
+                    }
+                    else {
+                        assign("memory");
+                        // pointer 1 is left at the element stored into, unless the value made a call, or the
+                        // array may hold this object's fields
+                        thatAddress = calls == callsBefore && targetAddress != null && !targetAddress.contains("this ")
+                                ? targetAddress : null;
+                    }
+                    break;
+                case AstArena.DO:
+                    visit(ast.child(statement, 0));
+                    break;
+                case AstArena.RETURN:
+                    if (ast.firstChild(statement) != AstArena.NONE) {
+                        visit(ast.firstChild(statement));
+                    }
+                    break;
+                case AstArena.IF:
+                    visit(ast.child(statement, 0));
+                    endBlock();
+                    analyzeStatements(ast.child(statement, 1));
+                    if (ast.child(statement, 2) != AstArena.NONE) {
+                        analyzeStatements(ast.child(statement, 2));
+                    }
+                    break;
+                case AstArena.WHILE:
+                    endBlock();
+                    visit(ast.child(statement, 0));
+                    endBlock();
+                    analyzeStatements(ast.child(statement, 1));
+                    break;
+            }
+        }
+        endBlock();
+    }
+
+    /**
+     * Records the occurrences under node, in the order the generated code evaluates them.
+     * @return the id of the value key of node, or -1 if evaluating it may have side effects
+     */
+    private int visit(int node) throws Exception {
+        String key = null;
+        int cost = 1;
+        int size = 1;
+
+        switch (ast.kind(node)) {
+            case AstArena.INT_CONST:
+            case AstArena.KEYWORD_CONST:
+                key = tokenText(node);
+                break;
+            case AstArena.VAR_REF:
+                String variable = variableKey(node);
+                key = variable + "@" + version(variable);
+                break;
+            case AstArena.UNARY_OP:
+                int operand = visit(ast.child(node, 0));
+                if (operand >= 0) {
+                    key = "(" + tokenText(node) + " " + operand + ")";
+                    cost += costs.get(ast.child(node, 0));
+                    size += sizes.get(ast.child(node, 0));
+                }
+                break;
+            case AstArena.BINARY_OP:
+                int left = visit(ast.child(node, 0));
+                int right = visit(ast.child(node, 1));
+                if (left >= 0 && right >= 0) {
+                    String operator = tokenText(node);
+                    key = "(" + left + " " + operator + " " + right + ")";
+                    // Math.multiply and Math.divide are side-effect free but far more expensive than one command
+                    cost += costs.get(ast.child(node, 0)) + costs.get(ast.child(node, 1))
+                            + (operator.equals("*") || operator.equals("/") ? 20 : 0);
+                    size += sizes.get(ast.child(node, 0)) + sizes.get(ast.child(node, 1));
+                }
+                if (tokenText(node).equals("*") || tokenText(node).equals("/")) {
+                    // still calls, which may leave pointer 1 anywhere
+                    calls++;
+                    thatAddress = null;
+                }
+                break;
+            case AstArena.INDEX:
+                int array = visit(ast.child(node, 0));
+                int index = visit(ast.child(node, 1));
+                String address = arrayAddress(node);
+                if (array >= 0 && index >= 0) {
+                    key = "(" + array + "[" + index + "]@" + version("memory") + ")";
+                    if (address != null && address.equals(thatAddress)) {
+                        // just push that
+                        cost = 1;
+                    }
+                    else {
+                        cost += costs.get(ast.child(node, 0)) + costs.get(ast.child(node, 1)) + 2;
+                    }
+                    size += sizes.get(ast.child(node, 0)) + sizes.get(ast.child(node, 1));
+                }
+                thatAddress = address;
+                break;
+            case AstArena.CALL:
+                for (int argument = ast.firstChild(ast.child(node, 0)); argument != AstArena.NONE; argument = ast.nextSibling(argument)) {
+                    visit(argument);
+                }
+                call();
+                break;
+            case AstArena.STRING_CONST:
+                // every evaluation allocates a new String (or may, when pooled)
+                call();
+                break;
+        }
+
+        if (key == null) {
+            return -1;
+        }
+        Integer id = keyIds.get(key);
+        if (id == null) {
+            id = keyIds.size();
+            keyIds.put(key, id);
+        }
+        costs.put(node, cost);
+        sizes.put(node, size);
+        int kind = ast.kind(node);
+        if (kind == AstArena.BINARY_OP || kind == AstArena.UNARY_OP || kind == AstArena.INDEX) {
+            if (!occurrences.containsKey(id)) {
+                occurrences.put(id, new ArrayList<Integer>());
+            }
+            occurrences.get(id).add(node);
+        }
+        return id;
+    }
+
+    /**
+     * Chooses which repeated subexpressions of the finished block to keep in locals, largest first:
+     * once a subexpression is reused, the occurrences inside its reused copies are never evaluated,
+     * so they no longer count towards repeating the smaller subexpressions.
+     */
+    private void endBlock() {
+        ArrayList<Integer> candidates = new ArrayList<Integer>(occurrences.keySet());
+        candidates.sort((a, b) -> sizes.get(occurrences.get(b).get(0)) - sizes.get(occurrences.get(a).get(0)));
+
+        HashSet<Integer> notEvaluated = new HashSet<Integer>();
+        for (int key : candidates) {
+            ArrayList<Integer> evaluated = new ArrayList<Integer>();
+            for (int node : occurrences.get(key)) {
+                if (!notEvaluated.contains(node)) {
+                    evaluated.add(node);
+                }
+            }
+
+            // what pushing the local instead saves at each occurrence after the first
+            int saved = 0;
+            for (int i = 1; i < evaluated.size(); i++) {
+                saved += costs.get(evaluated.get(i)) - 1;
+            }
+            if (saved <= SAVE_COST) {
+                continue;
+            }
+
+            int temporary = firstTemporary + temporaries++;
+            saveTo.put(evaluated.get(0), temporary);
+            for (int i = 1; i < evaluated.size(); i++) {
+                reuseFrom.put(evaluated.get(i), temporary);
+                markNotEvaluated(evaluated.get(i), notEvaluated);
+            }
+        }
+
+        occurrences.clear();
+        costs.clear();
+        sizes.clear();
+        // blocks start at labels, where pointer 1 may hold anything
+        thatAddress = null;
+    }
+
+    private void markNotEvaluated(int node, HashSet<Integer> notEvaluated) {
+        for (int child = ast.firstChild(node); child != AstArena.NONE; child = ast.nextSibling(child)) {
+            notEvaluated.add(child);
+            markNotEvaluated(child, notEvaluated);
+        }
+    }
+
+    /**
+     * Gives a variable (or "memory", for array elements) a new version.
+     */
+    private void assign(String variable) {
+        versions.put(variable, nextVersion++);
+    }
+
+    /**
+     * A call may change any field, static variable or array element, but not the caller's locals and arguments.
+     */
+    private void call() {
+        for (String variable : new ArrayList<String>(versions.keySet())) {
+            if (!variable.startsWith("local ") && !variable.startsWith("argument ")) {
+                assign(variable);
+            }
+        }
+        assign("memory");
+        calls++;
+        thatAddress = null;
+    }
+
+    /**
+     * Returns the versioned key of the address CodeGenerator.arrayAddress keeps in pointer 1 for an INDEX
+     * node: that of its array variable, plus that of its index variable if the index is not a constant;
+     * or null if it keeps none.
+     */
+    private String arrayAddress(int index) throws Exception {
+        int array = ast.child(index, 0);
+        int indexExpression = ast.child(index, 1);
+        if (ast.kind(array) != AstArena.VAR_REF) {
+            return null;
+        }
+
+        String address = variableKey(array) + "@" + version(variableKey(array));
+        switch (ast.kind(indexExpression)) {
+            case AstArena.INT_CONST:
+                return address;
+            case AstArena.VAR_REF:
+                return address + " + " + variableKey(indexExpression) + "@" + version(variableKey(indexExpression));
+            default:
+                return null;
+        }
+    }
+
+    private int version(String variable) {
+        if (!versions.containsKey(variable)) {
+            versions.put(variable, 0);
+        }
+        return versions.get(variable);
+    }
+
+    private String variableKey(int node) throws Exception {
+        String name = tokenText(node);
+        if (symbolTable.kindOf(name).equals("NONE")) {
+            throw new Exception("ERROR: undefined variable " + name);
+        }
+        return SymbolTable.convertSegmentName(symbolTable.kindOf(name)) + " " + symbolTable.indexOf(name);
+    }
+
+    private String tokenText(int node) {
+        return tokenizer.getToken(ast.token(node));
+    }
+}
@@ -1,50 +1,112 @@
 import java.io.File;
 import java.io.FileWriter;
+import java.util.Arrays;
 
 public class CompilationEngine {
     private JackTokenizer tokenizer;
-    private String xml = "";
-    private SymbolTable symbolTable = new SymbolTable();
+    private StringBuilder xml = new StringBuilder();
+    private AstArena ast = new AstArena();
     private VMWriter vmWriter;
+    // compile expressions by recursive descent (see compileExpressionRecursively)
+    private boolean recursiveExpressions;
+
+    // the kinds of frame on the expression stack: an expression being compiled, or a term waiting for one inside it
+    private final static int EXPRESSION_FRAME = 0;   // node: the expression so far; operand: the operator after it, or NONE
+    private final static int PARENTHESES_FRAME = 1;  // waiting for the expression in the parentheses
+    private final static int UNARY_FRAME = 2;        // node: the UNARY_OP waiting for its operand
+    private final static int ARGUMENTS_FRAME = 3;    // node: the CALL; operand: its EXPRESSION_LIST, waiting for the next argument
+    private final static int INDEX_FRAME = 4;        // node: the INDEX waiting for its index expression
+
+    // the expression stack, one frame for each level of nesting in the expression being compiled
+    private int[] frameKind = new int[16];
+    private int[] frameNode = new int[16];
+    private int[] frameOperand = new int[16];
+    private int frames = 0;
 
-    public CompilationEngine(File inFile, File outFile) throws Exception {
-        // create a tokenizer object
-        tokenizer = new JackTokenizer(inFile);
+    /**
+     * Compiles inFile, writing its parse tree to outFile and its VM code to vmOutFile.
+     * If outFile is null, the parse tree is not written; if vmOutFile is null, the VM code is only
+     * kept in memory (see getVMInstructions).
+     */
+    public CompilationEngine(File inFile, File outFile, File vmOutFile, CompilerOptions options) throws Exception {
+        this(new JackTokenizer(inFile), outFile, vmOutFile, options);
+    }
+
+    /**
+     * Compiles Jack source text which has already been read, keeping its parse tree and VM code in memory
+     * (see getXml and getVMInstructions).
+     * @param fileName - the name of the file the text was read from
+     */
+    public CompilationEngine(String fileName, String source, CompilerOptions options) throws Exception {
+        this(new JackTokenizer(fileName, source), null, null, options);
+    }
+
+    private CompilationEngine(JackTokenizer tokenizer, File outFile, File vmOutFile, CompilerOptions options) throws Exception {
+        this.tokenizer = tokenizer;
+        recursiveExpressions = options.recursiveExpressions;
 
         // move tokenizer to first token
         ensureMoreTokensAndAdvance();
 
-         vmWriter = new VMWriter(outFile);
+        // the parse builds the syntax tree; VM code is generated afterwards by walking it
+        int fileNode = ast.add(AstArena.FILE, AstArena.NONE);
 
         // at this level of the program, we are outside all class declarations,
         // so if the tokenizer has more tokens, it had better be a class declaration, so compile the class
         while (tokenizer.hasMoreTokens()) {
-           compileClass();
+           compileClass(fileNode);
         }
 
-        System.out.println("class compiled");
-
-        System.out.println("VM CODE:");
-        vmWriter.printVMCode();
+        if (!options.quiet) {
+            options.log.println("class compiled");
+        }
 
         // write output file
-        FileWriter writer = new FileWriter(outFile);
-        writer.write(xml);
-        writer.close();
+        if (outFile != null) {
+            FileWriter writer = new FileWriter(outFile);
+            writer.write(xml.toString());
+            writer.close();
 
-        System.out.println("file written with XML");
+            if (!options.quiet) {
+                options.log.println("file written with XML");
+            }
+        }
+
+        vmWriter = new VMWriter(vmOutFile);
+        new CodeGenerator(ast, tokenizer, vmWriter, options).compileFile();
+        vmWriter.close();
+
+        if (vmOutFile != null && !options.quiet) {
+            options.log.println("file written with VM code");
+        }
+    }
+
+    /**
+     * Returns the parse tree, as XML.
+     */
+    public String getXml() {
+        return xml.toString();
+    }
+
+    /**
+     * Returns the compiled VM code.
+     */
+    public VMInstructions getVMInstructions() {
+        return vmWriter.getInstructions();
     }
 
     /**
      * Recursively compiles an entire class.
      * @precondition - tokenizer advanced to 'class' token at beginning of class declaration
      * @postcondition - tokenizer advanced past } token ending class
+     * @param parent - the syntax tree node to add the class node to
      * @throws Exception
      */
-    public void compileClass() throws Exception {
+    public void compileClass(int parent) throws Exception {
         addToXml("<class><keyword>class</keyword>");
 
         getTokenIdentifierAndAddToXml(true);
+        int classNode = ast.add(parent, AstArena.CLASS, tokenizer.currentTokenIndex());
         ensureSymbolValueAndAddXml('{', true);
 
         // for every block of code until we reach the } ending the class:
@@ -55,11 +117,11 @@ public class CompilationEngine {
                 case "METHOD":
                 case "FUNCTION":
                 case "CONSTRUCTOR":
-                    compileSubroutine();
+                    compileSubroutine(classNode);
                     break;
                 case "FIELD":
                 case "STATIC":
-                    compileClassVarDec();
+                    compileClassVarDec(classNode);
                     break;
                 default:
                     throw new Exception("Error: unexpected token found where one of the following must be: 'method', 'function', 'constructor', 'field', or 'static' (or } to end class).");
@@ -78,23 +140,24 @@ public class CompilationEngine {
     /**
      * @precondition - tokenizer advanced to 'method', 'function', or 'constructor' keyword starting subroutine dec
      * @postcondition - tokenizer advanced immediately past } closing subroutine dec
+     * @param parent - the class node to add the subroutine node to
      * @throws Exception
      */
-    public void compileSubroutine() throws Exception {
+    public void compileSubroutine(int parent) throws Exception {
         addToXml("<subroutineDec><keyword>" + tokenizer.keyWord().toLowerCase() + "</keyword>");
 
-        symbolTable.startSubroutine();
+        int subroutineNode = ast.add(parent, AstArena.SUBROUTINE_DEC, tokenizer.currentTokenIndex());
 
         // subroutine dec parentheticals
         getTokenTypeNameAndAddToXml(true);
         getTokenIdentifierAndAddToXml(true);
         ensureSymbolValueAndAddXml('(', true);
-        compileParameterList();
+        compileParameterList(subroutineNode);
         ensureSymbolValueAndAddXml(')');
 
         // subroutine body
         ensureSymbolValueAndAddXml('{', true);
-        compileStatements();
+        compileStatements(subroutineNode);
         ensureSymbolValueAndAddXml('}');
 
         ensureMoreTokensAndAdvance();
@@ -104,23 +167,24 @@ public class CompilationEngine {
     /**
      * @precondition - tokenizer advanced to ( starting parameter list
      * @postcondition - tokenizer advanced to ) closing parameter list
+     * @param parent - the subroutine node to add the parameter list node to
      * @throws Exception
      */
-    public void compileParameterList() throws Exception {
+    public void compileParameterList(int parent) throws Exception {
         addToXml("<parameterList>");
 
+        int parameterListNode = ast.add(parent, AstArena.PARAMETER_LIST, tokenizer.currentTokenIndex());
+
         ensureTokenType("SYMBOL", false);
         while (tokenizer.symbol() != ')') {
             ensureMoreTokensAndAdvance();
             // if this is the close parenthesis, we're done here
             if (tokenizer.tokenType().equals("SYMBOL") && tokenizer.symbol() == ')') continue;
             // if it isn't ), it should be a type
-            String type = getTokenTypeNameAndAddToXml(false);
-
-            String identifier = getTokenIdentifierAndAddToXml(true);
+            getTokenTypeNameAndAddToXml(false);
 
-            // add this argument to the symbol table
-            symbolTable.define(identifier, type, "ARG");
+            getTokenIdentifierAndAddToXml(true);
+            ast.add(parameterListNode, AstArena.PARAMETER, tokenizer.currentTokenIndex());
 
             ensureTokenType("SYMBOL", true);
             if (tokenizer.symbol() != ',' && tokenizer.symbol() != ')') {
@@ -135,181 +199,409 @@ public class CompilationEngine {
     }
 
     /**
-     * Tokenizer index should be on the first token of this term once this function is entered.
+     * Compiles an expression without recursing into the terms and expressions nested in it, so its nesting
+     * is limited by memory rather than the thread's stack: each term or expression waiting for one inside it
+     * is a frame on the expression stack.  The syntax tree, XML and errors are those of a recursive descent,
+     * in which an expression is terms separated by binary operators, and a term is a constant, variable,
+     * array element, call, unary operator and term, or expression in parentheses.
      * @precondition: tokenizer advanced to first token of expression
      * @postcondition: tokenizer advanced to first token after expression
+     * @return the syntax tree node of the expression
      * @throws Exception
      */
-    public void compileExpression() throws Exception {
-        addToXml("<expression>");
-
-        compileTerm();
+    public int compileExpression() throws Exception {
+        if (recursiveExpressions) {
+            return compileExpressionRecursively();
+        }
+        int base = frames;
+        openExpression();
+
+        terms:
+        while (true) {
+            int value = startTerm();
+            if (value == AstArena.NONE) {
+                // the term is waiting for another term or expression inside it
+                continue;
+            }
 
-        boolean isBinaryOperation = true; // assume the symbol we encounter is a binary operation
+            // pass the finished term up the stack, finishing the frames waiting for it, until a frame needs another term
+            boolean isTerm = true;
+            while (true) {
+                int top = frames - 1;
+                if (isTerm) {
+                    addToXml("</term>");
+                    if (frameKind[top] == UNARY_FRAME) {
+                        ast.appendChild(frameNode[top], value);
+                        value = frameNode[top];
+                        frames--;
+                        continue;
+                    }
 
-        // if this is a symbol [that doesn't end the line of code, ;, or a syntactic construction, like )]
-        while (tokenizer.tokenType().equals("SYMBOL") && isBinaryOperation) {
-            String symbolName = "";
-            String command = "";
+                    // Jack has no operator precedence, so the expression so far becomes the left operand
+                    int operation = frameOperand[top];
+                    if (operation != AstArena.NONE) {
+                        ast.appendChild(operation, frameNode[top]);
+                        ast.appendChild(operation, value);
+                        value = operation;
+                    }
+                    frameNode[top] = value;
 
-            switch (tokenizer.symbol()) {
-                case '&':
-                    symbolName = "&amp;";
-                    command = "and";
-                    break;
-                case '<':
-                    symbolName = "&lt;";
-                    command = "lt";
-                    break;
-                case '>':
-                    symbolName = "&gt;";
-                    command = "gt";
-                    break;
-                case '+':
-                    command = "add";
-                    symbolName = "" + tokenizer.symbol();
-                    break;
-                case '-':
-                    command = "sub";
-                    symbolName = "" + tokenizer.symbol();
-                    break;
-                case '*':
-                    command = "call Math.multiply 2";
-                    symbolName = "" + tokenizer.symbol();
-                    break;
-                case '/':
-                    command = "call Math.divide 2";
-                    symbolName = "" + tokenizer.symbol();
-                    break;
-                case '|':
-                    command = "or";
-                    symbolName = "" + tokenizer.symbol();
-                    break;
-                case '=':
-                    command = "eq";
-                    symbolName = "" + tokenizer.symbol();
-                    break;
-                default:
-                    isBinaryOperation = false; // if it wasn't one of these symbols, it's not a binary operation
-                    break;
-            }
+                    // if a binary operation follows, add its symbol to the xml and compile the term after it
+                    String symbolName = binaryOperatorXml();
+                    if (symbolName != null) {
+                        addToXml("<symbol>" + symbolName + "</symbol>");
+                        frameOperand[top] = ast.add(AstArena.BINARY_OP, tokenizer.currentTokenIndex());
+                        ensureMoreTokensAndAdvance();
+                        continue terms;
+                    }
 
-            // if this is a binary operation, add its symbol to the xml and compile the term after it
-            if (isBinaryOperation) {
-                addToXml("<symbol>" + symbolName + "</symbol>");
-                ensureMoreTokensAndAdvance();
-                compileTerm();
+                    addToXml("</expression>");
+                    frames--;
+                    if (frames == base) {
+                        return value;
+                    }
+                    isTerm = false;
+                    continue;
+                }
 
-                // now that the two operatee terms have been written, write the command
-                vmWriter.writeArithmetic(command);
+                // an expression inside a term is finished
+                switch (frameKind[top]) {
+                    case PARENTHESES_FRAME:
+                        // parentheses only group, so the term is the enclosed expression itself
+                        ensureSymbolValueAndAddXml(')');
+                        ensureMoreTokensAndAdvance();
+                        break;
+                    case ARGUMENTS_FRAME:
+                        ast.appendChild(frameOperand[top], value);
+                        ensureTokenType("SYMBOL");
+                        if (tokenizer.symbol() != ')') {
+                            ensureSymbolValueAndAddXml(',', false);
+                            ensureMoreTokensAndAdvance();
+                        }
+                        if (!isSymbol(')')) {
+                            openExpression();
+                            continue terms;
+                        }
+                        value = frameNode[top];
+                        finishSubroutineCall();
+                        break;
+                    case INDEX_FRAME:
+                        ast.appendChild(frameNode[top], value);
+                        ensureSymbolValueAndAddXml(']');
+                        ensureMoreTokensAndAdvance();
+                        // each further [] indexes into the result of the one before it
+                        if (isSymbol('[')) {
+                            int index = ast.add(AstArena.INDEX, tokenizer.currentTokenIndex());
+                            ensureMoreTokensAndAdvance();
+                            ast.appendChild(index, frameNode[top]);
+                            frameNode[top] = index;
+                            openExpression();
+                            continue terms;
+                        }
+                        value = frameNode[top];
+                        break;
+                }
+                frames--;
+                isTerm = true;
             }
         }
+    }
 
+    /**
+     * Compiles an expression by recursive descent, as compileExpression did before it kept an explicit stack,
+     * so its nesting is limited by the thread's stack.  It is kept as the reference ExpressionBenchmark times
+     * compileExpression against, and builds the same syntax tree and XML.
+     * @precondition: tokenizer advanced to first token of expression
+     * @postcondition: tokenizer advanced to first token after expression
+     * @return the syntax tree node of the expression
+     * @throws Exception
+     */
+    private int compileExpressionRecursively() throws Exception {
+        addToXml("<expression>");
+
+        int expression = compileTerm();
+
+        // if a binary operation follows, add its symbol to the xml and compile the term after it
+        String symbolName;
+        while ((symbolName = binaryOperatorXml()) != null) {
+            addToXml("<symbol>" + symbolName + "</symbol>");
+            int operation = ast.add(AstArena.BINARY_OP, tokenizer.currentTokenIndex());
+            ensureMoreTokensAndAdvance();
+            int right = compileTerm();
+
+            // Jack has no operator precedence, so the expression so far becomes the left operand
+            ast.appendChild(operation, expression);
+            ast.appendChild(operation, right);
+            expression = operation;
+        }
 
         addToXml("</expression>");
+        return expression;
     }
 
     /**
-     * Tokenizer index should be on the first token of this term once this function is entered.
+     * Compiles a term by recursive descent, for compileExpressionRecursively.
+     * @precondition: tokenizer advanced to first token of the term
      * @postcondition: advances tokenizer to first token after term compiled
+     * @return the syntax tree node of the term
      * @throws Exception
      */
-    public void compileTerm() throws Exception {
+    private int compileTerm() throws Exception {
+        if (tokenizer.tokenType().equals("SYMBOL")) {
+            addToXml("<term>");
+            int term;
+            // if the symbol is a unary operation, add the symbol to the xml
+            // then advance and compile the term it is operating on
+            if (tokenizer.symbol() == '-' || tokenizer.symbol() == '~') {
+                addToXml("<symbol>" + tokenizer.symbol() + "</symbol>");
+                term = ast.add(AstArena.UNARY_OP, tokenizer.currentTokenIndex());
+                ensureMoreTokensAndAdvance();
+                ast.appendChild(term, compileTerm());
+            }
+            // the only other token that may start a term is a ( open parenthesis
+            else {
+                ensureSymbolValueAndAddXml('(');
+                ensureMoreTokensAndAdvance();
+                // parentheses only group, so the term is the enclosed expression itself
+                term = compileExpressionRecursively();
+                ensureSymbolValueAndAddXml(')');
+                ensureMoreTokensAndAdvance();
+            }
+            addToXml("</term>");
+            return term;
+        }
+        if (tokenizer.tokenType().equals("IDENTIFIER")) {
+            addToXml("<term>");
+            addToXml("<identifier>" + tokenizer.identifier() + "</identifier>");
+            int identifierToken = tokenizer.currentTokenIndex();
+
+            // if it is an identifier, compile possible subroutine call or [] array indexing notation
+            ensureMoreTokensAndAdvance();
+            int term;
+            if (isSymbol('(') || isSymbol('.')) {
+                term = compileSubroutineCall(identifierToken);
+            }
+            else {
+                term = ast.add(AstArena.VAR_REF, identifierToken);
+                if (isSymbol('[')) {
+                    term = compileArrayIndexing(term);
+                }
+            }
+            addToXml("</term>");
+            return term;
+        }
+
+        // a constant or keyword has nothing inside it, so it is compiled as compileExpression compiles it
+        int term = startTerm();
+        addToXml("</term>");
+        return term;
+    }
+
+    /**
+     * Starts compiling the term at the tokenizer.
+     * @postcondition: tokenizer advanced to first token after the term, or to the first token of the term or
+     * expression inside it
+     * @return the syntax tree node of the term, or NONE if it is waiting for the term or expression inside it,
+     * for which a frame has been pushed
+     * @throws Exception
+     */
+    private int startTerm() throws Exception {
         addToXml("<term>");
 
+        int term;
+
         // see what the first token is
         switch (tokenizer.tokenType()) {
 
             case "SYMBOL":
                 // if the symbol is a unary operation, add the symbol to the xml
-                // then advance and compile the term it is operating on
+                // then advance to the term it is operating on
                 if (tokenizer.symbol() == '-' || tokenizer.symbol() == '~') {
                     addToXml("<symbol>" + tokenizer.symbol() + "</symbol>");
-
+                    pushFrame(UNARY_FRAME, ast.add(AstArena.UNARY_OP, tokenizer.currentTokenIndex()), AstArena.NONE);
                     ensureMoreTokensAndAdvance();
-                    compileTerm();
-
-                    // write the VM code for the unary operation
-                    switch (tokenizer.symbol()) {
-                        case '-':
-                            vmWriter.writeArithmetic("neg");
-                            break;
-                        case '~':
-                            vmWriter.writeArithmetic("not");
-                            break;
-                    }
-
                 }
                 // the only other token that may start a term is a ( open parenthesis
                 else {
                     ensureSymbolValueAndAddXml('(');
                     ensureMoreTokensAndAdvance();
-                    compileExpression();
-                    ensureSymbolValueAndAddXml(')');
-                    ensureMoreTokensAndAdvance();
-                    break;
+                    pushFrame(PARENTHESES_FRAME, AstArena.NONE, AstArena.NONE);
+                    openExpression();
                 }
+                return AstArena.NONE;
             case "INT_CONST":
                 int number = tokenizer.intVal();
                 addToXml("<integerConstant>" + number + "</integerConstant>");
-                vmWriter.writePush("constant", number);
+                term = ast.add(AstArena.INT_CONST, tokenizer.currentTokenIndex());
                 ensureMoreTokensAndAdvance();
-                break;
+                return term;
             case "STRING_CONST":
                 addToXml("<stringConstant>" + tokenizer.stringVal() + "</stringConstant>");
-                // TODO: VM CODE FOR STRING CONSTANTS
+                term = ast.add(AstArena.STRING_CONST, tokenizer.currentTokenIndex());
                 ensureMoreTokensAndAdvance();
-                break;
+                return term;
             case "IDENTIFIER":
                 String identifier = tokenizer.identifier();
                 addToXml("<identifier>" + identifier + "</identifier>");
+                int identifierToken = tokenizer.currentTokenIndex();
 
-                vmWriter.writePush(SymbolTable.convertSegmentName(symbolTable.kindOf(identifier)), symbolTable.indexOf(identifier));
-
-                // if it is an identifier, compile possible . class membership notation and [] array indexing notation
+                // if it is an identifier, compile possible subroutine call or [] array indexing notation
                 ensureMoreTokensAndAdvance();
-                if (tokenizer.tokenType().equals("SYMBOL") && (tokenizer.symbol() == '[' || tokenizer.symbol() == '.')) {
-                    compileArrayIndexingAndClassMembershipNotation(); // TODO: HANDLE ARRAYS VM CODE
+                if (isSymbol('(') || isSymbol('.')) {
+                    int call = startSubroutineCall(identifierToken);
+                    addToXml("<expressionList>");
+                    int expressionList = ast.add(call, AstArena.EXPRESSION_LIST, tokenizer.currentTokenIndex());
+                    if (isSymbol(')')) {
+                        finishSubroutineCall();
+                        return call;
+                    }
+                    pushFrame(ARGUMENTS_FRAME, call, expressionList);
+                    openExpression();
+                    return AstArena.NONE;
                 }
 
-                if (tokenizer.tokenType().equals("SYMBOL") && tokenizer.symbol() == '(') {
-                    addToXml("<symbol>(</symbol>");
-                    ensureMoreTokensAndAdvance();
-                    compileExpressionList();
-                    ensureSymbolValueAndAddXml(')');
+                term = ast.add(AstArena.VAR_REF, identifierToken);
+                if (isSymbol('[')) {
+                    addToXml("<symbol>[</symbol>");
+                    int index = ast.add(AstArena.INDEX, tokenizer.currentTokenIndex());
                     ensureMoreTokensAndAdvance();
+                    ast.appendChild(index, term);
+                    pushFrame(INDEX_FRAME, index, AstArena.NONE);
+                    openExpression();
+                    return AstArena.NONE;
                 }
-
-                break;
+                return term;
             case "KEYWORD":
                 // only the following keywords are allowed
                 switch (tokenizer.keyWord()) {
                     case "TRUE":
-                        vmWriter.writePush("constant", -1);
                     case "FALSE":
                     case "NULL":
                     case "THIS":
                         addToXml("<keyword>" + tokenizer.keyWord().toLowerCase() + "</keyword>");
+                        term = ast.add(AstArena.KEYWORD_CONST, tokenizer.currentTokenIndex());
                         ensureMoreTokensAndAdvance();
-                        break;
+                        return term;
 
                     default:
                         throw new Exception("ERROR: Unexpected keyword in expression: " + tokenizer.keyWord());
                 }
-                break;
+            default:
+                throw new Exception("ERROR: Unexpected token in expression: " + tokenizer.getCurrentToken());
         }
+    }
 
-        addToXml("</term>");
+    /**
+     * Starts an expression, as a frame on the expression stack.
+     */
+    private void openExpression() {
+        addToXml("<expression>");
+        pushFrame(EXPRESSION_FRAME, AstArena.NONE, AstArena.NONE);
+    }
+
+    private void pushFrame(int kind, int node, int operand) {
+        if (frames == frameKind.length) {
+            int capacity = frames * 2;
+            frameKind = Arrays.copyOf(frameKind, capacity);
+            frameNode = Arrays.copyOf(frameNode, capacity);
+            frameOperand = Arrays.copyOf(frameOperand, capacity);
+        }
+        frameKind[frames] = kind;
+        frameNode[frames] = node;
+        frameOperand[frames] = operand;
+        frames++;
+    }
+
+    /**
+     * Returns the XML of the current token if it is a binary operator, or null if it is not.
+     */
+    private String binaryOperatorXml() {
+        if (!tokenizer.tokenType().equals("SYMBOL")) {
+            return null;
+        }
+        switch (tokenizer.symbol()) {
+            case '&':
+                return "&amp;";
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '+':
+            case '-':
+            case '*':
+            case '/':
+            case '|':
+            case '=':
+                return "" + tokenizer.symbol();
+            default:
+                return null;
+        }
+    }
+
+    private boolean isSymbol(char symbol) {
+        return tokenizer.tokenType().equals("SYMBOL") && tokenizer.symbol() == symbol;
+    }
+
+    /**
+     * Compiles a call of the form subroutine(expressionList) or qualifier.subroutine(expressionList).
+     * @precondition: tokenizer is advanced to the . or ( after the first identifier of the call
+     * @postcondition: tokenizer is advanced to the first token after the ) closing the call
+     * @param identifierToken - the token index of the first identifier of the call
+     * @return the CALL syntax tree node
+     * @throws Exception
+     */
+    private int compileSubroutineCall(int identifierToken) throws Exception {
+        int call = startSubroutineCall(identifierToken);
+        compileExpressionList(call);
+        ensureSymbolValueAndAddXml(')');
+        ensureMoreTokensAndAdvance();
+        return call;
+    }
+
+    /**
+     * @precondition: tokenizer is advanced to the . or ( after the first identifier of the call
+     * @postcondition: tokenizer is advanced to the first token after the ( opening the expression list
+     * @return the CALL syntax tree node, without its expression list
+     * @throws Exception
+     */
+    private int startSubroutineCall(int identifierToken) throws Exception {
+        if (tokenizer.symbol() == '.') {
+            addToXml("<symbol>.</symbol>");
+            // add function identifier to xml
+            getTokenIdentifierAndAddToXml(true);
+
+            ensureMoreTokensAndAdvance();
+        }
+
+        ensureSymbolValueAndAddXml('(');
+        ensureMoreTokensAndAdvance();
+
+        return ast.add(AstArena.CALL, identifierToken);
+    }
+
+    /**
+     * Finishes a call in an expression, whose expression list has been compiled.
+     * @precondition: tokenizer is advanced to the ) closing the call
+     * @postcondition: tokenizer is advanced to the first token after the )
+     * @throws Exception
+     */
+    private void finishSubroutineCall() throws Exception {
+        addToXml("</expressionList>");
+        ensureSymbolValueAndAddXml(')');
+        ensureMoreTokensAndAdvance();
     }
 
     /**
      * @precondition: tokenizer is advanced to { symbol starting statements
      * @postcondition: tokenizer is advanced to first token after } closing statements
+     * @param parent - the syntax tree node to add the statements node to
      * @throws Exception
      */
-    public void compileStatements() throws Exception {
+    public void compileStatements(int parent) throws Exception {
         addToXml("<statements>");
 
+        int statements = ast.add(parent, AstArena.STATEMENTS, tokenizer.currentTokenIndex());
+
         ensureMoreTokensAndAdvance();
 
         // repeat until we reach the } closing the statements segment
@@ -318,22 +610,22 @@ public class CompilationEngine {
             ensureTokenType("KEYWORD");
             switch (tokenizer.keyWord()) {
                 case "LET":
-                    compileLet();
+                    compileLet(statements);
                     break;
                 case "IF":
-                    compileIf();
+                    compileIf(statements);
                     break;
                 case "VAR":
-                    compileVarDec();
+                    compileVarDec(statements);
                     break;
                 case "WHILE":
-                    compileWhile();
+                    compileWhile(statements);
                     break;
                 case "DO":
-                    compileDo();
+                    compileDo(statements);
                     break;
                 case "RETURN":
-                    compileReturn();
+                    compileReturn(statements);
                     break;
                 default:
                     throw new Exception("ERROR: invalid keyword at beginning of statement in a subroutine declaration.");
@@ -346,31 +638,23 @@ public class CompilationEngine {
     /**
      * @precondition: tokenizer is advanced to 'do' keyword starting do statement
      * @postcondition: tokenizer is advanced to first token after ; closing do statement
+     * @param parent - the STATEMENTS node to add the statement node to
      * @throws Exception
      */
-    public void compileDo() throws Exception {
+    public void compileDo(int parent) throws Exception {
         addToXml("<doStatement><keyword>do</keyword>");
 
+        int doStatement = ast.add(parent, AstArena.DO, tokenizer.currentTokenIndex());
+
         // the first token should be a class/object identifier for function or class/obj with function to call
         getTokenIdentifierAndAddToXml(true);
+        int identifierToken = tokenizer.currentTokenIndex();
 
         // next token is either . [in Object.function()] or ( [in function()]
         ensureTokenType("SYMBOL", true);
-        if (tokenizer.symbol() == '.') {
-            addToXml("<symbol>.</symbol>");
-            // add function identifier to xml
-            getTokenIdentifierAndAddToXml(true);
+        ast.appendChild(doStatement, compileSubroutineCall(identifierToken));
 
-            ensureMoreTokensAndAdvance();
-        }
-
-        ensureSymbolValueAndAddXml('(');
-        ensureMoreTokensAndAdvance();
-
-        compileExpressionList();
-
-        ensureSymbolValueAndAddXml(')', false);
-        ensureSymbolValueAndAddXml(';', true);
+        ensureSymbolValueAndAddXml(';', false);
         ensureMoreTokensAndAdvance();
 
         addToXml("</doStatement>");
@@ -379,12 +663,14 @@ public class CompilationEngine {
     /**
      * @precondition: tokenizer is advanced to first token in expression list or the ) immediatly after it
      * @postcondition: tokenizer is advanced to the ) immediately after the expression list
+     * @param parent - the CALL node to add the expression list node to
      * @throws Exception
      */
-    public void compileExpressionList() throws Exception {
+    public void compileExpressionList(int parent) throws Exception {
         addToXml("<expressionList>");
+        int expressionList = ast.add(parent, AstArena.EXPRESSION_LIST, tokenizer.currentTokenIndex());
         while (!(tokenizer.tokenType().equals("SYMBOL") && tokenizer.symbol() == ')')) {
-            compileExpression();
+            ast.appendChild(expressionList, compileExpression());
             ensureTokenType("SYMBOL");
             if (tokenizer.symbol() != ')') {
                 ensureSymbolValueAndAddXml(',', false);
@@ -397,14 +683,18 @@ public class CompilationEngine {
     /**
      * @precondition: tokenizer is advanced to the 'let' token beginning let statement
      * @postcondition: tokenizer is advanced to the token immediately after the ; ending let statmeent
+     * @param parent - the STATEMENTS node to add the statement node to
      * @throws Exception
      */
-    public void compileLet() throws Exception {
+    public void compileLet(int parent) throws Exception {
         addToXml("<letStatement><keyword>let</keyword>");
 
+        int letStatement = ast.add(parent, AstArena.LET, tokenizer.currentTokenIndex());
+
         // this statement looks like:
-        // let IDENTIFIER||this(([EXPRESSION])* (.IDENTIFIER)*)* = EXPRESSION;
+        // let IDENTIFIER||this([EXPRESSION])* = EXPRESSION;
 
+        int target;
         ensureMoreTokensAndAdvance();
         if (tokenizer.tokenType().equals("KEYWORD")) {
             if (tokenizer.keyWord() != "THIS") {
@@ -412,20 +702,23 @@ public class CompilationEngine {
             }
 
             addToXml("<keyword>this</keyword>");
+            target = ast.add(AstArena.KEYWORD_CONST, tokenizer.currentTokenIndex());
         }
         else {
             getTokenIdentifierAndAddToXml(false);
+            target = ast.add(AstArena.VAR_REF, tokenizer.currentTokenIndex());
         }
 
         ensureTokenType("SYMBOL", true);
 
-        if (tokenizer.tokenType().equals("SYMBOL") && (tokenizer.symbol() == '[' || tokenizer.symbol() == '.')) {
-            compileArrayIndexingAndClassMembershipNotation();
+        if (tokenizer.tokenType().equals("SYMBOL") && tokenizer.symbol() == '[') {
+            target = compileArrayIndexing(target);
         }
+        ast.appendChild(letStatement, target);
 
         ensureSymbolValueAndAddXml('=', false);
         ensureMoreTokensAndAdvance();
-        compileExpression();
+        ast.appendChild(letStatement, compileExpression());
         ensureSymbolValueAndAddXml(';', false);
         ensureMoreTokensAndAdvance();
 
@@ -433,40 +726,38 @@ public class CompilationEngine {
     }
 
     /**
-     * @precondition - tokenizer is advanced to first token which is either a . opening class membership notation or [ opening array indexing notation
+     * @precondition - tokenizer is advanced to the [ opening array indexing notation
      * @postcondition - tokenizer is advanced past last ] closing array indexing
      * (multidimensional array indexing supported: eg. array[2][4])
+     * @param array - the syntax tree node of the array being indexed
+     * @return the INDEX syntax tree node of the outermost indexing
      * @throws Exception
      */
-    private void compileArrayIndexingAndClassMembershipNotation() throws Exception {
-        // check whether we have [] array indexing syntax
-        // or . syntax to access class elements
-        // repeat this until we pass all such constructions
-        while (tokenizer.tokenType().equals("SYMBOL") && (tokenizer.symbol() == '[' || tokenizer.symbol() == '.')) {
-            if (tokenizer.symbol() == '.') {
-                addToXml("<symbol>.</symbol>");
-                getTokenIdentifierAndAddToXml(true);
-                ensureMoreTokensAndAdvance();
-            }
-            else if (tokenizer.symbol() == '[') {
-                addToXml("<symbol>[</symbol>");
-                while (tokenizer.tokenType().equals("SYMBOL") && tokenizer.symbol() == '[') {
-                    ensureMoreTokensAndAdvance();
-                    compileExpression();
-                    ensureSymbolValueAndAddXml(']');
-                    ensureMoreTokensAndAdvance();
-                }
-            }
+    private int compileArrayIndexing(int array) throws Exception {
+        addToXml("<symbol>[</symbol>");
+        while (tokenizer.tokenType().equals("SYMBOL") && tokenizer.symbol() == '[') {
+            int index = ast.add(AstArena.INDEX, tokenizer.currentTokenIndex());
+            ensureMoreTokensAndAdvance();
+            ast.appendChild(index, array);
+            ast.appendChild(index, compileExpression());
+            ensureSymbolValueAndAddXml(']');
+            ensureMoreTokensAndAdvance();
+
+            // each further [] indexes into the result of the one before it
+            array = index;
         }
+        return array;
     }
 
     /**
      * @precondition - tokenizer is advanced to 'return' token starting the return statement
      * @postcondition - tokenizer is advanced to first token after ; ending return statement
+     * @param parent - the STATEMENTS node to add the statement node to
      * @throws Exception
      */
-    public void compileReturn() throws Exception {
+    public void compileReturn(int parent) throws Exception {
         addToXml("<returnStatement><keyword>return</keyword>");
+        int returnStatement = ast.add(parent, AstArena.RETURN, tokenizer.currentTokenIndex());
         ensureMoreTokensAndAdvance();
         // check if we just have the semicolon immediately
         if (tokenizer.tokenType().equals("SYMBOL")  && tokenizer.symbol() == ';') {
@@ -474,7 +765,7 @@ public class CompilationEngine {
             ensureMoreTokensAndAdvance();
         }
         else {
-            compileExpression();
+            ast.appendChild(returnStatement, compileExpression());
             ensureSymbolValueAndAddXml(';');
             ensureMoreTokensAndAdvance();
         }
@@ -485,18 +776,21 @@ public class CompilationEngine {
     /**
      * @precondition - tokenizer is advanced to 'while' token starting while statement
      * @postcondition - tokenizer is advanced immediately past } token ending while statement
+     * @param parent - the STATEMENTS node to add the statement node to
      * @throws Exception
      */
-    public void compileWhile() throws Exception {
+    public void compileWhile(int parent) throws Exception {
         addToXml("<whileStatement><keyword>while</keyword>");
 
+        int whileStatement = ast.add(parent, AstArena.WHILE, tokenizer.currentTokenIndex());
+
         ensureSymbolValueAndAddXml('(', true);
         ensureMoreTokensAndAdvance();
-        compileExpression();
+        ast.appendChild(whileStatement, compileExpression());
         ensureSymbolValueAndAddXml(')', false);
 
         ensureSymbolValueAndAddXml('{', true);
-        compileStatements();
+        compileStatements(whileStatement);
         ensureSymbolValueAndAddXml('}', false);
         ensureMoreTokensAndAdvance();
 
@@ -506,13 +800,16 @@ public class CompilationEngine {
     /**
      * @precondition - tokenizer advanced to 'var' keyword starting var dec
      * @postcondition - tokenizer advanced past ; at end of statement
+     * @param parent - the STATEMENTS node to add the statement node to
      * @throws Exception
      */
-    public void compileVarDec() throws Exception {
+    public void compileVarDec(int parent) throws Exception {
         addToXml("<varDec><keyword>var</keyword>");
 
+        int varDec = ast.add(parent, AstArena.VAR_DEC, tokenizer.currentTokenIndex());
+
         ensureMoreTokensAndAdvance();
-        compileVarDecList("VAR");
+        compileVarDecList(varDec);
 
         addToXml("</varDec>");
     }
@@ -520,14 +817,17 @@ public class CompilationEngine {
     /**
      * @precondition - tokenizer advanced to 'field' or 'static' keyword starting var dec
      * @postcondition - tokenizer advanced past ; at end of statement
+     * @param parent - the class node to add the declaration node to
      * @throws Exception
      */
-    public void compileClassVarDec() throws Exception {
+    public void compileClassVarDec(int parent) throws Exception {
         String varKind = tokenizer.getCurrentToken();
         addToXml("<classVarDec><keyword>" + varKind.toLowerCase() + "</keyword>");
 
+        int classVarDec = ast.add(parent, AstArena.CLASS_VAR_DEC, tokenizer.currentTokenIndex());
+
         ensureMoreTokensAndAdvance();
-        compileVarDecList(varKind);
+        compileVarDecList(classVarDec);
 
         addToXml("</classVarDec>");
     }
@@ -536,19 +836,19 @@ public class CompilationEngine {
      * Compiles a list of variables being declared, ex. var String a, b, c;
      * @precondition - tokenizer advanced to type term at beginning of list
      * @postcondition - tokenizer advanced past ; at end of statement
-     * @param kind - the type of the variable being declared (FIELD, STATIC, VAR)
+     * @param declaration - the VAR_DEC or CLASS_VAR_DEC node to add the declared names to
      * @throws Exception
      */
-    private void compileVarDecList(String kind) throws Exception {
+    private void compileVarDecList(int declaration) throws Exception {
         // multiple vars might be declared (ex. field int x, int y;) so loop until we reach a semicolon
         boolean moreVariablesBeingDeclared = true;
 
         // the type of the variable being declared
-        String type = getTokenTypeNameAndAddToXml(false);
+        getTokenTypeNameAndAddToXml(false);
 
         while (moreVariablesBeingDeclared) {
             ensureTokenType("IDENTIFIER", true);
-            symbolTable.define(tokenizer.identifier(), type, kind);
+            ast.add(declaration, AstArena.NAME, tokenizer.currentTokenIndex());
             addToXml("<identifier>" + tokenizer.identifier() + "</identifier>");
 
             ensureTokenType("SYMBOL", true);
@@ -570,29 +870,32 @@ public class CompilationEngine {
     /**
      * @precondition: tokenizer is advanced to 'if' keyword starting if statement
      * @postcondition: tokenizer is advanced to first token after } closing if statement
+     * @param parent - the STATEMENTS node to add the statement node to
      * @throws Exception
      */
-    public void compileIf() throws Exception {
+    public void compileIf(int parent) throws Exception {
         addToXml("<ifStatement><keyword>if</keyword>");
 
+        int ifStatement = ast.add(parent, AstArena.IF, tokenizer.currentTokenIndex());
+
         // should open parenthesis for condition here
         ensureSymbolValueAndAddXml('(', true);
         ensureMoreTokensAndAdvance();
         // expression of the condition
-        compileExpression();
+        ast.appendChild(ifStatement, compileExpression());
         // close condition
         ensureSymbolValueAndAddXml(')', false);
 
         // compile if body
         ensureSymbolValueAndAddXml('{', true);
-        compileStatements();
+        compileStatements(ifStatement);
         ensureSymbolValueAndAddXml('}', false);
 
         // check if there is an else statement
         ensureMoreTokensAndAdvance();
         if (tokenizer.tokenType().equals("KEYWORD") && tokenizer.keyWord().equals("ELSE")) {
             ensureSymbolValueAndAddXml('{', true);
-            compileStatements();
+            compileStatements(ifStatement);
             ensureSymbolValueAndAddXml('}', false);
 
             ensureMoreTokensAndAdvance();
@@ -730,6 +1033,6 @@ public class CompilationEngine {
      * @param text
      */
     private void addToXml(String text) {
-        xml += text;
+        xml.append(text);
     }
 }
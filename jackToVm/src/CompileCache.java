@@ -0,0 +1,81 @@
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The classes a CompileServer has compiled, kept between requests so a file which has not changed since
+ * it was last compiled is not compiled again.  A file is taken to be unchanged while its path, length and
+ * modification time are, and it is only reused when compiled with the same options that affect the code.
+ * Classes compiled with a profile are not kept, since the profile's file may change under the same name.
+ *
+ * A reused class's reports are printed again, so a request prints the same as compiling every file would.
+ * The compiled VM code is shared by every request that reuses it, and is never changed once compiled.
+ */
+public class CompileCache {
+    // the parse tree, as XML, the VM code and the reports printed compiling a class, and the version of its
+    // file they were compiled from
+    public static class Entry {
+        public final String xml;
+        public final VMInstructions instructions;
+        public final String report;
+        private final String version;
+
+        private Entry(String xml, VMInstructions instructions, String report, String version) {
+            this.xml = xml;
+            this.instructions = instructions;
+            this.report = report;
+            this.version = version;
+        }
+    }
+
+    private ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    /**
+     * Returns the version of a file compiled with some options, or null if it cannot be kept.
+     */
+    public static String versionOf(File file, CompilerOptions options) {
+        if (options.profile != null) {
+            return null;
+        }
+        return file.length() + " " + file.lastModified()
+                + " -O" + options.optimizationLevel + (options.poolStrings ? " --pool-strings" : "")
+                + (options.wholeProgram ? " whole program" : "") + " --target=" + options.target
+                + (options.profileGenerate != null ? " --profile-generate" : "");
+    }
+
+    /**
+     * Returns the class kept for a version of a file, or null if there is none.
+     */
+    public Entry get(File file, String version) {
+        Entry entry = version == null ? null : entries.get(file.getAbsolutePath());
+        if (entry != null && !entry.version.equals(version)) {
+            entry = null;
+        }
+        (entry == null ? misses : hits).incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Keeps a class compiled from a version of a file, in place of any other version.
+     * @param report - what was printed compiling it, which is printed again whenever it is reused
+     */
+    public void put(File file, String version, String xml, VMInstructions instructions, String report) {
+        if (version != null) {
+            entries.put(file.getAbsolutePath(), new Entry(xml, instructions, report, version));
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,94 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * A drop-in replacement for JackAnalyzer: it takes the same arguments, prints the same reports and writes
+ * the same files, but has a running CompileServer do the compiling.  If no server is listening, it
+ * compiles the program itself, as JackAnalyzer would.
+ *
+ * Usage: CompileClient [--port=N | --socket=PATH] [--print-vm] [JackAnalyzer options] inLocation
+ * where --port= or --socket= is the address of the server (default: localhost port CompileServer.DEFAULT_PORT),
+ * and --print-vm prints the VM code of each class instead of writing .xml and .vm files.
+ */
+public class CompileClient {
+    public static void main(String[] args) throws Exception {
+        SocketAddress address = CompileServer.defaultAddress();
+        boolean printVm = false;
+        ArrayList<String> compilerArgs = new ArrayList<String>();
+        for (String arg : args) {
+            SocketAddress argAddress = CompileServer.parseAddress(arg);
+            if (argAddress != null) {
+                address = argAddress;
+            }
+            else if (arg.equals("--print-vm")) {
+                printVm = true;
+            }
+            else {
+                compilerArgs.add(arg);
+            }
+        }
+
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(CompileServer.familyOf(address));
+            channel.connect(address);
+        } catch (IOException e) {
+            // no server: compile here
+            CompilerOptions options = null;
+            try {
+                options = CompilerOptions.parse(compilerArgs.toArray(new String[0]));
+            } catch (Exception parseError) {
+                JackAnalyzer.printUsage(System.out, parseError.getMessage());
+                System.exit(1);
+            }
+            options.writeClassFiles = !printVm;
+            for (VMInstructions instructions : JackAnalyzer.compile(options).values()) {
+                if (printVm) {
+                    System.out.print(instructions.toString());
+                }
+            }
+            return;
+        }
+
+        try (SocketChannel server = channel) {
+            Writer out = new OutputStreamWriter(Channels.newOutputStream(server), StandardCharsets.UTF_8);
+            StringBuilder request = new StringBuilder();
+            request.append("cwd ").append(System.getProperty("user.dir")).append('\n');
+            for (String arg : compilerArgs) {
+                request.append("arg ").append(arg).append('\n');
+            }
+            if (printVm) {
+                request.append("inline\n");
+            }
+            request.append("end\n");
+            out.write(request.toString());
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(server), StandardCharsets.UTF_8));
+            boolean ok = "ok".equals(in.readLine());
+            String line;
+            while ((line = in.readLine()) != null && !line.equals("end")) {
+                if (line.startsWith("diagnostic ")) {
+                    System.out.println(line.substring("diagnostic ".length()));
+                }
+                else if (line.startsWith("vm ")) {
+                    int lines = Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+                    for (int i = 0; i < lines; i++) {
+                        System.out.println(in.readLine());
+                    }
+                }
+            }
+            if (!ok) {
+                System.exit(1);
+            }
+        }
+    }
+}
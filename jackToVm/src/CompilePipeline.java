@@ -0,0 +1,346 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiles .jack files in three overlapping stages joined by bounded queues, so compiler threads do not
+ * sit idle while files are read and written:
+ * - read: files are read with asynchronous file channels, at most QUEUE_CAPACITY ahead of the compilers;
+ * - compile: worker threads tokenize, parse and generate the VM code of each file in memory;
+ * - write: one thread takes whatever has been compiled as a batch, starts an asynchronous write of each
+ *   .xml (and .vm) file in it, and waits for the batch before taking the next.
+ * When a stage falls behind, the queue before it fills up and the stage before that waits, so only a
+ * bounded number of files is in memory at once.  The time each stage spends working is reported.
+ * With a CompileCache, a file that has not changed since it was compiled is neither read nor compiled:
+ * its class from the cache goes straight to the writer.
+ * Each class's reports are kept until it is written, and printed with it, so the reports of classes compiled
+ * at once are not interleaved, and those of a class from the cache can be printed again.
+ */
+public class CompilePipeline {
+    private final static int QUEUE_CAPACITY = 16;
+    // the passes after parsing walk the syntax tree recursively, so deeply nested expressions need deep stacks
+    private final static long COMPILE_STACK_SIZE = 256L << 20;
+
+    private CompilerOptions options;
+    private boolean writeVmFiles;
+    private int workers;
+
+    // a read file, or the end of the input for one worker (index -1)
+    private static class Source {
+        private int index;
+        private File file;
+        private String fileName;
+        // the version of the file kept in the cache, or null
+        private String version;
+        private String text;
+        private Exception error;
+    }
+
+    // a compiled file
+    private static class Result {
+        private int index;
+        private String className;
+        private String xml;
+        private VMInstructions instructions;
+        // what compiling it printed
+        private String report = "";
+        private Exception error;
+    }
+
+    private ArrayBlockingQueue<Source> sources = new ArrayBlockingQueue<Source>(QUEUE_CAPACITY);
+    // taken before a read is started and given back when a worker takes the file, to bound the reads ahead
+    private Semaphore readsAhead = new Semaphore(QUEUE_CAPACITY);
+    private ArrayBlockingQueue<Result> results = new ArrayBlockingQueue<Result>(QUEUE_CAPACITY);
+
+    // the time each stage spent working, and the compile workers spent waiting for files to be read
+    private AtomicLong readNanos = new AtomicLong();
+    private AtomicLong compileNanos = new AtomicLong();
+    private AtomicLong starvedNanos = new AtomicLong();
+    private long writeNanos = 0;
+    private int writtenFiles = 0;
+    private int batches = 0;
+    private int cachedFiles = 0;
+    // the first error writing files, after which the writer only takes the remaining results
+    private Exception writeError = null;
+
+    /**
+     * @param options - the compiler options; without parallel code generation, one file is compiled at a time
+     * @param writeVmFiles - whether to write a .vm file for each class, besides its .xml parse tree
+     */
+    public CompilePipeline(CompilerOptions options, boolean writeVmFiles) {
+        this.options = options;
+        this.writeVmFiles = writeVmFiles;
+        workers = options.parallelCodegen ? Runtime.getRuntime().availableProcessors() : 1;
+    }
+
+    /**
+     * Compiles the files, writing their .xml (and .vm) files to the working directory.
+     * @param classNames - the list to add the name of each class to, in the order of inFiles
+     * @param classes - the list to add the VM code of each class to, in the order of inFiles
+     * @throws Exception the error of the first file, in the order of inFiles, which could not be read or compiled
+     */
+    public void compile(ArrayList<File> inFiles, ArrayList<String> classNames, ArrayList<VMInstructions> classes) throws Exception {
+        long start = System.nanoTime();
+        int fileCount = inFiles.size();
+        int workerCount = Math.max(1, Math.min(workers, fileCount));
+        Result[] compiled = new Result[fileCount];
+
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < workerCount; i++) {
+            threads.add(new Thread(null, this::compileSources, "compile-" + i, COMPILE_STACK_SIZE));
+        }
+        threads.add(new Thread(() -> writeResults(fileCount, compiled), "write"));
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        CountDownLatch reads = new CountDownLatch(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            File inFile = inFiles.get(i);
+            String version = options.cache == null ? null : CompileCache.versionOf(inFile, options);
+            CompileCache.Entry entry = options.cache == null ? null : options.cache.get(inFile, version);
+            if (entry != null) {
+                Result result = new Result();
+                result.index = i;
+                result.className = className(inFile.getName());
+                result.xml = entry.xml;
+                result.instructions = entry.instructions;
+                result.report = entry.report;
+                results.put(result);
+                cachedFiles++;
+                reads.countDown();
+                continue;
+            }
+            readsAhead.acquire();
+            read(i, inFile, version, reads);
+        }
+        reads.await();
+        for (int i = 0; i < workerCount; i++) {
+            Source end = new Source();
+            end.index = -1;
+            sources.put(end);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (writeError != null) {
+            throw writeError;
+        }
+        for (Result result : compiled) {
+            if (result.error != null) {
+                throw result.error;
+            }
+            classNames.add(result.className);
+            classes.add(result.instructions);
+        }
+
+        if (!options.quiet) {
+            double wall = Math.max(System.nanoTime() - start, 1);
+            options.log.println(String.format("pipeline: %d files in %.1f ms", fileCount, wall / 1e6));
+            if (cachedFiles > 0) {
+                options.log.println(String.format("  cache    %d files unchanged since they were compiled", cachedFiles));
+            }
+            options.log.println(String.format("  read     %d files, %.2f reads in flight on average",
+                    fileCount - cachedFiles, readNanos.get() / wall));
+            options.log.println(String.format("  compile  %d files on %d threads, %.0f%% busy, %.1f ms waiting for files",
+                    fileCount - cachedFiles, workerCount, 100 * compileNanos.get() / (wall * workerCount),
+                    starvedNanos.get() / 1e6));
+            options.log.println(String.format("  write    %d files in %d batches, %.0f%% busy",
+                    writtenFiles, batches, 100 * writeNanos / wall));
+        }
+    }
+
+    /**
+     * Starts reading a file; once it has been read, it is queued for the compile workers.
+     */
+    private void read(int index, File inFile, String version, CountDownLatch reads) {
+        long start = System.nanoTime();
+        Source source = new Source();
+        source.index = index;
+        source.file = inFile;
+        source.fileName = inFile.getName();
+        source.version = version;
+        try {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(inFile.toPath(), StandardOpenOption.READ);
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            channel.read(buffer, 0, null, new CompletionHandler<Integer, Void>() {
+                public void completed(Integer bytes, Void attachment) {
+                    if (bytes >= 0 && buffer.hasRemaining()) {
+                        channel.read(buffer, buffer.position(), null, this);
+                        return;
+                    }
+                    source.text = new String(buffer.array(), 0, buffer.position());
+                    finish();
+                }
+
+                public void failed(Throwable error, Void attachment) {
+                    source.error = new Exception("ERROR READING FILE " + inFile.getName() + ": " + error.getMessage());
+                    finish();
+                }
+
+                private void finish() {
+                    try {
+                        channel.close();
+                    } catch (Exception e) {
+                        // the file has been read
+                    }
+                    readNanos.addAndGet(System.nanoTime() - start);
+                    // there is room: every queued file holds one of the reads ahead
+                    sources.add(source);
+                    reads.countDown();
+                }
+            });
+        } catch (Exception e) {
+            source.error = new Exception("ERROR READING FILE " + inFile.getName() + ": " + e.getMessage());
+            sources.add(source);
+            reads.countDown();
+        }
+    }
+
+    /**
+     * A compile worker: compiles files until it takes the end of the input.
+     */
+    private void compileSources() {
+        try {
+            while (true) {
+                long waitStart = System.nanoTime();
+                Source source = sources.take();
+                starvedNanos.addAndGet(System.nanoTime() - waitStart);
+                if (source.index == -1) {
+                    return;
+                }
+                readsAhead.release();
+
+                long start = System.nanoTime();
+                Result result = new Result();
+                result.index = source.index;
+                result.className = className(source.fileName);
+                result.error = source.error;
+                if (result.error == null) {
+                    try {
+                        // reported even when quiet, since the class may be reused by a request which is not
+                        ByteArrayOutputStream report = new ByteArrayOutputStream();
+                        CompilerOptions classOptions = options.reportingTo(new PrintStream(report, true, StandardCharsets.UTF_8));
+                        CompilationEngine compiler = new CompilationEngine(source.fileName, source.text, classOptions);
+                        result.xml = compiler.getXml();
+                        result.instructions = compiler.getVMInstructions();
+                        result.report = report.toString(StandardCharsets.UTF_8);
+                        if (options.cache != null) {
+                            options.cache.put(source.file, source.version, result.xml, result.instructions, result.report);
+                        }
+                    } catch (Exception e) {
+                        result.error = e;
+                    } catch (StackOverflowError e) {
+                        result.error = new Exception("ERROR: expressions in " + source.fileName + " are nested too deeply to compile");
+                    }
+                }
+                compileNanos.addAndGet(System.nanoTime() - start);
+                results.put(result);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The writer: writes the files of each batch of compiled classes, until every class has been written.
+     */
+    private void writeResults(int fileCount, Result[] compiled) {
+        int taken = 0;
+        while (taken < fileCount) {
+            ArrayList<Result> batch = new ArrayList<Result>();
+            try {
+                batch.add(results.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            results.drainTo(batch);
+            taken += batch.size();
+            for (Result result : batch) {
+                compiled[result.index] = result;
+            }
+            if (writeError != null) {
+                printReports(batch, false);
+                continue;
+            }
+
+            try {
+                long start = System.nanoTime();
+                ArrayList<AsynchronousFileChannel> channels = new ArrayList<AsynchronousFileChannel>();
+                ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+                ArrayList<Future<Integer>> writes = new ArrayList<Future<Integer>>();
+                for (Result result : batch) {
+                    if (result.error != null || !options.writeClassFiles) continue;
+                    startWrite(result.className + ".xml", result.xml, channels, buffers, writes);
+                    if (writeVmFiles) {
+                        startWrite(result.className + ".vm", result.instructions.toString(), channels, buffers, writes);
+                    }
+                }
+                for (int i = 0; i < writes.size(); i++) {
+                    // finish any write the channel did not complete in one go
+                    long position = writes.get(i).get();
+                    while (buffers.get(i).hasRemaining()) {
+                        position += channels.get(i).write(buffers.get(i), position).get();
+                    }
+                    channels.get(i).close();
+                }
+                writtenFiles += writes.size();
+                batches++;
+                writeNanos += System.nanoTime() - start;
+
+                printReports(batch, options.writeClassFiles);
+            } catch (Exception e) {
+                // keep taking results, so the compile workers are not left waiting
+                writeError = new Exception("ERROR WRITING FILES: " + e.getMessage());
+                printReports(batch, false);
+            }
+        }
+    }
+
+    /**
+     * Prints the reports of each compiled class of a batch, and whether its files were written.
+     */
+    private void printReports(ArrayList<Result> batch, boolean written) {
+        if (options.quiet) return;
+        for (Result result : batch) {
+            if (result.error != null) continue;
+            options.log.print(result.report);
+            if (written) {
+                options.log.println("file written with XML");
+                if (writeVmFiles) {
+                    options.log.println("file written with VM code");
+                }
+            }
+        }
+    }
+
+    private static String className(String fileName) {
+        return fileName.substring(0, fileName.indexOf(".jack"));
+    }
+
+    private void startWrite(String fileName, String text, ArrayList<AsynchronousFileChannel> channels,
+                            ArrayList<ByteBuffer> buffers, ArrayList<Future<Integer>> writes) throws Exception {
+        File outFile = options.file(fileName);
+        options.writtenFiles.add(outFile);
+        AsynchronousFileChannel channel = AsynchronousFileChannel.open(outFile.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes());
+        channels.add(channel);
+        buffers.add(buffer);
+        writes.add(channel.write(buffer, 0));
+    }
+}
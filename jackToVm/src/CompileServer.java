@@ -0,0 +1,215 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the compiler running, so each compilation does not pay for starting a JVM and warming it up.
+ * It listens on a localhost port or a Unix domain socket, and compiles what each CompileClient that
+ * connects asks for.  Requests are handled on a virtual thread each where the JVM has them (Java 21 and
+ * later), and on a pool of platform threads otherwise.  Every request shares a CompileCache, so the
+ * files of a program that have not changed since it was last compiled are not compiled again.
+ *
+ * A connection carries one request and its response, as lines of UTF-8 text.  The request is:
+ *   cwd <directory>        the directory relative paths are in, and files are written to
+ *   arg <argument>         once for each JackAnalyzer command line argument
+ *   inline                 (optional) send the VM code back instead of writing .xml and .vm files
+ *   end
+ * and the response:
+ *   ok | error
+ *   diagnostic <line>      each line JackAnalyzer would have printed, or the error
+ *   output <path>          each file written
+ *   vm <class> <lines>     with inline: the VM code of each class, on the lines that follow
+ *   end
+ */
+public class CompileServer {
+    public final static int DEFAULT_PORT = 7390;
+
+    private CompileCache cache = new CompileCache();
+    private AtomicInteger requests = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        SocketAddress address = null;
+        for (String arg : args) {
+            address = parseAddress(arg);
+            if (address == null) {
+                System.out.println("IMPROPER USAGE! Unrecognized argument: " + arg);
+                System.out.println("CORRECT USAGE: CompileServer [--port=N | --socket=PATH]");
+                System.out.println("  --port=N       listen on localhost port N (default " + DEFAULT_PORT + ")");
+                System.out.println("  --socket=PATH  listen on the Unix domain socket at PATH");
+                System.exit(1);
+            }
+        }
+        new CompileServer().serve(address == null ? defaultAddress() : address);
+    }
+
+    /**
+     * Returns the address a --port= or --socket= argument names, or null if it is neither.
+     */
+    public static SocketAddress parseAddress(String arg) {
+        if (arg.startsWith("--port=")) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(arg.substring("--port=".length())));
+        }
+        if (arg.startsWith("--socket=")) {
+            return UnixDomainSocketAddress.of(arg.substring("--socket=".length()));
+        }
+        return null;
+    }
+
+    public static SocketAddress defaultAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), DEFAULT_PORT);
+    }
+
+    public static StandardProtocolFamily familyOf(SocketAddress address) {
+        return address instanceof UnixDomainSocketAddress ? StandardProtocolFamily.UNIX : StandardProtocolFamily.INET;
+    }
+
+    /**
+     * Handles requests until the process is stopped.
+     */
+    public void serve(SocketAddress address) throws Exception {
+        if (address instanceof UnixDomainSocketAddress) {
+            // left behind by a server that was stopped
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+        }
+        ServerSocketChannel server = ServerSocketChannel.open(familyOf(address));
+        server.bind(address);
+
+        boolean[] virtual = new boolean[1];
+        ExecutorService executor = newExecutor(virtual);
+        System.out.println("compile server listening on " + address + ", handling requests on "
+                + (virtual[0] ? "virtual threads" : "a pool of platform threads"));
+        while (true) {
+            SocketChannel client = server.accept();
+            executor.execute(() -> handle(client));
+        }
+    }
+
+    /**
+     * Returns an executor that starts a virtual thread for each task, or a pool of platform threads if
+     * this JVM has no virtual threads.
+     * @param virtual - set to whether the threads are virtual
+     */
+    private static ExecutorService newExecutor(boolean[] virtual) {
+        try {
+            // looked up, so the server still builds and runs on JVMs before virtual threads
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            virtual[0] = true;
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "compile-request");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Reads a request from a client, compiles it and sends back the response.
+     */
+    private void handle(SocketChannel client) {
+        long start = System.nanoTime();
+        try (SocketChannel channel = client) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+            File workingDirectory = null;
+            ArrayList<String> args = new ArrayList<String>();
+            boolean inline = false;
+            String line;
+            while ((line = in.readLine()) != null && !line.equals("end")) {
+                if (line.startsWith("cwd ")) {
+                    workingDirectory = new File(line.substring("cwd ".length()));
+                }
+                else if (line.startsWith("arg ")) {
+                    args.add(line.substring("arg ".length()));
+                }
+                else if (line.equals("inline")) {
+                    inline = true;
+                }
+            }
+            if (line == null) {
+                // the client went away before finishing its request
+                return;
+            }
+
+            ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+            PrintStream log = new PrintStream(diagnostics, true, StandardCharsets.UTF_8);
+            CompilerOptions options = null;
+            LinkedHashMap<String, VMInstructions> program = null;
+            boolean ok = false;
+            try {
+                options = CompilerOptions.parse(args.toArray(new String[0]));
+            } catch (Exception e) {
+                JackAnalyzer.printUsage(log, e.getMessage());
+            }
+            if (options != null) {
+                options.workingDirectory = workingDirectory;
+                options.log = log;
+                options.cache = cache;
+                options.writeClassFiles = !inline;
+                try {
+                    program = JackAnalyzer.compile(options);
+                    ok = true;
+                } catch (Exception e) {
+                    log.println(e.getMessage() != null ? e.getMessage() : e.toString());
+                }
+            }
+
+            StringBuilder response = new StringBuilder(ok ? "ok" : "error").append('\n');
+            for (String diagnostic : diagnostics.toString(StandardCharsets.UTF_8).split("\n", -1)) {
+                if (!diagnostic.isEmpty()) {
+                    response.append("diagnostic ").append(diagnostic).append('\n');
+                }
+            }
+            if (options != null) {
+                for (File outFile : options.writtenFiles) {
+                    response.append("output ").append(outFile.getPath()).append('\n');
+                }
+            }
+            if (inline && program != null) {
+                for (Map.Entry<String, VMInstructions> entry : program.entrySet()) {
+                    String text = entry.getValue().toString();
+                    int lines = 0;
+                    for (int i = 0; i < text.length(); i++) {
+                        if (text.charAt(i) == '\n') lines++;
+                    }
+                    if (!text.isEmpty() && !text.endsWith("\n")) {
+                        text += "\n";
+                        lines++;
+                    }
+                    response.append("vm ").append(entry.getKey()).append(' ').append(lines).append('\n').append(text);
+                }
+            }
+            response.append("end\n");
+
+            Writer out = new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8);
+            out.write(response.toString());
+            out.flush();
+
+            System.out.println(String.format("request %d: %s in %.1f ms; so far %d of %d classes reused from the cache",
+                    requests.incrementAndGet(), ok ? "compiled" : "failed", (System.nanoTime() - start) / 1e6,
+                    cache.getHits(), cache.getHits() + cache.getMisses()));
+        } catch (Exception e) {
+            System.out.println("request failed: " + e.getMessage());
+        }
+    }
+}
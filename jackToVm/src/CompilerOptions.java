@@ -0,0 +1,138 @@
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The command line options of the compiler.
+ */
+public class CompilerOptions {
+    public String inLocation = null;
+    // compile several files, and generate the VM code of a class's subroutines, on several threads
+    public boolean parallelCodegen = true;
+    // build each distinct string literal once into a static variable and reuse it
+    public boolean poolStrings = false;
+    // 0: no optional optimizations, 2: all of them
+    public int optimizationLevel = 2;
+    // "vm" to write a .vm file per class, "asm" to translate them all into one .asm file
+    public String target = "vm";
+    // with --target=asm: share one copy of the code for comparisons, calls and returns
+    public boolean optimizeForSize = false;
+    // do not print progress and optimization reports
+    public boolean quiet = false;
+    // write a source map next to each .vm file, or the .asm file
+    public boolean sourceMap = false;
+    // the file to write a profile of the compiled program to, or null
+    public String profileGenerate = null;
+    // the profile file to optimize with, or null; read into profile
+    public String profileUse = null;
+    public Profile profile = null;
+    // whether every class of the program is compiled together (the input is a folder), so what is only
+    // done in whole programs, like leaving out fields nothing reads, can be done
+    public boolean wholeProgram = false;
+
+    // set by a CompileServer for each request, rather than on the command line:
+    // the directory relative paths are in, and files are written to, or null for the current directory
+    public File workingDirectory = null;
+    // where progress and optimization reports are printed
+    public PrintStream log = System.out;
+    // whether to write the .xml and .vm file of each class, which is not needed when the VM code is sent back
+    public boolean writeClassFiles = true;
+    // the classes compiled earlier, which are not compiled again while their files are unchanged, or null
+    public CompileCache cache = null;
+    // every file written, in the order they were written
+    public List<File> writtenFiles = Collections.synchronizedList(new ArrayList<File>());
+
+    // set by ExpressionBenchmark, to time the recursive reference: compile expressions by recursive descent
+    public boolean recursiveExpressions = false;
+
+    /**
+     * Parses the command line arguments passed to JackAnalyzer.
+     * @throws Exception if an option is not recognized or no input location is given
+     */
+    public static CompilerOptions parse(String[] args) throws Exception {
+        CompilerOptions options = new CompilerOptions();
+        for (String arg : args) {
+            switch (arg) {
+                case "--no-parallel":
+                    options.parallelCodegen = false;
+                    break;
+                case "--pool-strings":
+                    options.poolStrings = true;
+                    break;
+                case "--target=vm":
+                case "--target=asm":
+                    options.target = arg.substring("--target=".length());
+                    break;
+                case "--optimize=size":
+                case "--optimize=speed":
+                    options.optimizeForSize = arg.equals("--optimize=size");
+                    break;
+                case "--quiet":
+                    options.quiet = true;
+                    break;
+                case "--source-map":
+                    options.sourceMap = true;
+                    break;
+                case "-O0":
+                case "-O1":
+                case "-O2":
+                    options.optimizationLevel = arg.charAt(2) - '0';
+                    break;
+                default:
+                    if (arg.startsWith("--profile-generate=")) {
+                        options.profileGenerate = arg.substring("--profile-generate=".length());
+                        break;
+                    }
+                    if (arg.startsWith("--profile-use=")) {
+                        options.profileUse = arg.substring("--profile-use=".length());
+                        break;
+                    }
+                    if (arg.startsWith("-") || options.inLocation != null) {
+                        throw new Exception("Unrecognized argument: " + arg);
+                    }
+                    options.inLocation = arg;
+                    break;
+            }
+        }
+
+        if (options.inLocation == null) {
+            throw new Exception("No input location given");
+        }
+        return options;
+    }
+
+    /**
+     * Returns a copy of these options which prints its reports, even when these are quiet, to log.
+     */
+    public CompilerOptions reportingTo(PrintStream log) {
+        CompilerOptions options = new CompilerOptions();
+        options.inLocation = inLocation;
+        options.parallelCodegen = parallelCodegen;
+        options.poolStrings = poolStrings;
+        options.optimizationLevel = optimizationLevel;
+        options.target = target;
+        options.optimizeForSize = optimizeForSize;
+        options.sourceMap = sourceMap;
+        options.profileGenerate = profileGenerate;
+        options.profileUse = profileUse;
+        options.profile = profile;
+        options.wholeProgram = wholeProgram;
+        options.workingDirectory = workingDirectory;
+        options.writeClassFiles = writeClassFiles;
+        options.cache = cache;
+        options.writtenFiles = writtenFiles;
+        options.recursiveExpressions = recursiveExpressions;
+        options.log = log;
+        return options;
+    }
+
+    /**
+     * Returns the file a path names, relative to the working directory.
+     */
+    public File file(String path) {
+        File file = new File(path);
+        return file.isAbsolute() || workingDirectory == null ? file : new File(workingDirectory, path);
+    }
+}
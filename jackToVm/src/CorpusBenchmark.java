@@ -0,0 +1,190 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Times the front end of the compiler on programs from the CorpusGenerator of a few sizes, by default
+ * 1K, 100K and 10M lines.  Each class is generated, then tokenized by the JackTokenizer, its declarations
+ * and variable lookups replayed on a SymbolTable, and compiled by the CompilationEngine (which tokenizes it
+ * again, parses it and generates its VM code), one at a time, so a corpus of any size fits in memory.
+ * Generating is not timed.
+ *
+ * The symbol table is timed on its own by first collecting, untimed, what the code generator asks of it:
+ * a table per class, a scope per subroutine, a definition per declared variable, and a lookup of every
+ * identifier which is not a subroutine name.
+ */
+public class CorpusBenchmark {
+    private final static long[] DEFAULT_SIZES = { 1000, 100000, 10000000 };
+    private final static int WARMUP_RUNS = 3;
+    private final static long WARMUP_SIZE = 1000;
+    private final static HashSet<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+            "class", "constructor", "function", "method", "field", "static", "var", "int", "char", "boolean",
+            "void", "true", "false", "null", "this", "let", "do", "if", "else", "while", "return"));
+
+    // the time spent in each stage over a corpus, and its size
+    private long tokenizeNanos;
+    private long symbolNanos;
+    private long compileNanos;
+    private long lines;
+    private long classes;
+    // so lookups are not optimized away
+    private long checksum;
+
+    public static void main(String[] args) throws Exception {
+        long seed = 1;
+        ArrayList<Long> sizes = new ArrayList<Long>();
+        boolean properUsage = true;
+        for (String arg : args) {
+            if (arg.matches("--seed=[0-9]+")) {
+                seed = Long.parseLong(arg.substring("--seed=".length()));
+            }
+            else if (arg.matches("[0-9]+")) {
+                sizes.add(Long.parseLong(arg));
+            }
+            else {
+                properUsage = false;
+            }
+        }
+        if (!properUsage) {
+            System.out.println("IMPROPER USAGE!");
+            System.out.println("CORRECT USAGE: CorpusBenchmark [--seed=N] [lines...]");
+            System.out.println("where each lines is the size of a generated corpus to time (default 1000 100000 10000000)");
+            System.out.println("  --seed=N   the seed of the generated corpora (default 1)");
+            System.exit(1);
+        }
+        if (sizes.isEmpty()) {
+            for (long size : DEFAULT_SIZES) {
+                sizes.add(size);
+            }
+        }
+
+        for (int run = 0; run < WARMUP_RUNS; run++) {
+            new CorpusBenchmark().run(seed, WARMUP_SIZE);
+        }
+
+        System.out.println(String.format("%10s %8s %12s %12s %12s %14s", "lines", "classes", "tokenize ms", "symbols ms",
+                "compile ms", "compile lines/s"));
+        for (long size : sizes) {
+            CorpusBenchmark benchmark = new CorpusBenchmark();
+            benchmark.run(seed, size);
+            System.out.println(String.format("%10d %8d %12.1f %12.1f %12.1f %14.0f", benchmark.lines, benchmark.classes,
+                    benchmark.tokenizeNanos / 1e6, benchmark.symbolNanos / 1e6, benchmark.compileNanos / 1e6,
+                    benchmark.lines / (benchmark.compileNanos / 1e9)));
+        }
+    }
+
+    /**
+     * Generates a corpus of at least size lines, timing each stage on each of its classes.
+     */
+    private void run(long seed, long size) throws Exception {
+        CompilerOptions options = new CompilerOptions();
+        options.quiet = true;
+        options.parallelCodegen = false;
+
+        CorpusGenerator generator = new CorpusGenerator(seed);
+        generator.lines = size;
+        Exception[] error = new Exception[1];
+        generator.generate((className, source) -> {
+            if (error[0] != null) {
+                return;
+            }
+            try {
+                String fileName = className + ".jack";
+                long start = System.nanoTime();
+                JackTokenizer tokenizer = new JackTokenizer(fileName, source);
+                tokenizeNanos += System.nanoTime() - start;
+
+                ArrayList<String[]> operations = symbolOperations(tokenizer);
+                start = System.nanoTime();
+                replay(operations);
+                symbolNanos += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                new CompilationEngine(fileName, source, options);
+                compileNanos += System.nanoTime() - start;
+
+                classes++;
+                lines += source.chars().filter(c -> c == '\n').count();
+            } catch (Exception e) {
+                error[0] = e;
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    /**
+     * Returns what the code generator asks of the symbol table for the tokens of a class: { "class" },
+     * { "subroutine" }, { "define", name, type, kind } or { "lookup", name }.
+     */
+    private static ArrayList<String[]> symbolOperations(JackTokenizer tokenizer) {
+        ArrayList<String[]> operations = new ArrayList<String[]>();
+        String className = null;
+        for (int i = 0; i < tokenizer.tokenCount(); i++) {
+            String token = tokenizer.getToken(i);
+            switch (token) {
+                case "class":
+                    className = tokenizer.getToken(++i);
+                    operations.add(new String[] { "class" });
+                    break;
+                case "static":
+                case "field":
+                case "var":
+                    String type = tokenizer.getToken(i + 1);
+                    String kind = token.equals("var") ? "VAR" : token.toUpperCase();
+                    for (i += 2; !tokenizer.getToken(i).equals(";"); i++) {
+                        if (!tokenizer.getToken(i).equals(",")) {
+                            operations.add(new String[] { "define", tokenizer.getToken(i), type, kind });
+                        }
+                    }
+                    break;
+                case "constructor":
+                case "function":
+                case "method":
+                    operations.add(new String[] { "subroutine" });
+                    if (token.equals("method")) {
+                        operations.add(new String[] { "define", "this", className, "ARG" });
+                    }
+                    // past the return type, name and (
+                    for (i += 4; !tokenizer.getToken(i).equals(")"); i++) {
+                        if (!tokenizer.getToken(i).equals(",")) {
+                            operations.add(new String[] { "define", tokenizer.getToken(i + 1), tokenizer.getToken(i), "ARG" });
+                            i++;
+                        }
+                    }
+                    break;
+                default:
+                    boolean identifier = (Character.isLetter(token.charAt(0)) || token.charAt(0) == '_') && !KEYWORDS.contains(token);
+                    // an identifier is always followed by another token, at least the } ending its class
+                    if (identifier && !tokenizer.getToken(i - 1).equals(".") && !tokenizer.getToken(i + 1).equals("(")) {
+                        operations.add(new String[] { "lookup", token });
+                    }
+                    break;
+            }
+        }
+        return operations;
+    }
+
+    private void replay(ArrayList<String[]> operations) throws Exception {
+        SymbolTable symbolTable = null;
+        for (String[] operation : operations) {
+            switch (operation[0]) {
+                case "class":
+                    symbolTable = new SymbolTable();
+                    break;
+                case "subroutine":
+                    symbolTable.startSubroutine();
+                    break;
+                case "define":
+                    symbolTable.define(operation[1], operation[2], operation[3]);
+                    break;
+                case "lookup":
+                    if (!symbolTable.kindOf(operation[1]).equals("NONE")) {
+                        checksum += symbolTable.indexOf(operation[1]) + symbolTable.typeOf(operation[1]).length();
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,659 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.function.BiConsumer;
+
+/**
+ * Generates random but valid Jack programs of any size, for benchmarking the compiler at scale and for
+ * differential testing.  The same seed and settings always generate the same program.
+ *
+ * Each class has a few fields, statics and an Array of CELLS elements, a constructor, methods and functions
+ * which return ints, a dispose method, and a test function which makes an object, calls each of the others
+ * once and returns the sum of what they return.  Main prints what the test function of every class returns.
+ * Identifiers are drawn from a pool of a given size (made of syllables, so they never clash with keywords,
+ * class names or the fixed names above), so parameters and locals often hide fields of the same name.
+ *
+ * Programs always halt: loops count up to small constants in counters nothing else assigns, a subroutine only
+ * calls functions of the classes before its own and subroutines of its own class before it, array indices are
+ * masked into the array, and only constants divide.  Nothing generated reads memory it has not set, or depends
+ * on where objects are, so every optimization level must print the same.  Without runnable, calls are not
+ * limited, so the time a program takes can grow exponentially with its number of classes; with runnable, a call
+ * is only made if the VM commands its subroutine is estimated to run stay within COST_BUDGET.
+ */
+public class CorpusGenerator {
+    // the statement kinds of the mix, in the order of its weights
+    private final static String[] STATEMENT_KINDS = { "let", "if", "while", "do", "return" };
+    // how deeply statements nest in ifs and whiles at most
+    private final static int MAX_NESTING = 3;
+    // the elements of each object's array: a power of 2, so any index can be masked into it
+    private final static int CELLS = 8;
+    // with runnable: the most VM commands one run of a subroutine is estimated to take, including its calls
+    private final static long COST_BUDGET = 2000;
+    private final static String CONSONANTS = "bdfgklmnprstvz";
+    private final static int SHUFFLE = 1009;
+    private final static String VOWELS = "aeiou";
+    private final static String[] TYPES = { "int", "int", "int", "char", "boolean" };
+    private final static String[] WORDS = {
+            "the", "value", "of", "each", "next", "count", "index", "is", "kept", "in", "for", "later",
+            "update", "check", "bounds", "sum", "total", "cache", "state", "before", "after", "loop", "until",
+            "done", "reset", "current", "result", "may", "be", "zero", "table", "entry", "step", "size"
+    };
+
+    // the number of classes besides Main, unless lines is set
+    public int classes = 8;
+    // if more than 0, classes are generated until the program has at least this many lines
+    public long lines = 0;
+    // the methods and functions of each class, besides its constructor, dispose and test
+    public int subroutines = 6;
+    // the statements of each subroutine body, not counting those nested in ifs and whiles
+    public int statements = 8;
+    // how deeply expressions nest in parentheses, calls, unary operators and array indices at most
+    public int depth = 3;
+    // the number of distinct identifiers variables and subroutines are named from
+    public int identifiers = 64;
+    // the percentage of statements and declarations with a comment
+    public int comments = 10;
+    // the weight of each statement kind: let, if, while, do, return
+    public int[] mix = { 4, 2, 1, 2, 1 };
+    // whether to keep the program fast enough to run (see above)
+    public boolean runnable = false;
+
+    // a subroutine which later ones may call
+    private static class Subroutine {
+        private String call;
+        private int nArgs;
+        private boolean method;
+        private long cost;
+
+        private Subroutine(String call, int nArgs, boolean method, long cost) {
+            this.call = call;
+            this.nArgs = nArgs;
+            this.method = method;
+            this.cost = cost;
+        }
+    }
+
+    private Random random;
+    private StringBuilder out;
+    private int indent;
+    // the functions of the classes generated so far
+    private ArrayList<Subroutine> functions = new ArrayList<Subroutine>();
+
+    // the subroutine being generated: the variables it may read and assign, whether it is a constructor or method
+    // (and so has fields and cells), the subroutines it may call, its loop counters not in use, and the VM commands
+    // it is estimated to run so far, each counted as many times as the loops it is in run
+    private ArrayList<String> readable;
+    private ArrayList<String> assignable;
+    private boolean hasObject;
+    private boolean constructor;
+    private ArrayList<Subroutine> callable;
+    private ArrayList<String> counters;
+    private long cost;
+    private long multiplier;
+
+    public CorpusGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seed = 1;
+        int count = 1;
+        String outFolder = null;
+        CorpusGenerator settings = new CorpusGenerator(seed);
+        boolean properUsage = true;
+        try {
+            for (String arg : args) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                if (arg.startsWith("--seed=")) {
+                    seed = Long.parseLong(value);
+                }
+                else if (arg.startsWith("--count=")) {
+                    count = Integer.parseInt(value);
+                }
+                else if (arg.startsWith("--classes=")) {
+                    settings.classes = Integer.parseInt(value);
+                }
+                else if (arg.startsWith("--lines=")) {
+                    settings.lines = Long.parseLong(value);
+                }
+                else if (arg.startsWith("--subroutines=")) {
+                    settings.subroutines = Integer.parseInt(value);
+                }
+                else if (arg.startsWith("--statements=")) {
+                    settings.statements = Integer.parseInt(value);
+                }
+                else if (arg.startsWith("--depth=")) {
+                    settings.depth = Integer.parseInt(value);
+                }
+                else if (arg.startsWith("--identifiers=")) {
+                    settings.identifiers = Math.max(1, Integer.parseInt(value));
+                }
+                else if (arg.startsWith("--comments=")) {
+                    settings.comments = Integer.parseInt(value);
+                }
+                else if (arg.startsWith("--mix=")) {
+                    settings.mix = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+                    properUsage &= settings.mix.length == STATEMENT_KINDS.length && Arrays.stream(settings.mix).sum() > 0;
+                }
+                else if (arg.equals("--runnable")) {
+                    settings.runnable = true;
+                }
+                else if (!arg.startsWith("-") && outFolder == null) {
+                    outFolder = arg;
+                }
+                else {
+                    properUsage = false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            properUsage = false;
+        }
+        if (!properUsage || outFolder == null) {
+            System.out.println("IMPROPER USAGE!");
+            System.out.println("CORRECT USAGE: CorpusGenerator [options] outFolder");
+            System.out.println("writes a generated program's .jack files to outFolder, or with --count, each program to its own folder in it");
+            System.out.println("  --seed=N          the seed of the (first) program (default 1)");
+            System.out.println("  --count=N         generate N programs, with the seed and the N-1 after it (default 1)");
+            System.out.println("  --classes=N       classes besides Main (default 8)");
+            System.out.println("  --lines=N         generate classes until there are at least N lines, instead of --classes");
+            System.out.println("  --subroutines=N   methods and functions per class (default 6)");
+            System.out.println("  --statements=N    statements per subroutine body (default 8)");
+            System.out.println("  --depth=N         how deeply expressions nest at most (default 3)");
+            System.out.println("  --identifiers=N   distinct identifiers to name variables and subroutines from (default 64)");
+            System.out.println("  --comments=PERCENT  statements and declarations with a comment (default 10)");
+            System.out.println("  --mix=LET,IF,WHILE,DO,RETURN  the weight of each kind of statement (default 4,2,1,2,1)");
+            System.out.println("  --runnable        limit calls so the program runs quickly (see CorpusGenerator.java)");
+            System.exit(1);
+        }
+
+        for (int i = 0; i < count; i++) {
+            CorpusGenerator generator = new CorpusGenerator(seed + i);
+            generator.copySettings(settings);
+            File folder = count == 1 ? new File(outFolder) : new File(outFolder, "program" + (seed + i));
+            folder.mkdirs();
+            long[] totals = new long[2];
+            generator.generate((className, source) -> {
+                try {
+                    FileWriter writer = new FileWriter(new File(folder, className + ".jack"));
+                    writer.write(source);
+                    writer.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                totals[0]++;
+                totals[1] += lineCount(source);
+            });
+            System.out.println(totals[0] + " classes, " + totals[1] + " lines written to " + folder.getPath());
+        }
+    }
+
+    private void copySettings(CorpusGenerator settings) {
+        classes = settings.classes;
+        lines = settings.lines;
+        subroutines = settings.subroutines;
+        statements = settings.statements;
+        depth = settings.depth;
+        identifiers = settings.identifiers;
+        comments = settings.comments;
+        mix = settings.mix;
+        runnable = settings.runnable;
+    }
+
+    /**
+     * Generates the program one class at a time, Main last, handing each to sink with its name,
+     * so a program of any size can be compiled or written without keeping all of it.
+     */
+    public void generate(BiConsumer<String, String> sink) {
+        ArrayList<String> classNames = new ArrayList<String>();
+        long generatedLines = 0;
+        while (lines > 0 ? generatedLines < lines : classNames.size() < classes) {
+            String className = capitalize(name(classNames.size()));
+            String source = generateClass(className);
+            classNames.add(className);
+            generatedLines += lineCount(source);
+            sink.accept(className, source);
+        }
+
+        out = new StringBuilder();
+        indent = 0;
+        line("class Main {");
+        indent++;
+        line("function void main() {");
+        indent++;
+        for (String className : classNames) {
+            line("do Output.printInt(" + className + ".test());");
+            line("do Output.println();");
+        }
+        line("return;");
+        indent--;
+        line("}");
+        indent--;
+        line("}");
+        sink.accept("Main", out.toString());
+    }
+
+    private static long lineCount(String source) {
+        return source.chars().filter(c -> c == '\n').count();
+    }
+
+    private String generateClass(String className) {
+        out = new StringBuilder();
+        indent = 0;
+        if (chance(comments)) {
+            docComment();
+        }
+        line("class " + className + " {");
+        indent++;
+
+        int nFields = 1 + random.nextInt(4);
+        int nStatics = random.nextInt(3);
+        ArrayList<String> names = distinctNames(nFields + nStatics + subroutines, new HashSet<String>());
+        ArrayList<String> fields = new ArrayList<String>(names.subList(0, nFields));
+        ArrayList<String> statics = new ArrayList<String>(names.subList(nFields, nFields + nStatics));
+        declare("field", fields);
+        line("field Array cells;");
+        declare("static", statics);
+        line("");
+
+        ArrayList<Subroutine> own = new ArrayList<Subroutine>();
+        int constructorArgs = random.nextInt(3);
+        long constructorCost = generateSubroutine(className, "constructor", "new", constructorArgs, fields, statics, own);
+        ArrayList<String> calls = new ArrayList<String>();
+        ArrayList<Integer> nArgs = new ArrayList<Integer>();
+        for (int i = 0; i < subroutines; i++) {
+            String name = names.get(nFields + nStatics + i);
+            boolean method = random.nextBoolean();
+            int n = random.nextInt(4);
+            long subroutineCost = generateSubroutine(className, method ? "method" : "function", name, n, fields, statics, own);
+            own.add(new Subroutine(method ? name : className + "." + name, n, method, subroutineCost));
+            calls.add(method ? "object." + name : className + "." + name);
+            nArgs.add(n);
+        }
+
+        line("method void dispose() {");
+        indent++;
+        line("do cells.dispose();");
+        line("do Memory.deAlloc(this);");
+        line("return;");
+        indent--;
+        line("}");
+        line("");
+
+        line("function int test() {");
+        indent++;
+        line("var " + className + " object;");
+        line("var int sum;");
+        line("let object = " + className + ".new(" + constants(constructorArgs) + ");");
+        for (int i = 0; i < calls.size(); i++) {
+            line("let sum = sum + " + calls.get(i) + "(" + constants(nArgs.get(i)) + ");");
+        }
+        line("do object.dispose();");
+        line("return sum;");
+        indent--;
+        line("}");
+        indent--;
+        line("}");
+
+        for (Subroutine subroutine : own) {
+            if (!subroutine.method) {
+                functions.add(subroutine);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Declares variables, a few to a line.
+     */
+    private void declare(String keyword, ArrayList<String> names) {
+        for (int i = 0; i < names.size(); ) {
+            int n = Math.min(names.size() - i, 1 + random.nextInt(3));
+            line(keyword + " " + TYPES[random.nextInt(TYPES.length)] + " " + String.join(", ", names.subList(i, i + n)) + ";"
+                    + trailingComment());
+            i += n;
+        }
+    }
+
+    /**
+     * Generates a subroutine of the class.
+     * @param kind - constructor, method or function
+     * @param own - the methods and functions of the class generated before it
+     * @return the number of VM commands it is estimated to run
+     */
+    private long generateSubroutine(String className, String kind, String name, int nArgs,
+                                    ArrayList<String> fields, ArrayList<String> statics, ArrayList<Subroutine> own) {
+        constructor = kind.equals("constructor");
+        hasObject = !kind.equals("function");
+        // a constructor's parameters and locals do not hide fields, so it sets every one of them
+        HashSet<String> taken = constructor ? new HashSet<String>(fields) : new HashSet<String>();
+        int nLocals = 1 + random.nextInt(3);
+        ArrayList<String> names = distinctNames(nArgs + nLocals, taken);
+        ArrayList<String> parameters = new ArrayList<String>(names.subList(0, nArgs));
+        ArrayList<String> locals = new ArrayList<String>(names.subList(nArgs, nArgs + nLocals));
+        // loop counters hide nothing, so assigning a variable never changes one
+        taken.addAll(names);
+        taken.addAll(fields);
+        taken.addAll(statics);
+        counters = distinctNames(MAX_NESTING, taken);
+
+        if (chance(comments)) {
+            docComment();
+        }
+        ArrayList<String> declarations = new ArrayList<String>();
+        for (String parameter : parameters) {
+            declarations.add(TYPES[random.nextInt(TYPES.length)] + " " + parameter);
+        }
+        line(kind + " " + (constructor ? className : "int") + " " + name + "(" + String.join(", ", declarations) + ") {");
+        indent++;
+        declare("var", locals);
+        line("var int " + String.join(", ", counters) + ";");
+
+        assignable = new ArrayList<String>(parameters);
+        assignable.addAll(locals);
+        assignable.addAll(statics);
+        if (hasObject) {
+            assignable.addAll(fields);
+        }
+        readable = new ArrayList<String>(assignable);
+        callable = new ArrayList<Subroutine>(functions);
+        for (Subroutine subroutine : own) {
+            if (hasObject || !subroutine.method) {
+                callable.add(subroutine);
+            }
+        }
+        cost = 2 + nLocals + MAX_NESTING;
+        multiplier = 1;
+
+        if (constructor) {
+            line("let cells = Array.new(" + CELLS + ");");
+            String counter = counters.get(0);
+            line("let " + counter + " = 0;");
+            line("while (" + counter + " < " + CELLS + ") {");
+            indent++;
+            line("let cells[" + counter + "] = " + counter + ";");
+            line("let " + counter + " = " + counter + " + 1;");
+            indent--;
+            line("}");
+            // a field may only be read once it is set, since the object's memory may be left over from another
+            readable.removeAll(fields);
+            for (String field : fields) {
+                line("let " + field + " = " + expression(depth) + ";");
+                readable.add(field);
+            }
+            spend(6 * CELLS + 8 + 4 * fields.size());
+        }
+        statements(statements, 0);
+        line(constructor ? "return this;" : "return " + expression(depth) + ";");
+        indent--;
+        line("}");
+        line("");
+        return cost;
+    }
+
+    private void statements(int count, int nesting) {
+        for (int i = 0; i < count; i++) {
+            statement(nesting);
+        }
+    }
+
+    private void statement(int nesting) {
+        if (chance(comments)) {
+            if (random.nextBoolean()) {
+                line("// " + words());
+            }
+            else {
+                line("/* " + words() + " */");
+            }
+        }
+
+        int pick = random.nextInt(Arrays.stream(mix).sum());
+        int kind = 0;
+        while (pick >= mix[kind]) {
+            pick -= mix[kind];
+            kind++;
+        }
+        switch (STATEMENT_KINDS[kind]) {
+            case "if":
+                if (nesting < MAX_NESTING) {
+                    line("if (" + condition(depth) + ") {" + trailingComment());
+                    long before = cost;
+                    indent++;
+                    statements(1 + random.nextInt(3), nesting + 1);
+                    indent--;
+                    long ifCost = cost - before;
+                    cost = before;
+                    if (random.nextBoolean()) {
+                        line("} else {");
+                        indent++;
+                        statements(1 + random.nextInt(3), nesting + 1);
+                        indent--;
+                    }
+                    line("}");
+                    cost = before + Math.max(ifCost, cost - before);
+                    return;
+                }
+                break;
+            case "while":
+                if (nesting < MAX_NESTING && !counters.isEmpty()) {
+                    String counter = counters.remove(counters.size() - 1);
+                    int times = 1 + random.nextInt(4);
+                    line("let " + counter + " = 0;");
+                    line("while (" + counter + " < " + times + ") {" + trailingComment());
+                    indent++;
+                    readable.add(counter);
+                    multiplier *= times;
+                    spend(5);
+                    statements(1 + random.nextInt(3), nesting + 1);
+                    multiplier /= times;
+                    readable.remove(readable.size() - 1);
+                    line("let " + counter + " = " + counter + " + 1;");
+                    indent--;
+                    line("}");
+                    counters.add(counter);
+                    return;
+                }
+                break;
+            case "do":
+                String call = call(depth);
+                if (call != null) {
+                    line("do " + call + ";" + trailingComment());
+                    spend(1);
+                    return;
+                }
+                break;
+            case "return":
+                if (nesting > 0) {
+                    line(constructor ? "return this;" : "return " + expression(depth) + ";");
+                    spend(1);
+                    return;
+                }
+                break;
+        }
+
+        // a let, or a statement of another kind which could not be generated here
+        if (hasObject && random.nextInt(4) == 0) {
+            line("let cells[(" + expression(depth - 1) + ") & " + (CELLS - 1) + "] = " + expression(depth) + ";" + trailingComment());
+            spend(6);
+        }
+        else {
+            line("let " + pickFrom(assignable) + " = " + expression(depth) + ";" + trailingComment());
+            spend(1);
+        }
+    }
+
+    private String expression(int depth) {
+        StringBuilder expression = new StringBuilder(term(depth));
+        int operators = random.nextInt(3);
+        for (int i = 0; i < operators; i++) {
+            char operator = "+-*&|/<=".charAt(random.nextInt(8));
+            if (operator == '/') {
+                // only nonzero constants divide
+                expression.append(" / ").append(1 + random.nextInt(9));
+            }
+            else {
+                expression.append(" ").append(operator).append(" ").append(term(depth));
+            }
+            spend(operator == '*' || operator == '/' ? 3 : 1);
+        }
+        return expression.toString();
+    }
+
+    private String condition(int depth) {
+        String condition = term(depth) + " " + "<>=".charAt(random.nextInt(3)) + " " + term(depth);
+        spend(2);
+        switch (random.nextInt(4)) {
+            case 0:
+                spend(3);
+                return "(" + condition + ") " + "&|".charAt(random.nextInt(2)) + " (" + condition(depth - 1) + ")";
+            case 1:
+                spend(1);
+                return "~(" + condition + ")";
+            default:
+                return condition;
+        }
+    }
+
+    private String term(int depth) {
+        spend(1);
+        switch (random.nextInt(depth > 0 ? 8 : 3)) {
+            case 0:
+                return Integer.toString(random.nextInt(10) == 0 ? random.nextInt(32768) : random.nextInt(100));
+            case 3:
+                return "(" + expression(depth - 1) + ")";
+            case 4:
+                return (random.nextBoolean() ? "-" : "~") + term(depth - 1);
+            case 5:
+                if (hasObject) {
+                    spend(3);
+                    return "cells[(" + expression(depth - 1) + ") & " + (CELLS - 1) + "]";
+                }
+                break;
+            case 6:
+                String call = call(depth - 1);
+                if (call != null) {
+                    return call;
+                }
+                break;
+            case 7:
+                return "(" + condition(depth - 1) + ")";
+        }
+        return readable.isEmpty() ? "0" : pickFrom(readable);
+    }
+
+    /**
+     * Returns a call of a subroutine this one may call, or null if there is none (or, with runnable, none cheap enough).
+     */
+    private String call(int depth) {
+        ArrayList<Subroutine> candidates = callable;
+        if (runnable) {
+            candidates = new ArrayList<Subroutine>();
+            for (Subroutine subroutine : callable) {
+                if (cost + multiplier * (subroutine.cost + 2 * subroutine.nArgs + 4) <= COST_BUDGET) {
+                    candidates.add(subroutine);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        Subroutine callee = candidates.get(random.nextInt(candidates.size()));
+        spend(callee.cost + 4);
+        ArrayList<String> arguments = new ArrayList<String>();
+        for (int i = 0; i < callee.nArgs; i++) {
+            arguments.add(expression(Math.max(depth, 0)));
+        }
+        return callee.call + "(" + String.join(", ", arguments) + ")";
+    }
+
+    private String constants(int n) {
+        ArrayList<String> constants = new ArrayList<String>();
+        for (int i = 0; i < n; i++) {
+            constants.add(Integer.toString(random.nextInt(100)));
+        }
+        return String.join(", ", constants);
+    }
+
+    private void spend(long commands) {
+        cost += commands * multiplier;
+    }
+
+    /**
+     * Returns count names from the pool of identifiers, different from each other and from taken,
+     * numbering names over again once the pool runs out.
+     */
+    private ArrayList<String> distinctNames(int count, HashSet<String> taken) {
+        ArrayList<String> names = new ArrayList<String>();
+        HashSet<String> used = new HashSet<String>(taken);
+        for (int attempt = 0; names.size() < count; attempt++) {
+            String name = name(random.nextInt(identifiers));
+            if (attempt >= 4 * identifiers) {
+                name += attempt;
+            }
+            if (used.add(name)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns the nth identifier: syllables of a consonant and a vowel, at least two of them.
+     */
+    private static String name(int n) {
+        int syllables = CONSONANTS.length() * VOWELS.length();
+        if (n < syllables * syllables) {
+            // shuffled, so a small pool does not name everything alike; SHUFFLE shares no factor with it
+            n = (int) ((long) n * SHUFFLE % (syllables * syllables));
+        }
+        StringBuilder name = new StringBuilder();
+        do {
+            int syllable = n % syllables;
+            name.append(CONSONANTS.charAt(syllable / VOWELS.length())).append(VOWELS.charAt(syllable % VOWELS.length()));
+            n /= syllables;
+        } while (n > 0 || name.length() < 4);
+        return name.toString();
+    }
+
+    private static String capitalize(String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private String pickFrom(ArrayList<String> names) {
+        return names.get(random.nextInt(names.size()));
+    }
+
+    private boolean chance(int percent) {
+        return random.nextInt(100) < percent;
+    }
+
+    private String words() {
+        int n = 2 + random.nextInt(8);
+        StringBuilder words = new StringBuilder(WORDS[random.nextInt(WORDS.length)]);
+        for (int i = 1; i < n; i++) {
+            words.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return words.toString();
+    }
+
+    private String trailingComment() {
+        return chance(comments / 2) ? " // " + words() : "";
+    }
+
+    private void docComment() {
+        line("/**");
+        for (int i = random.nextInt(3); i >= 0; i--) {
+            line(" * " + words());
+        }
+        line(" */");
+    }
+
+    private void line(String text) {
+        if (!text.isEmpty()) {
+            out.append("    ".repeat(indent)).append(text);
+        }
+        out.append('\n');
+    }
+}
@@ -0,0 +1,249 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Checks that optimizations do not change what programs do: compiles each Jack program at every
+ * optimization level, and at -O2 with a profile of its own run (from a -O2 build made for profiling,
+ * which is also compared), runs every build on the VMInterpreter, and reports the programs whose builds
+ * print different output or end differently (halting, failing with a Sys.error code, or crashing)
+ * from the -O0 build.  The optimized builds are compiled as for --target=asm, so they include what is
+ * only written for translation to assembly, like jump tables, and a folder's optimized builds are linked
+ * into one image (see Linker).
+ *
+ * Each optimized build is then also translated as --target=asm translates it (with the top of the stack
+ * cached in D, leaf functions of a folder called without a frame, and, for the profile build, cold functions
+ * compacted), the -O2 build also with --optimize=size, and run on the HackEmulator, whose outcome is compared
+ * the same way, so the translator's optimizations are tested too.  A translation too large for the Hack ROM
+ * is not run, and is reported on its own.
+ *
+ * A program folder may also hold an expected.txt with exactly what the program must print; then every build,
+ * -O0 included, is compared with it, which catches code generation bugs all the builds share.
+ */
+public class DifferentialTester {
+    // each build's options, in the order they are run: the profile is taken from the --profile-generate build's run
+    private final static String[] BUILDS = { "-O0", "-O1", "-O2", "-O2 --profile-generate", "-O2 --profile-use" };
+    private final static String EXPECTED_FILE = "expected.txt";
+    // the outcome of a translation which does not fit in the ROM, which is not compared
+    private final static String TOO_LARGE = "[too large for the ROM]";
+
+    public static void main(String[] args) throws Exception {
+        ArrayList<File> inLocations = new ArrayList<File>();
+        long maxSteps = 10000000L;
+        long maxCycles = HackEmulator.DEFAULT_MAX_CYCLES;
+        for (String arg : args) {
+            if (arg.startsWith("--max-steps=")) {
+                maxSteps = Long.parseLong(arg.substring("--max-steps=".length()));
+            }
+            else if (arg.startsWith("--max-cycles=")) {
+                maxCycles = Long.parseLong(arg.substring("--max-cycles=".length()));
+            }
+            else if (!arg.startsWith("-")) {
+                inLocations.add(new File(arg));
+            }
+            else {
+                inLocations.clear();
+                break;
+            }
+        }
+
+        // check for proper usage
+        if (inLocations.isEmpty()) {
+            System.out.println("IMPROPER USAGE!");
+            System.out.println("CORRECT USAGE: DifferentialTester [--max-steps=N] [--max-cycles=N] inLocation...");
+            System.out.println("where each inLocation is a program (a .jack file or a folder of .jack files),");
+            System.out.println("or a folder of such programs");
+            System.out.println("  --max-steps=N    stop each run on the interpreter after N VM commands (default " + maxSteps + ")");
+            System.out.println("  --max-cycles=N   stop each run on the emulator after N cycles (default " + maxCycles + ")");
+            System.exit(1);
+        }
+
+        ArrayList<File> programs = new ArrayList<File>();
+        for (File inLocation : inLocations) {
+            findPrograms(inLocation, programs);
+        }
+
+        long start = System.nanoTime();
+        int mismatches = 0;
+        int inconclusive = 0;
+        int tooLarge = 0;
+        for (File program : programs) {
+            // what each run is, and how it ended
+            ArrayList<String> runs = new ArrayList<String>();
+            ArrayList<String> outcomes = new ArrayList<String>();
+            // whether a run was stopped at the step or cycle limit
+            boolean[] limited = new boolean[1];
+            Profile profile = null;
+            for (String build : BUILDS) {
+                VMInterpreter interpreter = new VMInterpreter(true);
+                ArrayList<String> classNames = new ArrayList<String>();
+                ArrayList<VMInstructions> classes = new ArrayList<VMInstructions>();
+                CompilerOptions options = null;
+                runs.add(build);
+                try {
+                    options = compile(program, build, profile, classNames, classes);
+                    for (int k = 0; k < classes.size(); k++) {
+                        interpreter.addClass(classNames.get(k), classes.get(k));
+                    }
+                    limited[0] |= !interpreter.run(maxSteps);
+                    outcomes.add(interpreter.getOutput()
+                            + (interpreter.getErrorCode() != 0 ? "\n[Sys.error " + interpreter.getErrorCode() + "]" : ""));
+                } catch (Exception e) {
+                    outcomes.add(interpreter.getOutput() + "\n[" + e.getMessage() + "]");
+                }
+                if (build.endsWith("--profile-generate")) {
+                    profile = Profile.of(interpreter);
+                }
+
+                if (options != null && options.optimizationLevel > 0) {
+                    runs.add(build + " on the emulator");
+                    outcomes.add(emulate(options, classNames, classes, false, maxCycles, limited));
+                    if (build.equals("-O2")) {
+                        runs.add(build + " --optimize=size on the emulator");
+                        outcomes.add(emulate(options, classNames, classes, true, maxCycles, limited));
+                    }
+                }
+            }
+
+            if (limited[0]) {
+                // the builds run different numbers of commands, so they may have got different distances
+                inconclusive++;
+                continue;
+            }
+            File expectedFile = new File(program, EXPECTED_FILE);
+            String expected = expectedFile.isFile() ? new String(Files.readAllBytes(expectedFile.toPath())) : outcomes.get(0);
+            String reference = expectedFile.isFile() ? "expected" : "-O0";
+            for (int run = 0; run < runs.size(); run++) {
+                if (outcomes.get(run).equals(TOO_LARGE)) {
+                    tooLarge++;
+                }
+                else if (!outcomes.get(run).equals(expected)) {
+                    mismatches++;
+                    System.out.println("MISMATCH: " + program.getPath() + " at " + runs.get(run));
+                    System.out.println("  " + reference + ": " + abbreviate(expected));
+                    System.out.println("  " + runs.get(run) + ": " + abbreviate(outcomes.get(run)));
+                    break;
+                }
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(programs.size() + " programs, " + mismatches + " mismatches, "
+                + inconclusive + " stopped at the step or cycle limit (not compared)");
+        if (tooLarge > 0) {
+            System.out.println(tooLarge + " translations too large for the ROM (not run on the emulator)");
+        }
+        System.out.println(String.format("%.1f seconds, %.0f programs per minute", seconds, programs.size() * 60 / Math.max(seconds, 1e-9)));
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Adds inLocation to programs if it is a program, or else every program in it.
+     */
+    private static void findPrograms(File inLocation, ArrayList<File> programs) {
+        if (!inLocation.isDirectory()) {
+            if (inLocation.getName().endsWith(".jack")) {
+                programs.add(inLocation);
+            }
+            return;
+        }
+
+        File[] files = inLocation.listFiles();
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().endsWith(".jack")) {
+                programs.add(inLocation);
+                return;
+            }
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                findPrograms(file, programs);
+            }
+        }
+    }
+
+    /**
+     * Compiles every class of a program in memory as one of the BUILDS.
+     * @param profile - the profile a --profile-use build is compiled with, or null to compile it without one
+     * @param classNames - where the name of each class is added
+     * @param classes - where the commands of each class are added
+     * @return the options the build was compiled with
+     */
+    private static CompilerOptions compile(File program, String build, Profile profile,
+                                           ArrayList<String> classNames, ArrayList<VMInstructions> classes) throws Exception {
+        CompilerOptions options = new CompilerOptions();
+        options.optimizationLevel = build.charAt(2) - '0';
+        options.target = options.optimizationLevel > 0 ? "asm" : "vm";
+        options.quiet = true;
+        options.wholeProgram = program.isDirectory();
+        if (build.endsWith("--profile-generate")) {
+            // only tells the compiler to keep the labels a profile names branches by; nothing is written
+            options.profileGenerate = "profile";
+        }
+        else if (build.endsWith("--profile-use")) {
+            options.profile = profile;
+        }
+
+        ArrayList<String> unlinkedNames = new ArrayList<String>();
+        ArrayList<VMInstructions> unlinked = new ArrayList<VMInstructions>();
+        File[] inFiles = program.isDirectory() ? program.listFiles() : new File[] { program };
+        Arrays.sort(inFiles);
+        for (File inFile : inFiles) {
+            String inFileName = inFile.getName();
+            if (inFileName.endsWith(".jack")) {
+                CompilationEngine compiler = new CompilationEngine(inFile, null, null, options);
+                unlinkedNames.add(inFileName.substring(0, inFileName.indexOf(".jack")));
+                unlinked.add(compiler.getVMInstructions());
+            }
+        }
+        if (options.profile != null) {
+            // as JackAnalyzer does, before linking
+            new Inliner(options.profile, options.wholeProgram && options.optimizationLevel >= 1).inline(unlinkedNames, unlinked);
+        }
+        if (options.wholeProgram && options.optimizationLevel > 0) {
+            // linked into one image, as a folder is for --target=asm
+            Linker linker = new Linker(unlinkedNames, unlinked);
+            unlinkedNames = linker.getClassNames();
+            unlinked = linker.getFunctions();
+        }
+        classNames.addAll(unlinkedNames);
+        classes.addAll(unlinked);
+        return options;
+    }
+
+    /**
+     * Translates a compiled build as JackAnalyzer does for --target=asm, with the bootstrap code, and runs it
+     * on the HackEmulator.
+     * @param limited - its first element is set if the run is stopped at maxCycles
+     * @return how the run ended, as for the interpreter, or TOO_LARGE if the translation does not fit in the ROM
+     */
+    private static String emulate(CompilerOptions options, ArrayList<String> classNames, ArrayList<VMInstructions> classes,
+                                  boolean optimizeForSize, long maxCycles, boolean[] limited) {
+        HackEmulator emulator = null;
+        try {
+            CodeWriter codeWriter = new CodeWriter(optimizeForSize);
+            if (options.profile != null) {
+                codeWriter.setColdFunctions(options.profile.coldFunctions());
+            }
+            VMTranslator.translateProgram(codeWriter, classNames, classes, options.wholeProgram && options.optimizationLevel >= 1);
+            codeWriter.close();
+            if (codeWriter.getRomWords() > HackEmulator.ROM_SIZE) {
+                return TOO_LARGE;
+            }
+            emulator = new HackEmulator(codeWriter.getAssembly());
+            limited[0] |= !emulator.run(maxCycles);
+            return emulator.getOutput() + (emulator.getErrorCode() != 0 ? "\n[Sys.error " + emulator.getErrorCode() + "]" : "");
+        } catch (Exception e) {
+            return (emulator != null ? emulator.getOutput() : "") + "\n[" + e.getMessage() + "]";
+        }
+    }
+
+    private static String abbreviate(String outcome) {
+        outcome = outcome.replace("\n", "\\n");
+        return outcome.length() > 200 ? outcome.substring(0, 200) + "..." : outcome;
+    }
+}
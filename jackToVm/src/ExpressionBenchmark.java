@@ -0,0 +1,116 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Times compiling expressions nested deeply in each way Jack allows: long chains of binary operators,
+ * parentheses, unary operators, call arguments and array indices.  Each is compiled in memory (parse tree
+ * and VM code, without writing files) several times after warming up, and the median time is reported,
+ * both as compiled and with the recursive descent the explicit expression stack replaced (see
+ * CompilationEngine.compileExpressionRecursively), which must build the same parse tree and VM code.
+ *
+ * It runs on a thread with a very deep stack, so the recursive reference can be timed on the same expressions.
+ */
+public class ExpressionBenchmark {
+    private final static int WARMUP_RUNS = 3;
+    private final static int TIMED_RUNS = 7;
+    private final static long STACK_SIZE = 1L << 30;
+
+    public static void main(String[] args) throws Exception {
+        int depth = 10000;
+        int optimizationLevel = 2;
+        boolean properUsage = true;
+        for (String arg : args) {
+            if (arg.matches("-O[012]")) {
+                optimizationLevel = arg.charAt(2) - '0';
+            }
+            else if (arg.matches("[0-9]+")) {
+                depth = Integer.parseInt(arg);
+            }
+            else {
+                properUsage = false;
+            }
+        }
+        if (!properUsage) {
+            System.out.println("IMPROPER USAGE!");
+            System.out.println("CORRECT USAGE: ExpressionBenchmark [-O0|-O1|-O2] [depth]");
+            System.out.println("where depth (default 10000) is how deeply the expressions are nested");
+            System.out.println("  -O0, -O1, -O2  the optimization level to compile with (default -O2)");
+            System.exit(1);
+        }
+
+        int nesting = depth;
+        int level = optimizationLevel;
+        Exception[] error = new Exception[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                run(nesting, level);
+            } catch (Exception e) {
+                error[0] = e;
+            }
+        }, "benchmark", STACK_SIZE);
+        thread.start();
+        thread.join();
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    private static void run(int depth, int optimizationLevel) throws Exception {
+        LinkedHashMap<String, String> expressions = new LinkedHashMap<String, String>();
+        expressions.put("operators", "1" + "+1".repeat(depth));
+        expressions.put("parentheses", "(1+".repeat(depth) + "1" + ")".repeat(depth));
+        expressions.put("unary", "-".repeat(depth) + "1");
+        expressions.put("grouping", "(".repeat(depth) + "1" + ")".repeat(depth));
+        expressions.put("calls", "Main.f(".repeat(depth) + "1" + ")".repeat(depth));
+        expressions.put("indices", "a[".repeat(depth) + "0" + "]".repeat(depth));
+
+        CompilerOptions options = new CompilerOptions();
+        CompilerOptions recursiveOptions = new CompilerOptions();
+        for (CompilerOptions each : new CompilerOptions[] { options, recursiveOptions }) {
+            each.quiet = true;
+            each.parallelCodegen = false;
+            each.optimizationLevel = optimizationLevel;
+        }
+        recursiveOptions.recursiveExpressions = true;
+
+        System.out.println(String.format("expressions nested %d deep, compiled with -O%d (median ms)", depth, optimizationLevel));
+        System.out.println(String.format("%-12s %10s %10s", "expression", "stack", "recursive"));
+        for (Map.Entry<String, String> expression : expressions.entrySet()) {
+            String source = "class Main {\n"
+                    + "    function int f(int x) { return x; }\n"
+                    + "    function void main() {\n"
+                    + "        var int x;\n"
+                    + "        var Array a;\n"
+                    + "        let x = " + expression.getValue() + ";\n"
+                    + "        return;\n"
+                    + "    }\n"
+                    + "}\n";
+
+            CompilationEngine compiled = new CompilationEngine("Main.jack", source, options);
+            CompilationEngine reference = new CompilationEngine("Main.jack", source, recursiveOptions);
+            if (!compiled.getXml().equals(reference.getXml())
+                    || !compiled.getVMInstructions().toString().equals(reference.getVMInstructions().toString())) {
+                throw new Exception("ERROR: the " + expression.getKey() + " expression compiles differently by recursive descent");
+            }
+            System.out.println(String.format("%-12s %10.1f %10.1f", expression.getKey(),
+                    medianMillis(source, options), medianMillis(source, recursiveOptions)));
+        }
+    }
+
+    /**
+     * Returns the median time to compile source, in milliseconds, after warming up.
+     */
+    private static double medianMillis(String source, CompilerOptions options) throws Exception {
+        long[] nanos = new long[TIMED_RUNS];
+        for (int run = -WARMUP_RUNS; run < TIMED_RUNS; run++) {
+            long start = System.nanoTime();
+            new CompilationEngine("Main.jack", source, options);
+            if (run >= 0) {
+                nanos[run] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(nanos);
+        return nanos[TIMED_RUNS / 2] / 1e6;
+    }
+}
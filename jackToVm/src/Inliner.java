@@ -0,0 +1,263 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Inlines the hot calls of a program into their callers, using a Profile: each call from one function
+ * to another that makes up at least HOT_CALL_SHARE of all calls is replaced by a copy of the callee's
+ * commands, if the callee is small enough.
+ *
+ * The copy works on locals of the caller: the arguments are popped into new locals past the caller's own,
+ * followed by the callee's locals (zeroed, as a call would, unless each is set before it could be read)
+ * and, for each of pointer 0 and pointer 1 the callee sets, a local to save it in and restore it from
+ * afterwards, as a return would (callers rely on pointer 1 still holding an array element's address after
+ * a call).  Every inlined call in a caller uses the same new locals.  Each return becomes a jump past the
+ * copy, which leaves the returned value on the stack as the call did.  The copied commands keep the source positions of the callee's.
+ */
+public class Inliner {
+    // the most commands (not counting the function command) a callee may have
+    private final static int MAX_CALLEE_COMMANDS = 40;
+    private final static double HOT_CALL_SHARE = 0.01;
+
+    private Profile profile;
+    private long hotCalls;
+    // every function of the program: its commands, from its function command up to the next one, and its class
+    private HashMap<String, VMInstructions> functions = new HashMap<String, VMInstructions>();
+    private HashMap<String, String> classOf = new HashMap<String, String>();
+    private int inlinedCalls = 0;
+    // whether the program is translated with leaf calls (see LeafFunctions), which cost less than a copy
+    // whose arguments and locals are the caller's locals
+    private boolean leafCalls;
+
+    /**
+     * @param leafCalls - whether the program will be translated with calls to functions that call nothing
+     * made without a frame (see LeafFunctions), so such functions are not inlined
+     */
+    public Inliner(Profile profile, boolean leafCalls) {
+        this.profile = profile;
+        this.leafCalls = leafCalls;
+        hotCalls = Math.max(1, (long) Math.ceil(profile.totalCalls() * HOT_CALL_SHARE));
+    }
+
+    /**
+     * Inlines the hot calls of a whole program.
+     * @param classNames - the name of each class
+     * @param classes - the commands of each class, which are replaced by their inlined commands
+     */
+    public void inline(ArrayList<String> classNames, ArrayList<VMInstructions> classes) {
+        for (int k = 0; k < classes.size(); k++) {
+            for (VMInstructions function : splitFunctions(classes.get(k))) {
+                if (function.size() > 0 && function.opcode(0) == VMInstructions.FUNCTION) {
+                    functions.put(function.symbol(0), function);
+                    classOf.put(function.symbol(0), classNames.get(k));
+                }
+            }
+        }
+
+        for (int k = 0; k < classes.size(); k++) {
+            VMInstructions inlined = new VMInstructions();
+            for (VMInstructions function : splitFunctions(classes.get(k))) {
+                inlined.addAll(function.size() > 0 && function.opcode(0) == VMInstructions.FUNCTION
+                        ? inlineCalls(function, classNames.get(k)) : function);
+            }
+            classes.set(k, inlined);
+        }
+    }
+
+    /**
+     * Returns the number of calls inlined.
+     */
+    public int getInlinedCalls() {
+        return inlinedCalls;
+    }
+
+    /**
+     * Splits the commands of a class into functions, each starting at its function command.
+     */
+    private static ArrayList<VMInstructions> splitFunctions(VMInstructions instructions) {
+        ArrayList<VMInstructions> functions = new ArrayList<VMInstructions>();
+        VMInstructions function = new VMInstructions();
+        for (int i = 0; i < instructions.size(); i++) {
+            if (instructions.opcode(i) == VMInstructions.FUNCTION && function.size() > 0) {
+                functions.add(function);
+                function = new VMInstructions();
+            }
+            function.setSource(instructions, i);
+            function.add(instructions.opcode(i), instructions.argument(i), instructions.index(i), instructions.symbol(i));
+        }
+        functions.add(function);
+        return functions;
+    }
+
+    /**
+     * Returns the commands of a function, with its hot calls inlined.
+     * @param function - the commands of the function, starting at its function command
+     * @param className - the class the function belongs to
+     */
+    private VMInstructions inlineCalls(VMInstructions function, String className) {
+        String caller = function.symbol(0);
+        int callerLocals = function.argument(0);
+        int extraLocals = 0;
+        int copies = 0;
+
+        VMInstructions body = new VMInstructions();
+        for (int i = 1; i < function.size(); i++) {
+            String callee = function.symbol(i);
+            body.setSource(function, i);
+            if (function.opcode(i) == VMInstructions.CALL && isInlinable(caller, callee, className)) {
+                int locals = writeCopy(body, functions.get(callee), function.argument(i), callerLocals, "INLINE" + copies + "_");
+                extraLocals = Math.max(extraLocals, locals);
+                copies++;
+            }
+            else {
+                body.add(function.opcode(i), function.argument(i), function.index(i), function.symbol(i));
+            }
+        }
+
+        VMInstructions inlined = new VMInstructions();
+        inlined.setSource(function, 0);
+        inlined.add(VMInstructions.FUNCTION, callerLocals + extraLocals, 0, caller);
+        inlined.addAll(body);
+        inlinedCalls += copies;
+        return inlined;
+    }
+
+    /**
+     * Returns whether caller's calls to callee are hot, and callee can be inlined into caller.
+     */
+    private boolean isInlinable(String caller, String callee, String className) {
+        VMInstructions function = functions.get(callee);
+        if (function == null || callee.equals(caller) || profile.callCount(caller, callee) < hotCalls
+                || function.size() - 1 > MAX_CALLEE_COMMANDS) {
+            return false;
+        }
+
+        // the copy must not run off its end, which the function would have run off into the next one
+        int last = function.opcode(function.size() - 1);
+        if (last != VMInstructions.RETURN && last != VMInstructions.GOTO) {
+            return false;
+        }
+        boolean callsAnything = false;
+        for (int i = 1; i < function.size(); i++) {
+            callsAnything |= function.opcode(i) == VMInstructions.CALL;
+            if (function.opcode(i) == VMInstructions.CALL && function.symbol(i).equals(callee)) {
+                return false;
+            }
+            // a recursive function whose calls to itself were made into jumps saves only its first call,
+            // while its every level would run on the caller's locals
+            if (function.opcode(i) == VMInstructions.LABEL && function.symbol(i).startsWith(CodeGenerator.TAIL_CALL_LABEL)) {
+                return false;
+            }
+            // statics are named after the class they are used in
+            if ((function.opcode(i) == VMInstructions.PUSH || function.opcode(i) == VMInstructions.POP)
+                    && function.argument(i) == VMInstructions.STATIC && !classOf.get(callee).equals(className)) {
+                return false;
+            }
+        }
+        return callsAnything || !leafCalls;
+    }
+
+    /**
+     * Writes a copy of a function in place of a call to it.
+     * @param body - the commands of the caller to append the copy to
+     * @param function - the commands of the callee, starting at its function command
+     * @param nArgs - the number of arguments of the call
+     * @param base - the first local of the caller the copy may use
+     * @param prefix - the prefix of the copy's labels
+     * @return the number of locals of the caller the copy uses
+     */
+    private static int writeCopy(VMInstructions body, VMInstructions function, int nArgs, int base, String prefix) {
+        int nLocals = function.argument(0);
+        // whether the callee sets pointer 0 and pointer 1
+        boolean[] setsPointer = new boolean[2];
+        for (int i = 1; i < function.size(); i++) {
+            if (function.opcode(i) == VMInstructions.POP && function.argument(i) == VMInstructions.POINTER) {
+                setsPointer[function.index(i)] = true;
+            }
+        }
+
+        // the arguments, top of the stack first
+        for (int i = nArgs - 1; i >= 0; i--) {
+            body.add(VMInstructions.POP, VMInstructions.LOCAL, base + i, null);
+        }
+        for (int i = 0; i < nLocals; i++) {
+            if (!isSetBeforeRead(function, i)) {
+                body.add(VMInstructions.PUSH, VMInstructions.CONSTANT, 0, null);
+                body.add(VMInstructions.POP, VMInstructions.LOCAL, base + nArgs + i, null);
+            }
+        }
+        int saved = base + nArgs + nLocals;
+        for (int pointer = 0, local = saved; pointer < 2; pointer++) {
+            if (setsPointer[pointer]) {
+                body.add(VMInstructions.PUSH, VMInstructions.POINTER, pointer, null);
+                body.add(VMInstructions.POP, VMInstructions.LOCAL, local++, null);
+            }
+        }
+
+        boolean jumpsToEnd = false;
+        for (int i = 1; i < function.size(); i++) {
+            int opcode = function.opcode(i);
+            body.setSource(function, i);
+            switch (opcode) {
+                case VMInstructions.PUSH:
+                case VMInstructions.POP:
+                    int segment = function.argument(i);
+                    if (segment == VMInstructions.ARGUMENT) {
+                        body.add(opcode, VMInstructions.LOCAL, base + function.index(i), null);
+                    }
+                    else if (segment == VMInstructions.LOCAL) {
+                        body.add(opcode, VMInstructions.LOCAL, base + nArgs + function.index(i), null);
+                    }
+                    else {
+                        body.add(opcode, segment, function.index(i), null);
+                    }
+                    break;
+                case VMInstructions.LABEL:
+                case VMInstructions.GOTO:
+                case VMInstructions.IF_GOTO:
+                    body.add(opcode, 0, 0, prefix + function.symbol(i));
+                    break;
+                case VMInstructions.RETURN:
+                    if (i < function.size() - 1) {
+                        body.add(VMInstructions.GOTO, 0, 0, prefix + "END");
+                        jumpsToEnd = true;
+                    }
+                    break;
+                default:
+                    body.add(opcode, function.argument(i), function.index(i), function.symbol(i));
+                    break;
+            }
+        }
+
+        if (jumpsToEnd) {
+            body.add(VMInstructions.LABEL, 0, 0, prefix + "END");
+        }
+        // the returned value stays on top of the stack
+        for (int pointer = 0; pointer < 2; pointer++) {
+            if (setsPointer[pointer]) {
+                body.add(VMInstructions.PUSH, VMInstructions.LOCAL, saved, null);
+                body.add(VMInstructions.POP, VMInstructions.POINTER, pointer, null);
+                saved++;
+            }
+        }
+        return saved - base;
+    }
+
+    /**
+     * Returns whether a function pops into one of its locals before any read of it, label or jump, so the
+     * local never needs to be zeroed.
+     */
+    private static boolean isSetBeforeRead(VMInstructions function, int local) {
+        for (int i = 1; i < function.size(); i++) {
+            int opcode = function.opcode(i);
+            if (opcode == VMInstructions.LABEL || opcode == VMInstructions.GOTO || opcode == VMInstructions.IF_GOTO
+                    || opcode == VMInstructions.JUMP_TABLE || opcode == VMInstructions.RETURN) {
+                return false;
+            }
+            if ((opcode == VMInstructions.PUSH || opcode == VMInstructions.POP)
+                    && function.argument(i) == VMInstructions.LOCAL && function.index(i) == local) {
+                return opcode == VMInstructions.POP;
+            }
+        }
+        return false;
+    }
+}
@@ -1,51 +1,176 @@
 import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 
 public class JackAnalyzer {
     public static void main(String[] args) throws Exception {
         // check for proper usage
-        if (args.length != 1) {
-            System.out.println("IMPROPER USAGE!");
-            System.out.println("CORRECT USAGE: JackAnalyzer inLocation");
-            System.out.println("where inLocation is the name of a folder of .jack files or an individual .jack file");
+        CompilerOptions options = null;
+        try {
+            options = CompilerOptions.parse(args);
+        } catch (Exception e) {
+            printUsage(System.out, e.getMessage());
             System.exit(1);
         }
+        compile(options);
+    }
+
+    /**
+     * Prints what is wrong with the command line arguments, and what they should be.
+     */
+    public static void printUsage(PrintStream out, String problem) {
+        out.println("IMPROPER USAGE! " + problem);
+        out.println("CORRECT USAGE: JackAnalyzer [options] inLocation");
+        out.println("where inLocation is the name of a folder of .jack files or an individual .jack file");
+        out.println("options:");
+        out.println("  --no-parallel    compile one file at a time, and the subroutines of each class on a single thread");
+        out.println("  --pool-strings   build each string literal once and reuse it (see README)");
+        out.println("  -O0, -O1, -O2    optimization level (default -O2, see README)");
+        out.println("  --target=asm     translate the compiled program to one .asm file instead of writing .vm files");
+        out.println("  --optimize=size  with --target=asm, share one copy of the code for comparisons, calls and returns");
+        out.println("  --quiet          do not print progress or optimization reports");
+        out.println("  --source-map     write a map from the VM commands or assembly back to the Jack source (see README)");
+        out.println("  --profile-generate=FILE  run the compiled program and write how often its parts ran to FILE");
+        out.println("  --profile-use=FILE       use a profile from --profile-generate to inline hot calls and lay out branches");
+    }
+
+    /**
+     * Compiles the program at options.inLocation, writing the files the options ask for to the working directory.
+     * @return the VM code of each class, by class name
+     * @throws Exception if the program cannot be read, compiled or written
+     */
+    public static LinkedHashMap<String, VMInstructions> compile(CompilerOptions options) throws Exception {
+        if (options.profileUse != null) {
+            options.profile = Profile.read(options.file(options.profileUse));
+        }
+
+        // every class is compiled before any is written, so the whole program can be inlined, translated or run
+        ArrayList<String> classNames = new ArrayList<String>();
+        ArrayList<VMInstructions> classes = new ArrayList<VMInstructions>();
 
         // compile input file or all files in input file directory
-        final File inFile = new File(args[0]);
+        final File inFile = options.file(options.inLocation);
+        String programName = inFile.getName();
+        ArrayList<File> inFiles = new ArrayList<File>();
+        options.wholeProgram = inFile.isDirectory();
         if (inFile.isDirectory()) {
-            for (final File thisInFile : inFile.listFiles()) {
-                createOutFileAndCompile(thisInFile);
+            // sorted, so the output does not depend on the order the file system lists files in
+            File[] files = inFile.listFiles();
+            Arrays.sort(files);
+            for (final File thisInFile : files) {
+                if (thisInFile.getName().endsWith(".jack")) {
+                    inFiles.add(thisInFile);
+                }
             }
         }
         else {
-            createOutFileAndCompile(inFile);
+            programName = programName.substring(0, programName.indexOf(".jack"));
+            inFiles.add(inFile);
         }
+        // with a profile, the .vm files are written after inlining
+        new CompilePipeline(options, options.target.equals("vm") && options.profile == null).compile(inFiles, classNames, classes);
 
-    }
+        if (options.profile != null) {
+            // leaf functions of a whole program translated at -O1 and above are cheaper to call than to copy
+            Inliner inliner = new Inliner(options.profile,
+                    options.target.equals("asm") && inFile.isDirectory() && options.optimizationLevel >= 1);
+            inliner.inline(classNames, classes);
+            if (!options.quiet) {
+                options.log.println("calls inlined using the profile: " + inliner.getInlinedCalls());
+            }
+            if (options.target.equals("vm") && options.writeClassFiles) {
+                for (int k = 0; k < classes.size(); k++) {
+                    write(options, classNames.get(k) + ".vm", classes.get(k).toString());
+                }
+                if (!options.quiet) {
+                    options.log.println("files written with VM code");
+                }
+            }
+        }
 
-    /**
-     * Creates an out file and compiles the .jack in file into it.
-     * @param inFile - the file to compile
-     */
-    private static void createOutFileAndCompile(File inFile) throws Exception {
-        String inFileName = inFile.getName();
-        String outFileName = inFileName.substring(0, inFileName.indexOf(".jack")) + ".xml";
+        if (options.sourceMap && options.target.equals("vm") && options.writeClassFiles) {
+            for (int k = 0; k < classes.size(); k++) {
+                File mapFile = options.file(classNames.get(k) + ".vm.map");
+                SourceMap.of(classes.get(k)).write(mapFile);
+                options.writtenFiles.add(mapFile);
+            }
+        }
 
-        File outFile = new File(outFileName);
-        try {
-            outFile.createNewFile();
-        } catch(Exception e) {
-            System.out.println("ERROR CREATING FILE " + outFileName);
+        if (options.target.equals("asm")) {
+            CodeWriter codeWriter = new CodeWriter(options.optimizeForSize);
+            if (options.profile != null) {
+                // functions that never ran only need to be small
+                codeWriter.setColdFunctions(options.profile.coldFunctions());
+            }
+            Linker linker = null;
+            if (inFile.isDirectory() && options.optimizationLevel >= 1) {
+                // a whole program, linked into one image, so leaf functions can be called without a frame
+                linker = new Linker(classNames, classes);
+                VMTranslator.translateProgram(codeWriter, linker.getClassNames(), linker.getFunctions(), true);
+            }
+            else if (inFile.isDirectory()) {
+                VMTranslator.translateProgram(codeWriter, classNames, classes, false);
+            }
+            else {
+                for (int k = 0; k < classes.size(); k++) {
+                    codeWriter.setFileName(classNames.get(k));
+                    codeWriter.write(classes.get(k));
+                }
+            }
+            codeWriter.close();
+            write(options, programName + ".asm", codeWriter.getAssembly());
+            if (options.sourceMap) {
+                File mapFile = options.file(programName + ".asm.map");
+                codeWriter.getSourceMap().write(mapFile);
+                options.writtenFiles.add(mapFile);
+            }
+            if (linker != null && !options.quiet) {
+                // the ROM the program would take without linking
+                CodeWriter unlinked = new CodeWriter(options.optimizeForSize);
+                if (options.profile != null) {
+                    unlinked.setColdFunctions(options.profile.coldFunctions());
+                }
+                VMTranslator.translateProgram(unlinked, classNames, classes, true);
+                unlinked.close();
+                options.log.println("linked into one image: " + linker.getFoldedFunctions() + " functions folded into identical ones, "
+                        + linker.getUnreachableFunctions() + " unreachable functions left out, "
+                        + (unlinked.getRomWords() - codeWriter.getRomWords()) + " ROM words saved");
+            }
+            if (!options.quiet) {
+                options.log.println("file written with assembly code");
+            }
         }
-        compileFile(inFile, outFile);
+
+        if (options.profileGenerate != null) {
+            VMInterpreter interpreter = new VMInterpreter(true);
+            for (int k = 0; k < classes.size(); k++) {
+                interpreter.addClass(classNames.get(k), classes.get(k));
+            }
+            boolean halted = interpreter.run(VMInterpreter.DEFAULT_MAX_STEPS);
+            File profileFile = options.file(options.profileGenerate);
+            Profile.of(interpreter).write(profileFile);
+            options.writtenFiles.add(profileFile);
+            if (!options.quiet) {
+                options.log.println("profile written to " + options.profileGenerate
+                        + (halted ? "" : " (the program was stopped after " + interpreter.getSteps() + " VM commands)"));
+            }
+        }
+
+        LinkedHashMap<String, VMInstructions> program = new LinkedHashMap<String, VMInstructions>();
+        for (int k = 0; k < classes.size(); k++) {
+            program.put(classNames.get(k), classes.get(k));
+        }
+        return program;
     }
 
-    /**
-     * Compiles an individual .jack file to a .vm file
-     * @param inFile - the file to read .jack code from
-     * @param outFile - the file to write the compiled .vm code to
-     */
-    private static void compileFile(File inFile, File outFile) throws Exception {
-        CompilationEngine compiler = new CompilationEngine(inFile, outFile);
+    private static void write(CompilerOptions options, String fileName, String text) throws Exception {
+        File outFile = options.file(fileName);
+        FileWriter writer = new FileWriter(outFile);
+        writer.write(text);
+        writer.close();
+        options.writtenFiles.add(outFile);
     }
 }
@@ -1,5 +1,6 @@
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -16,14 +17,18 @@ public class JackTokenizer {
     public final static String STRING_CONST = "STRING_CONST";
 
 
-    private Scanner scanner;
     private String currentToken;
     private String currentTokenType;
     private int pointer;
     private ArrayList<String> tokens;
+    // the file name, and the line and column (from 1) each token starts at
+    private String fileName;
+    private ArrayList<Integer> lines;
+    private ArrayList<Integer> columns;
 
 
     private static Pattern tokenPatterns;
+    private static Pattern lineBreaks = Pattern.compile("\r\n|\n|\r");
     private static String keyWordReg;
     private static String symbolReg;
     private static String intReg;
@@ -59,6 +64,9 @@ public class JackTokenizer {
 
         opSet.add('+');opSet.add('-');opSet.add('*');opSet.add('/');opSet.add('&');opSet.add('|');
         opSet.add('<');opSet.add('>');opSet.add('=');
+
+        //init all regex
+        initRegs();
     }
 
 
@@ -69,39 +77,49 @@ public class JackTokenizer {
     }
 
     public JackTokenizer(File inFile) {
+        this(inFile.getName(), readFile(inFile));
+    }
 
-        try {
-
-            scanner = new Scanner(inFile);
-            String preprocessed = "";
-            String line = "";
-
-            while(scanner.hasNext()){
+    /**
+     * Tokenizes Jack source text which has already been read.
+     * @param fileName - the name of the file the text was read from
+     * @param source - the text
+     */
+    public JackTokenizer(String fileName, String source) {
 
-                line = noComments(scanner.nextLine()).trim();
+        this.fileName = fileName;
+        tokens = new ArrayList<String>();
+        lines = new ArrayList<Integer>();
+        columns = new ArrayList<Integer>();
+        pointer = 0;
 
-                if (line.length() > 0) {
-                    preprocessed += line + "\n";
-                }
-            }
+        // comments are blanked out rather than removed, so every token keeps its line and column
+        StringBuilder preprocessed = new StringBuilder();
 
-            preprocessed = noBlockComments(preprocessed).trim();
+        for (String line : lineBreaks.split(source)){
 
-            //init all regex
-            initRegs();
+            String code = noComments(line);
+            preprocessed.append(code).append(" ".repeat(line.length() - code.length())).append('\n');
+        }
 
-            Matcher m = tokenPatterns.matcher(preprocessed);
-            tokens = new ArrayList<String>();
-            pointer = 0;
+        String blanked = blankBlockComments(preprocessed.toString());
 
-            while (m.find()){
+        Matcher m = tokenPatterns.matcher(blanked);
+        int line = 1;
+        int lineStart = 0;
+        int scanned = 0;
 
-                tokens.add(m.group());
+        while (m.find()){
 
+            for (; scanned < m.start(); scanned++) {
+                if (blanked.charAt(scanned) == '\n') {
+                    line++;
+                    lineStart = scanned + 1;
+                }
             }
-
-        } catch (FileNotFoundException e) {
-
+            tokens.add(m.group());
+            lines.add(line);
+            columns.add(m.start() - lineStart + 1);
 
         }
 
@@ -110,8 +128,20 @@ public class JackTokenizer {
 
     }
 
+    /**
+     * Returns the text of a file, or nothing if it cannot be read
+     */
+    private static String readFile(File inFile) {
+        try {
+            return new String(Files.readAllBytes(inFile.toPath()));
+        } catch (IOException e) {
+            return "";
+        }
+    }
 
-    private void initRegs(){
+
+    // the patterns are static, so they are built once rather than by every tokenizer, which may run on several threads
+    private static void initRegs(){
 
         keyWordReg = "";
 
@@ -129,7 +159,9 @@ public class JackTokenizer {
         //System.out.println(strReg);
         idReg = "[\\w_]+";
 
-        tokenPatterns = Pattern.compile(keyWordReg + symbolReg + "|" + intReg + "|" + strReg + "|" + idReg);
+        // a keyword must end at a word boundary, so identifiers such as charAt or doSomething are not split
+        String keyWordTokenReg = "(?:" + keyWordReg.substring(0, keyWordReg.length() - 1) + ")\\b";
+        tokenPatterns = Pattern.compile(keyWordTokenReg + "|" + symbolReg + "|" + intReg + "|" + strReg + "|" + idReg);
     }
 
 
@@ -149,19 +181,19 @@ public class JackTokenizer {
         }
 
 
-        if (currentToken.matches(keyWordReg)){
+        // every token matched one of the alternatives of tokenPatterns, and apart from keywords, which are
+        // whole words, its first character tells which, so no pattern has to be matched again
+        char first = currentToken.charAt(0);
+        if (keyWordMap.containsKey(currentToken)){
             currentTokenType = KEYWORD;
-        }else if (currentToken.matches(symbolReg)){
-            currentTokenType = SYMBOL;
-        }else if (currentToken.matches(intReg)){
+        }else if (first >= '0' && first <= '9'){
             currentTokenType = INT_CONST;
-        }else if (currentToken.matches(strReg)){
+        }else if (first == '"'){
             currentTokenType = STRING_CONST;
-        }else if (currentToken.matches(idReg)){
+        }else if ((first >= 'a' && first <= 'z') || (first >= 'A' && first <= 'Z') || first == '_'){
             currentTokenType = IDENTIFIER;
         }else {
-
-            throw new IllegalArgumentException("Unknown token:" + currentToken);
+            currentTokenType = SYMBOL;
         }
 
     }
@@ -170,6 +202,48 @@ public class JackTokenizer {
         return currentToken;
     }
 
+    /**
+     * Returns the index of the current token in the token list
+     */
+    public int currentTokenIndex() {
+        return pointer - 1;
+    }
+
+    /**
+     * Returns the token at the given index in the token list
+     */
+    public String getToken(int index) {
+        return tokens.get(index);
+    }
+
+    /**
+     * Returns the number of tokens in the token list
+     */
+    public int tokenCount() {
+        return tokens.size();
+    }
+
+    /**
+     * Returns the name of the file the tokens were read from
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Returns the line (from 1) the token at the given index starts at
+     */
+    public int getLine(int index) {
+        return lines.get(index);
+    }
+
+    /**
+     * Returns the column (from 1) the token at the given index starts at
+     */
+    public int getColumn(int index) {
+        return columns.get(index);
+    }
+
     /**
      * Returns the type of the current token
      */
@@ -308,31 +382,33 @@ public class JackTokenizer {
     }
 
     /*
-     * delete block comment
+     * Replace block comments with spaces, keeping their line breaks, so the rest of the text stays
+     * where it was.  An unterminated block comment removes the rest of the text.
      */
-    public static String noBlockComments(String strIn){
-
-        int startIndex = strIn.indexOf("/*");
+    public static String blankBlockComments(String strIn){
 
-        if (startIndex == -1) return strIn;
+        StringBuilder result = new StringBuilder(strIn);
 
-        String result = strIn;
-
-        int endIndex = strIn.indexOf("*/");
+        int startIndex = strIn.indexOf("/*");
 
         while(startIndex != -1){
 
+            int endIndex = strIn.indexOf("*/", startIndex + 2);
+
             if (endIndex == -1){
 
-                return strIn.substring(0,startIndex - 1);
+                return result.substring(0, startIndex);
 
             }
-            result = result.substring(0,startIndex) + result.substring(endIndex + 2);
+            for (int i = startIndex; i < endIndex + 2; i++) {
+                if (result.charAt(i) != '\n') {
+                    result.setCharAt(i, ' ');
+                }
+            }
 
-            startIndex = result.indexOf("/*");
-            endIndex = result.indexOf("*/");
+            startIndex = strIn.indexOf("/*", endIndex + 2);
         }
 
-        return result;
+        return result.toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,205 @@
+/**
+ * Cleans up the jumps of one compiled function.  The CodeGenerator numbers the labels of a function instead
+ * of naming them: each label, goto and if-goto holds its label's id as its index, and labels are only given
+ * names, from their kind and number, once the function is finished and some of them are gone.
+ *
+ * Until nothing changes:
+ * - a jump to a label that is followed by a goto jumps straight to where that goto goes, so chains of gotos
+ *   collapse, and a jump to any of several labels in a row jumps to the first of them;
+ * - a jump to the command right after it (past labels only) is removed, an if-goto by popping its condition;
+ * - the commands after a goto or return, up to the next label, are removed, since nothing can reach them;
+ * - labels no jump refers to are removed.
+ * The gotos of a jump-table are its entries, so each may be retargeted, but none is removed while the table stays.
+ */
+public class JumpThreader {
+    private int size;
+    private int[] opcode;
+    private int[] argument;
+    private int[] index;
+    private boolean[] removed;
+    // whether each command is one of the gotos of a jump-table
+    private boolean[] inTable;
+    // the position of each label
+    private int[] labelAt;
+
+    /**
+     * Returns the commands of a function with their labels named, after threading its jumps.
+     * @param function - the commands of the function, starting at its function command, with numbered labels
+     * @param prefixes - the name of each label, less its number
+     * @param numbers - the number of each label
+     * @param thread - whether to thread the jumps, or only name the labels
+     * @param threadConditionals - whether if-gotos may jump to a different label than the one they were
+     * compiled with, which a profile names them by
+     */
+    public static VMInstructions thread(VMInstructions function, String[] prefixes, int[] numbers,
+                                        boolean thread, boolean threadConditionals) {
+        JumpThreader threader = new JumpThreader(function, prefixes.length);
+        if (thread) {
+            while (threader.retarget(threadConditionals) | threader.removeJumpsToNext()
+                    | threader.removeUnreachable() | threader.removeUnusedLabels()) {
+                // each change can make more of them possible
+            }
+        }
+
+        VMInstructions threaded = new VMInstructions();
+        for (int i = 0; i < threader.size; i++) {
+            if (threader.removed[i]) continue;
+            threaded.setSource(function, i);
+            if (isLabelCommand(threader.opcode[i])) {
+                int label = threader.index[i];
+                threaded.add(threader.opcode[i], 0, 0, prefixes[label] + numbers[label]);
+            }
+            else {
+                threaded.add(threader.opcode[i], threader.argument[i], threader.index[i], function.symbol(i));
+            }
+        }
+        return threaded;
+    }
+
+    private JumpThreader(VMInstructions function, int labels) {
+        size = function.size();
+        opcode = new int[size];
+        argument = new int[size];
+        index = new int[size];
+        removed = new boolean[size];
+        inTable = new boolean[size];
+        labelAt = new int[labels];
+        for (int i = 0; i < size; i++) {
+            opcode[i] = function.opcode(i);
+            argument[i] = function.argument(i);
+            index[i] = function.index(i);
+            if (opcode[i] == VMInstructions.LABEL) {
+                labelAt[index[i]] = i;
+            }
+            if (opcode[i] == VMInstructions.JUMP_TABLE) {
+                for (int entry = 1; entry <= argument[i]; entry++) {
+                    inTable[i + entry] = true;
+                }
+            }
+        }
+    }
+
+    private static boolean isLabelCommand(int opcode) {
+        return opcode == VMInstructions.LABEL || opcode == VMInstructions.GOTO || opcode == VMInstructions.IF_GOTO;
+    }
+
+    /**
+     * Points every jump at the first label of the run of labels it ends up at, following gotos.
+     * @return whether any jump changed
+     */
+    private boolean retarget(boolean threadConditionals) {
+        boolean changed = false;
+        for (int i = 0; i < size; i++) {
+            if (removed[i] || !(opcode[i] == VMInstructions.GOTO || (threadConditionals && opcode[i] == VMInstructions.IF_GOTO))) {
+                continue;
+            }
+            int target = destination(index[i]);
+            if (target != index[i]) {
+                index[i] = target;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns the first label of the run of labels a jump to label ends up at, after any gotos.
+     */
+    private int destination(int label) {
+        // a loop of gotos never ends up anywhere, so stop after as many gotos as there are commands
+        for (int steps = 0; steps < size; steps++) {
+            int next = nextCommand(labelAt[label]);
+            if (next == size || opcode[next] != VMInstructions.GOTO || index[next] == label) {
+                break;
+            }
+            label = index[next];
+        }
+
+        int first = labelAt[label];
+        for (int i = first - 1; i > 0 && (removed[i] || opcode[i] == VMInstructions.LABEL); i--) {
+            if (!removed[i]) {
+                first = i;
+            }
+        }
+        return index[first];
+    }
+
+    /**
+     * Returns the position of the first command after position that is not removed and not a label, or size.
+     */
+    private int nextCommand(int position) {
+        int next = position + 1;
+        while (next < size && (removed[next] || opcode[next] == VMInstructions.LABEL)) {
+            next++;
+        }
+        return next;
+    }
+
+    /**
+     * Removes each jump to a label between it and the next command.
+     * @return whether any jump was removed
+     */
+    private boolean removeJumpsToNext() {
+        boolean changed = false;
+        for (int i = 0; i < size; i++) {
+            if (removed[i] || inTable[i] || (opcode[i] != VMInstructions.GOTO && opcode[i] != VMInstructions.IF_GOTO)) {
+                continue;
+            }
+            int target = labelAt[index[i]];
+            if (target > i && nextCommand(i) > target) {
+                if (opcode[i] == VMInstructions.GOTO) {
+                    removed[i] = true;
+                }
+                else {
+                    // the condition is still popped
+                    opcode[i] = VMInstructions.POP;
+                    argument[i] = VMInstructions.TEMP;
+                    index[i] = 0;
+                }
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Removes the commands between a goto or return and the next label, except the rest of a jump-table.
+     * @return whether any command was removed
+     */
+    private boolean removeUnreachable() {
+        boolean changed = false;
+        for (int i = 0; i < size; i++) {
+            if (removed[i] || inTable[i] || (opcode[i] != VMInstructions.GOTO && opcode[i] != VMInstructions.RETURN)) {
+                continue;
+            }
+            for (int j = i + 1; j < size && (removed[j] || opcode[j] != VMInstructions.LABEL); j++) {
+                if (!removed[j]) {
+                    removed[j] = true;
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Removes the labels no jump refers to.
+     * @return whether any label was removed
+     */
+    private boolean removeUnusedLabels() {
+        boolean[] used = new boolean[labelAt.length];
+        for (int i = 0; i < size; i++) {
+            if (!removed[i] && (opcode[i] == VMInstructions.GOTO || opcode[i] == VMInstructions.IF_GOTO)) {
+                used[index[i]] = true;
+            }
+        }
+        boolean changed = false;
+        for (int i = 0; i < size; i++) {
+            if (!removed[i] && opcode[i] == VMInstructions.LABEL && !used[index[i]]) {
+                removed[i] = true;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,296 @@
+import java.util.HashMap;
+
+/**
+ * Removes the dead stores of one compiled function and packs its locals into as few slots as it can, from which
+ * locals are live (may still be read before they are next set) before and after each command.
+ *
+ * A pop into a local that is not live after it is a dead store: if the value it pops was computed by the pushes
+ * and arithmetic right before it, all of them are removed, and otherwise the value is popped into temp 0.
+ * Removing a store can make the stores of the values it read dead, so this is done until nothing changes.
+ *
+ * Then two locals share a slot unless one is set while the other is live.  The function command sets every local
+ * to 0, so locals the function may read before setting (live where it starts) never share a slot with each other.
+ * The function command is given the number of slots, so locals that are never read, and generated locals whose
+ * values are no longer needed, take no room and are not zeroed on each call.  Functions of more than MAX_LOCALS
+ * locals are left as they are.
+ */
+public class LocalAllocator {
+    // the most locals a function may have to be allocated: the live locals are kept in the bits of a long
+    private final static int MAX_LOCALS = 64;
+
+    private int size;
+    private int[] opcode;
+    private int[] argument;
+    private int[] index;
+    private String[] symbol;
+    private boolean[] removed;
+    private int nLocals;
+    // the position of each label
+    private HashMap<String, Integer> labelAt = new HashMap<String, Integer>();
+
+    private VMInstructions function;
+    private int deadStores = 0;
+    private int slots;
+
+    /**
+     * @param function - the commands of a function, starting at its function command, with named labels
+     */
+    public LocalAllocator(VMInstructions function) {
+        this.function = function;
+        size = function.size();
+        opcode = new int[size];
+        argument = new int[size];
+        index = new int[size];
+        symbol = new String[size];
+        removed = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            opcode[i] = function.opcode(i);
+            argument[i] = function.argument(i);
+            index[i] = function.index(i);
+            symbol[i] = function.symbol(i);
+            if (opcode[i] == VMInstructions.LABEL) {
+                labelAt.put(symbol[i], i);
+            }
+        }
+        nLocals = argument[0];
+        slots = nLocals;
+    }
+
+    /**
+     * Returns the function without its dead stores, with its locals packed.
+     */
+    public VMInstructions allocate() {
+        if (nLocals == 0 || nLocals > MAX_LOCALS) {
+            return function;
+        }
+        for (int i = 1; i < size; i++) {
+            if (isLocal(i) && index[i] >= nLocals) {
+                // not a function the compiler wrote; leave it as it is
+                return function;
+            }
+        }
+
+        long[] liveOut = liveness();
+        while (removeDeadStores(liveOut)) {
+            liveOut = liveness();
+        }
+        int[] slotOf = assignSlots(liveOut);
+
+        VMInstructions allocated = new VMInstructions();
+        for (int i = 0; i < size; i++) {
+            if (removed[i]) continue;
+            allocated.setSource(function, i);
+            if (i == 0) {
+                allocated.add(VMInstructions.FUNCTION, slots, 0, symbol[0]);
+            }
+            else {
+                allocated.add(opcode[i], argument[i], isLocal(i) ? slotOf[index[i]] : index[i], symbol[i]);
+            }
+        }
+        return allocated;
+    }
+
+    /**
+     * Returns the number of dead stores removed.
+     */
+    public int deadStores() {
+        return deadStores;
+    }
+
+    /**
+     * Returns the number of locals of the function as it was compiled.
+     */
+    public int locals() {
+        return nLocals;
+    }
+
+    /**
+     * Returns the number of slots its locals were packed into.
+     */
+    public int slots() {
+        return slots;
+    }
+
+    private boolean isLocal(int position) {
+        return (opcode[position] == VMInstructions.PUSH || opcode[position] == VMInstructions.POP)
+                && argument[position] == VMInstructions.LOCAL;
+    }
+
+    /**
+     * Returns the locals live after each command, by following every jump backwards until nothing changes.
+     */
+    private long[] liveness() {
+        int[][] successors = new int[size][];
+        for (int i = 0; i < size; i++) {
+            if (!removed[i]) {
+                successors[i] = successors(i);
+            }
+        }
+        long[] liveIn = new long[size + 1];
+        long[] liveOut = new long[size];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = size - 1; i >= 0; i--) {
+                if (removed[i]) continue;
+                long out = 0;
+                for (int successor : successors[i]) {
+                    out |= liveIn[successor];
+                }
+                liveOut[i] = out;
+                long in = out;
+                if (isLocal(i)) {
+                    in = opcode[i] == VMInstructions.PUSH ? in | 1L << index[i] : in & ~(1L << index[i]);
+                }
+                else if (i == 0) {
+                    // the function command sets every local to 0
+                    in = 0;
+                }
+                if (in != liveIn[i]) {
+                    liveIn[i] = in;
+                    changed = true;
+                }
+            }
+        }
+        return liveOut;
+    }
+
+    /**
+     * Returns the positions control may go to after a command; size stands for leaving the function.
+     */
+    private int[] successors(int position) {
+        switch (opcode[position]) {
+            case VMInstructions.GOTO:
+                return new int[] { labelAt.get(symbol[position]) };
+            case VMInstructions.IF_GOTO:
+                return new int[] { labelAt.get(symbol[position]), next(position) };
+            case VMInstructions.JUMP_TABLE:
+                // one of its gotos, or past them
+                int[] successors = new int[argument[position] + 1];
+                for (int entry = 0; entry < argument[position]; entry++) {
+                    successors[entry] = position + 1 + entry;
+                }
+                successors[argument[position]] = next(position + argument[position]);
+                return successors;
+            case VMInstructions.RETURN:
+                return new int[0];
+            default:
+                return new int[] { next(position) };
+        }
+    }
+
+    /**
+     * Returns the position of the first command after position that is not removed, or size.
+     */
+    private int next(int position) {
+        int next = position + 1;
+        while (next < size && removed[next]) {
+            next++;
+        }
+        return next;
+    }
+
+    /**
+     * Removes the pops into locals that are not live after them, with the commands computing their values
+     * where those have no other effect, or else pops the values into temp 0.
+     * @return whether any store was removed
+     */
+    private boolean removeDeadStores(long[] liveOut) {
+        boolean changed = false;
+        for (int i = 1; i < size; i++) {
+            if (removed[i] || !isLocal(i) || opcode[i] != VMInstructions.POP || (liveOut[i] & 1L << index[i]) != 0) {
+                continue;
+            }
+            deadStores++;
+            changed = true;
+            int start = valueStart(i);
+            if (start < 0) {
+                argument[i] = VMInstructions.TEMP;
+                index[i] = 0;
+                continue;
+            }
+            for (int j = start; j <= i; j++) {
+                removed[j] = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns where the commands computing the value popped at position, if they are all pushes and
+     * arithmetic (with no label between them, so nothing jumps into the middle), or -1.
+     */
+    private int valueStart(int position) {
+        // the values still to be accounted for
+        int needed = 1;
+        for (int i = position - 1; i > 0; i--) {
+            if (removed[i]) continue;
+            if (opcode[i] == VMInstructions.PUSH) {
+                needed--;
+            }
+            else if (opcode[i] == VMInstructions.NEG || opcode[i] == VMInstructions.NOT) {
+                // takes one value and leaves one
+            }
+            else if (opcode[i] >= VMInstructions.ADD && opcode[i] <= VMInstructions.OR) {
+                needed++;
+            }
+            else {
+                return -1;
+            }
+            if (needed == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gives each local that is still used a slot, the lowest no local it interferes with has, and sets slots.
+     * @return the slot of each local
+     */
+    private int[] assignSlots(long[] liveOut) {
+        // locals interfere when one is set while the other is live
+        long[] interferes = new long[nLocals];
+        long used = 0;
+        for (int i = 0; i < size; i++) {
+            if (removed[i]) continue;
+            long set = 0;
+            if (i == 0) {
+                // the 0 each local starts with only matters to the locals read before they are set
+                set = liveOut[0];
+            }
+            else if (isLocal(i)) {
+                used |= 1L << index[i];
+                if (opcode[i] == VMInstructions.POP) {
+                    set = 1L << index[i];
+                }
+            }
+            for (int local = 0; local < nLocals; local++) {
+                if ((set & 1L << local) != 0) {
+                    long live = liveOut[i] & ~(1L << local);
+                    interferes[local] |= live;
+                    for (int other = 0; other < nLocals; other++) {
+                        if ((live & 1L << other) != 0) {
+                            interferes[other] |= 1L << local;
+                        }
+                    }
+                }
+            }
+        }
+
+        int[] slotOf = new int[nLocals];
+        slots = 0;
+        for (int local = 0; local < nLocals; local++) {
+            if ((used & 1L << local) == 0) continue;
+            long taken = 0;
+            for (int other = 0; other < local; other++) {
+                if ((interferes[local] & used & 1L << other) != 0) {
+                    taken |= 1L << slotOf[other];
+                }
+            }
+            slotOf[local] = Long.numberOfTrailingZeros(~taken);
+            slots = Math.max(slots, slotOf[local] + 1);
+        }
+        return slotOf;
+    }
+}
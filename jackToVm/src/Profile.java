@@ -0,0 +1,122 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * How often the parts of a program ran: how often each function was entered, how often each function
+ * called each other one, and how often each if-goto jumped and fell through.
+ *
+ * JackAnalyzer --profile-generate collects one by running the program on the VMInterpreter and writes it
+ * to a text file, with a line per count:
+ *   function <function> <entries>
+ *   call <caller> <callee> <calls>
+ *   branch <function> <label> <jumped> <fell through>
+ * Branches are identified by the labels the compiler gives them without a profile (IF_TRUEn for an if,
+ * WHILE_ENDn for a while), so a profile must be collected from a build without --profile-use.
+ */
+public class Profile {
+    private LinkedHashMap<String, Long> functionCounts = new LinkedHashMap<String, Long>();
+    private LinkedHashMap<String, Long> callCounts = new LinkedHashMap<String, Long>();
+    private LinkedHashMap<String, long[]> branchCounts = new LinkedHashMap<String, long[]>();
+
+    /**
+     * Returns the counts of a program the interpreter has run.
+     */
+    public static Profile of(VMInterpreter interpreter) {
+        Profile profile = new Profile();
+        profile.functionCounts = interpreter.getFunctionCounts();
+        profile.callCounts = interpreter.getCallCounts();
+        profile.branchCounts = interpreter.getBranchCounts();
+        return profile;
+    }
+
+    /**
+     * Reads a profile file.
+     * @throws Exception if a line is not a count
+     */
+    public static Profile read(File profileFile) throws Exception {
+        Profile profile = new Profile();
+        for (String line : Files.readAllLines(profileFile.toPath())) {
+            if (line.trim().isEmpty() || line.startsWith("#")) continue;
+            String[] fields = line.trim().split("\\s+");
+            try {
+                switch (fields[0]) {
+                    case "function":
+                        profile.functionCounts.put(fields[1], Long.parseLong(fields[2]));
+                        break;
+                    case "call":
+                        profile.callCounts.put(fields[1] + " " + fields[2], Long.parseLong(fields[3]));
+                        break;
+                    case "branch":
+                        profile.branchCounts.put(fields[1] + " " + fields[2],
+                                new long[] { Long.parseLong(fields[3]), Long.parseLong(fields[4]) });
+                        break;
+                    default:
+                        throw new Exception();
+                }
+            } catch (Exception e) {
+                throw new Exception("Invalid line in profile " + profileFile.getPath() + ": " + line);
+            }
+        }
+        return profile;
+    }
+
+    public void write(File profileFile) throws Exception {
+        StringBuilder text = new StringBuilder("# collected by JackAnalyzer --profile-generate\n");
+        for (String function : functionCounts.keySet()) {
+            text.append("function ").append(function).append(' ').append(functionCounts.get(function)).append('\n');
+        }
+        for (String call : callCounts.keySet()) {
+            text.append("call ").append(call).append(' ').append(callCounts.get(call)).append('\n');
+        }
+        for (String branch : branchCounts.keySet()) {
+            long[] counts = branchCounts.get(branch);
+            text.append("branch ").append(branch).append(' ').append(counts[0]).append(' ').append(counts[1]).append('\n');
+        }
+        FileWriter writer = new FileWriter(profileFile);
+        writer.write(text.toString());
+        writer.close();
+    }
+
+    /**
+     * Returns the functions that were never entered.
+     */
+    public Set<String> coldFunctions() {
+        HashSet<String> cold = new HashSet<String>();
+        for (String function : functionCounts.keySet()) {
+            if (functionCounts.get(function) == 0) {
+                cold.add(function);
+            }
+        }
+        return cold;
+    }
+
+    /**
+     * Returns how often caller called callee.
+     */
+    public long callCount(String caller, String callee) {
+        return callCounts.getOrDefault(caller + " " + callee, 0L);
+    }
+
+    /**
+     * Returns the number of calls between the program's own functions.
+     */
+    public long totalCalls() {
+        long total = 0;
+        for (long count : callCounts.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Returns how often a function's if-goto to label jumped and fell through, as {jumped, fell through},
+     * or null if the profile does not know it.
+     */
+    public long[] branchCounts(String function, String label) {
+        return branchCounts.get(function + " " + label);
+    }
+}
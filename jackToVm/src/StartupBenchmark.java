@@ -0,0 +1,134 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times how quickly the compiler starts, each way build.sh makes possible: a new process compiles a one-class
+ * program, and the time until it prints its first output ("class compiled") and until it exits is measured,
+ * the median of several runs after one untimed one.  The ways are the JVM without any class-data sharing,
+ * with only the JDK's archive (the JVM's default), with the compiler's archive too, and also with only the
+ * first-tier JIT compiler (as jackc starts it), as a client of a compile server already running, and the
+ * native image, if it was built.
+ *
+ * Usage: StartupBenchmark [--runs=N] [buildFolder] [file.jack], from the jackToVm folder; the build folder is
+ * build by default and the program inFile.jack.
+ */
+public class StartupBenchmark {
+    public static void main(String[] args) throws Exception {
+        int runs = 10;
+        File build = new File("build");
+        File program = new File("inFile.jack");
+        boolean properUsage = true;
+        for (String arg : args) {
+            if (arg.matches("--runs=[1-9][0-9]*")) {
+                runs = Integer.parseInt(arg.substring("--runs=".length()));
+            }
+            else if (arg.endsWith(".jack")) {
+                program = new File(arg);
+            }
+            else if (!arg.startsWith("-")) {
+                build = new File(arg);
+            }
+            else {
+                properUsage = false;
+            }
+        }
+        File jar = new File(build, "jackc.jar");
+        if (!properUsage || !jar.exists() || !program.exists()) {
+            System.out.println("IMPROPER USAGE!" + (properUsage ? " Run build.sh first, or name the build folder and a .jack file." : ""));
+            System.out.println("CORRECT USAGE: StartupBenchmark [--runs=N] [buildFolder] [file.jack]");
+            System.out.println("where buildFolder (default build) is where build.sh put the jar, archive and native image,");
+            System.out.println("and file.jack (default inFile.jack) is the program to compile");
+            System.out.println("  --runs=N   the timed runs of each way of starting (default 10)");
+            System.exit(1);
+        }
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classPath = jar.getAbsolutePath();
+        String archive = new File(build, "jackc.jsa").getAbsolutePath();
+        String source = program.getAbsolutePath();
+        File nativeImage = new File(build, "jackc-native");
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        LinkedHashMap<String, List<String>> ways = new LinkedHashMap<String, List<String>>();
+        ways.put("no class-data sharing", List.of(java, "-Xshare:off", "-cp", classPath, "JackAnalyzer", source));
+        ways.put("JDK archive only", List.of(java, "-cp", classPath, "JackAnalyzer", source));
+        // -Xshare:on, so a run fails rather than silently starting without an archive which does not match the jar
+        ways.put("compiler archive", List.of(java, "-XX:SharedArchiveFile=" + archive, "-Xshare:on", "-cp", classPath,
+                "JackAnalyzer", source));
+        ways.put("archive, first tier only", List.of(java, "-XX:SharedArchiveFile=" + archive, "-Xshare:on",
+                "-XX:TieredStopAtLevel=1", "-cp", classPath, "JackAnalyzer", source));
+        ways.put("compile server", List.of(java, "-XX:SharedArchiveFile=" + archive, "-Xshare:on",
+                "-XX:TieredStopAtLevel=1", "-cp", classPath, "CompileClient", "--port=" + port, source));
+        if (nativeImage.canExecute()) {
+            ways.put("native image", List.of(nativeImage.getAbsolutePath(), source));
+        }
+
+        Process server = new ProcessBuilder(java, "-cp", classPath, "CompileServer", "--port=" + port)
+                .redirectErrorStream(true).start();
+        // it prints a line once it is listening
+        new BufferedReader(new InputStreamReader(server.getInputStream())).readLine();
+
+        File workingDirectory = Files.createTempDirectory("startup").toFile();
+        System.out.println(String.format("compiling %s, median of %d runs", program.getName(), runs));
+        System.out.println(String.format("%-24s %18s %10s", "started with", "first output ms", "exit ms"));
+        try {
+            for (Map.Entry<String, List<String>> way : ways.entrySet()) {
+                long[] firstOutput = new long[runs];
+                long[] exit = new long[runs];
+                for (int run = -1; run < runs; run++) {
+                    long[] times = time(way.getValue(), workingDirectory);
+                    if (run >= 0) {
+                        firstOutput[run] = times[0];
+                        exit[run] = times[1];
+                    }
+                }
+                Arrays.sort(firstOutput);
+                Arrays.sort(exit);
+                System.out.println(String.format("%-24s %18.1f %10.1f", way.getKey(), firstOutput[runs / 2] / 1e6, exit[runs / 2] / 1e6));
+            }
+            if (!nativeImage.canExecute()) {
+                System.out.println(String.format("%-24s %18s %10s", "native image", "not built", ""));
+            }
+        } finally {
+            server.destroy();
+            for (File file : workingDirectory.listFiles()) {
+                file.delete();
+            }
+            workingDirectory.delete();
+        }
+    }
+
+    /**
+     * Runs a command to the end.
+     * @return the nanoseconds until it printed its first output, and until it exited
+     * @throws Exception if it printed nothing, or failed
+     */
+    private static long[] time(List<String> command, File workingDirectory) throws Exception {
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(new ArrayList<String>(command)).directory(workingDirectory)
+                .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        InputStream output = process.getInputStream();
+        if (output.read() == -1) {
+            throw new Exception("no output from " + String.join(" ", command));
+        }
+        long firstOutput = System.nanoTime() - start;
+        output.transferTo(OutputStream.nullOutputStream());
+        if (process.waitFor() != 0) {
+            throw new Exception("failed: " + String.join(" ", command));
+        }
+        return new long[] { firstOutput, System.nanoTime() - start };
+    }
+}
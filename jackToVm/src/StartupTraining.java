@@ -0,0 +1,62 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * The training run build.sh records the compiler's class-data-sharing archive from: it compiles a generated
+ * program in one JVM, each way the command line can (one class and a folder, every optimization level, to
+ * .vm and .asm files, with source maps, pooled strings and a profile), so every class a compile loads is
+ * loaded once and archived when the JVM exits.  Reports are printed to nowhere, so printing them loads the
+ * same classes as it does on the console.
+ *
+ * Usage: StartupTraining workFolder, which is left holding the program and what was written.
+ */
+public class StartupTraining {
+    private final static String[][] CONFIGURATIONS = {
+            { "-O0" }, { "-O1" }, { "-O2" }, { "--no-parallel" }, { "--pool-strings" }, { "--source-map" },
+            { "--target=asm" }, { "--target=asm", "--optimize=size" }, { "--target=asm", "--source-map" },
+            { "--profile-generate=training.profile" }, { "--profile-use=training.profile", "--target=asm" }
+    };
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("IMPROPER USAGE!");
+            System.out.println("CORRECT USAGE: StartupTraining workFolder");
+            System.exit(1);
+        }
+        File workFolder = new File(args[0]);
+        File program = new File(workFolder, "program");
+        program.mkdirs();
+        CorpusGenerator generator = new CorpusGenerator(1);
+        generator.classes = 2;
+        generator.runnable = true;
+        generator.generate((className, source) -> {
+            try {
+                FileWriter writer = new FileWriter(new File(program, className + ".jack"));
+                writer.write(source);
+                writer.close();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        PrintStream nowhere = new PrintStream(OutputStream.nullOutputStream());
+        String oneClass = new File(program, "Main.jack").getAbsolutePath();
+        compile(workFolder, nowhere, new String[] { oneClass });
+        compile(workFolder, nowhere, new String[] { "--target=asm", oneClass });
+        for (String[] configuration : CONFIGURATIONS) {
+            String[] arguments = new String[configuration.length + 1];
+            System.arraycopy(configuration, 0, arguments, 0, configuration.length);
+            arguments[configuration.length] = program.getAbsolutePath();
+            compile(workFolder, nowhere, arguments);
+        }
+    }
+
+    private static void compile(File workFolder, PrintStream log, String[] arguments) throws Exception {
+        CompilerOptions options = CompilerOptions.parse(arguments);
+        options.workingDirectory = workFolder;
+        options.log = log;
+        JackAnalyzer.compile(options);
+    }
+}
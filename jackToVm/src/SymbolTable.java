@@ -14,6 +14,16 @@ public class SymbolTable {
         segmentNumbers.put("FIELD", 0);
     }
 
+    /**
+     * Creates a symbol table which shares the class-scoped symbols of classScope, so that
+     * several subroutines of one class can be compiled at the same time.
+     * @precondition - every class variable has already been defined in classScope
+     */
+    public SymbolTable(SymbolTable classScope) {
+        classSymbols = classScope.classSymbols;
+        segmentNumbers = new HashMap<String, Integer>(classScope.segmentNumbers);
+    }
+
     public void startSubroutine() {
         // reset subroutine symbols
         subroutineSymbols = new HashMap<String, SymbolInfo>();
@@ -35,25 +45,28 @@ public class SymbolTable {
                 segmentNumbers.put(kind.toUpperCase(), segmentNumbers.get(kind.toUpperCase()) + 1);
                 break;
             default:
-                new Exception("Unexpected value for 'kind' passed into define function: " + kind);
-                break;
+                throw new Exception("Unexpected value for 'kind' passed into define function: " + kind);
         }
-
-        printSymbolTables();
     }
 
     public int varCount(String kind) {
         return segmentNumbers.get(kind.toUpperCase());
     }
 
+    /**
+     * Returns the kind of the named variable, or NONE if it is not defined in the current scope
+     * (in which case the name must refer to a class or subroutine).
+     */
     public String kindOf(String name) {
         if (subroutineSymbols.containsKey(name)) {
             return subroutineSymbols.get(name).kind;
         }
-        else {
-            System.out.println("NAME: " + name);
+        else if (classSymbols.containsKey(name)) {
             return classSymbols.get(name).kind;
         }
+        else {
+            return "NONE";
+        }
     }
 
     public String typeOf(String name) {
@@ -74,13 +87,6 @@ public class SymbolTable {
         }
     }
 
-    private void printSymbolTables() {
-        System.out.println("CLASS-SCOPED SYMBOLS:");
-        System.out.println(classSymbols);
-        System.out.println("SUBROUTINE-SCOPED SYMBOLS:");
-        System.out.println(subroutineSymbols);
-    }
-
     public static String convertSegmentName(String name) throws Exception {
         name = name.toUpperCase();
         switch (name) {
@@ -0,0 +1,91 @@
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+/**
+ * Finds the fields of a class that are never read: fields that are only assigned, or not used at all.
+ * Jack fields can only be named inside their own class, so its subroutines are all that need to be looked at.
+ * A field is read where its name, not hidden by a parameter or local of the same name, is pushed:
+ * as a value, as an array being indexed (even to store into it), or as the object a method is called on.
+ *
+ * The syntax tree is walked with an explicit stack, so deeply nested expressions need no deep call stack.
+ */
+public class UnusedFields {
+    /**
+     * Returns the names of the fields of a class that are never read, in the order they are declared.
+     * @param classNode - a CLASS node
+     */
+    public static LinkedHashSet<String> find(AstArena ast, JackTokenizer tokenizer, int classNode) {
+        LinkedHashSet<String> unread = new LinkedHashSet<String>();
+        for (int child = ast.firstChild(classNode); child != AstArena.NONE; child = ast.nextSibling(child)) {
+            if (ast.kind(child) == AstArena.CLASS_VAR_DEC && tokenizer.getToken(ast.token(child)).equals("field")) {
+                for (int name = ast.firstChild(child); name != AstArena.NONE; name = ast.nextSibling(name)) {
+                    unread.add(tokenizer.getToken(ast.token(name)));
+                }
+            }
+        }
+
+        for (int child = ast.firstChild(classNode); child != AstArena.NONE && !unread.isEmpty(); child = ast.nextSibling(child)) {
+            if (ast.kind(child) == AstArena.SUBROUTINE_DEC) {
+                markRead(ast, tokenizer, child, unread);
+            }
+        }
+        return unread;
+    }
+
+    /**
+     * Removes from unread the fields a subroutine reads.
+     * @param subroutine - a SUBROUTINE_DEC node
+     */
+    private static void markRead(AstArena ast, JackTokenizer tokenizer, int subroutine, LinkedHashSet<String> unread) {
+        // the parameters and locals, which hide fields of the same name
+        HashSet<String> hidden = new HashSet<String>();
+        ArrayDeque<Integer> stack = new ArrayDeque<Integer>();
+        stack.push(subroutine);
+        while (!stack.isEmpty()) {
+            int node = stack.pop();
+            if (ast.kind(node) == AstArena.PARAMETER) {
+                hidden.add(tokenizer.getToken(ast.token(node)));
+            }
+            else if (ast.kind(node) == AstArena.VAR_DEC) {
+                for (int name = ast.firstChild(node); name != AstArena.NONE; name = ast.nextSibling(name)) {
+                    hidden.add(tokenizer.getToken(ast.token(name)));
+                }
+            }
+            for (int child = ast.firstChild(node); child != AstArena.NONE; child = ast.nextSibling(child)) {
+                stack.push(child);
+            }
+        }
+
+        stack.push(subroutine);
+        while (!stack.isEmpty()) {
+            int node = stack.pop();
+            int firstToken = ast.token(node);
+            switch (ast.kind(node)) {
+                case AstArena.VAR_REF:
+                    unread.remove(nameOf(tokenizer.getToken(firstToken), hidden));
+                    break;
+                case AstArena.CALL:
+                    if (tokenizer.getToken(firstToken + 1).equals(".")) {
+                        unread.remove(nameOf(tokenizer.getToken(firstToken), hidden));
+                    }
+                    break;
+            }
+            int child = ast.firstChild(node);
+            if (ast.kind(node) == AstArena.LET && ast.kind(child) == AstArena.VAR_REF) {
+                // assigning a variable does not read it
+                child = ast.nextSibling(child);
+            }
+            for (; child != AstArena.NONE; child = ast.nextSibling(child)) {
+                stack.push(child);
+            }
+        }
+    }
+
+    /**
+     * Returns the name, or null if it is hidden by a parameter or local.
+     */
+    private static String nameOf(String name, HashSet<String> hidden) {
+        return hidden.contains(name) ? null : name;
+    }
+}
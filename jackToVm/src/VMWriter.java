@@ -1,62 +1,109 @@
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 
 public class VMWriter {
-    private String vmCode = "";
+    private VMInstructions instructions = new VMInstructions();
+    private File outFile;
 
+    /**
+     * @param outFile - the .vm file to write on close, or null to only keep the vm code in memory
+     */
     public VMWriter(File outFile) {
-
+        this.outFile = outFile;
     }
 
     /**
-     * Writes the provided text to the vm code output.
-     * @param text
+     * Creates a VMWriter which only buffers vm code, to be appended to another VMWriter.
      */
-    private void write(String text) {
-        vmCode += text;
-    }
-
-    // TODO: remove
-    public void printVMCode() {
-        System.out.println(vmCode);
+    public VMWriter() {
+        this(null);
     }
 
     public void writePush(String segment, int index) {
-        write("push " + segment.toLowerCase() + " " + index + "\n");
+        instructions.add(VMInstructions.PUSH, VMInstructions.segmentNumber(segment.toLowerCase()), index, null);
     }
 
     public void writePop(String segment, int index) {
-        write("pop " + segment.toLowerCase() + " " + index + "\n");
+        instructions.add(VMInstructions.POP, VMInstructions.segmentNumber(segment.toLowerCase()), index, null);
     }
 
     public void writeArithmetic(String command) {
-        write(command + "\n");
+        instructions.add(VMInstructions.arithmeticOpcode(command), 0, 0, null);
+    }
+
+    /**
+     * Labels, gotos and if-gotos refer to a label by its id, which JumpThreader replaces with its name.
+     * @param label - the id of the label
+     */
+    public void writeLabel(int label) {
+        instructions.add(VMInstructions.LABEL, 0, label, null);
     }
 
-    public void writeLabel(String label) {
-        write("label " + label + "\n");
+    public void writeGoto(int label) {
+        instructions.add(VMInstructions.GOTO, 0, label, null);
     }
 
-    public void writeGoto(String label) {
-        write("goto " + label + "\n");
+    public void writeIf(int label) {
+        instructions.add(VMInstructions.IF_GOTO, 0, label, null);
     }
 
-    public void writeIf(String label) {
-        write("if-goto " + label + "\n");
+    /**
+     * Writes a jump-table and its gotos.
+     * @param first - the value the first goto is taken for
+     * @param labels - the id of the label each goto jumps to
+     */
+    public void writeJumpTable(int first, int[] labels) {
+        instructions.add(VMInstructions.JUMP_TABLE, labels.length, first, null);
+        for (int label : labels) {
+            writeGoto(label);
+        }
     }
 
     public void writeCall(String name, int nArg) {
-        write("call " + name + " " + nArg + "\n");
+        instructions.add(VMInstructions.CALL, nArg, 0, name);
     }
 
     public void writeFunction(String name, int nLocals) {
-        write("function " + name + " " + nLocals + "\n");
+        instructions.add(VMInstructions.FUNCTION, nLocals, 0, name);
     }
 
     public void writeReturn() {
-        write("return");
+        instructions.add(VMInstructions.RETURN, 0, 0, null);
+    }
+
+    /**
+     * Sets the Jack source position of the commands written from now on.
+     */
+    public void setSource(String file, int line, int column) {
+        instructions.setSource(file, line, column);
+    }
+
+    /**
+     * Appends all vm code buffered by other to this vm code output.
+     * @param other
+     */
+    public void append(VMWriter other) {
+        instructions.addAll(other.instructions);
     }
 
-    public void close() {
+    /**
+     * Returns the vm code written so far, for translating it without writing a .vm file.
+     */
+    public VMInstructions getInstructions() {
+        return instructions;
+    }
 
+    /**
+     * Writes the vm code output to the out file, if there is one.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (outFile == null) {
+            return;
+        }
+        FileWriter writer = new FileWriter(outFile);
+        writer.write(instructions.toString());
+        writer.close();
     }
 }
@@ -0,0 +1,924 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Translates VM commands into Hack assembly.
+ *
+ * When optimizing for size, comparisons, calls and returns are not written out at every use.
+ * Instead, each jumps to one shared stub (written once, by close) with its return address in D,
+ * which costs a few cycles per use but saves most of the ROM those commands take up.
+ * Functions a profile shows to be cold (see setColdFunctions) are written this way even when
+ * optimizing for speed.
+ *
+ * Unless disabled, the top of the stack is cached in D within a basic block: a push loads its value
+ * into D instead of writing it to RAM, and it is only spilled onto the RAM stack when another value is
+ * pushed over it, or at a label, jump, call, return or function, where the code on the other side
+ * expects the whole stack in RAM.  So `push local 0; push constant 1; add; pop local 0` never
+ * moves SP.
+ *
+ * In a whole program, leaf functions (see setLeafFunctions) are called with a lighter convention:
+ * their arguments, locals and return address live in variables of their own instead of a frame.
+ */
+public class CodeWriter {
+    private final static String[] COMPARISON_JUMPS = { "JEQ", "JGT", "JLT" };
+    // the largest index a cached pop reaches by stepping A (A=A+1) rather than through R13 and R14
+    private final static int MAX_STEPPED_INDEX = 7;
+
+    // the extra instructions executed each time a comparison, call or return runs through its stub
+    public final static int COMPARISON_STUB_CYCLES = 9;
+    public final static int CALL_STUB_CYCLES = 11;
+    public final static int RETURN_STUB_CYCLES = 2;
+
+    private StringBuilder assembly = new StringBuilder();
+    private int romWords = 0;
+    // the source of every ROM word, for commands compiled from Jack
+    private SourceMap sourceMap = new SourceMap();
+
+    // whether the current function is written for size
+    private boolean optimizeForSize;
+    private boolean optimizeAllForSize;
+    // functions written for size even when optimizing for speed
+    private Set<String> coldFunctions = new HashSet<String>();
+    // which stubs have been used: the comparisons (by jump), then call, then return
+    private boolean[] stubUsed = new boolean[COMPARISON_JUMPS.length + 2];
+    // the number of comparisons, calls and returns written
+    private int[] stubSites = new int[3];
+
+    private boolean cacheTopOfStack;
+    // whether the top of the stack is in D rather than at RAM[SP - 1]
+    private boolean topOfStackInD = false;
+
+    // statics are named after the file (class) they belong to
+    private String fileName = "";
+    // labels are scoped to the function they appear in
+    private String functionName = "";
+    private int labelCounter = 0;
+
+    // the functions called with the lighter convention, or null to call every function the usual way
+    private LeafFunctions leafFunctions = null;
+    // whether the current function is one of them
+    private boolean inLeaf = false;
+
+    /**
+     * Creates a CodeWriter which optimizes for speed.
+     */
+    public CodeWriter() {
+        this(false);
+    }
+
+    /**
+     * @param optimizeForSize - whether to use shared stubs for comparisons, calls and returns
+     */
+    public CodeWriter(boolean optimizeForSize) {
+        this(optimizeForSize, true);
+    }
+
+    /**
+     * @param optimizeForSize - whether to use shared stubs for comparisons, calls and returns
+     * @param cacheTopOfStack - whether to keep the top of the stack in D within basic blocks
+     */
+    public CodeWriter(boolean optimizeForSize, boolean cacheTopOfStack) {
+        this.optimizeForSize = optimizeForSize;
+        this.optimizeAllForSize = optimizeForSize;
+        this.cacheTopOfStack = cacheTopOfStack;
+    }
+
+    /**
+     * Sets the functions to write with shared stubs, as when optimizing for size, because they
+     * rarely or never run.  Call before writing them.
+     */
+    public void setColdFunctions(Set<String> coldFunctions) {
+        this.coldFunctions = coldFunctions;
+    }
+
+    /**
+     * Sets the leaf functions of the whole program, which are called with the lighter convention:
+     * a call pops the arguments into the callee's own variables and jumps with the return address in D,
+     * and the callee's arguments and locals are read and written in those variables, without LCL and ARG.
+     * Call before writing any call or function.
+     */
+    public void setLeafFunctions(LeafFunctions leafFunctions) {
+        this.leafFunctions = leafFunctions;
+    }
+
+    /**
+     * Returns whether every function is written for size.
+     */
+    public boolean isOptimizingForSize() {
+        return optimizeAllForSize;
+    }
+
+    /**
+     * Sets the name of the file (class) the following commands were compiled from.
+     */
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * Writes the bootstrap code, which sets up the stack and calls Sys.init.
+     */
+    public void writeInit() {
+        write("@256");
+        write("D=A");
+        write("@SP");
+        write("M=D");
+        writeCall("Sys.init", 0);
+    }
+
+    /**
+     * Translates every command of instructions.
+     * @throws Exception if a command cannot be translated
+     */
+    public void write(VMInstructions instructions) throws Exception {
+        for (int i = 0; i < instructions.size(); i++) {
+            int opcode = instructions.opcode(i);
+            sourceMap.add(romWords, instructions.sourceFile(i), instructions.sourceLine(i), instructions.sourceColumn(i),
+                    opcode == VMInstructions.FUNCTION ? instructions.symbol(i) : functionName.isEmpty() ? null : functionName);
+            switch (opcode) {
+                case VMInstructions.PUSH:
+                    if (cacheTopOfStack && instructions.argument(i) == VMInstructions.CONSTANT && i + 1 < instructions.size()
+                            && (instructions.opcode(i + 1) == VMInstructions.ADD || instructions.opcode(i + 1) == VMInstructions.SUB)) {
+                        // add or subtract the constant straight from A
+                        loadTopOfStack();
+                        write("@" + instructions.index(i));
+                        write(instructions.opcode(i + 1) == VMInstructions.ADD ? "D=D+A" : "D=D-A");
+                        i++;
+                        break;
+                    }
+                    writePush(instructions.argument(i), instructions.index(i));
+                    break;
+                case VMInstructions.POP:
+                    writePop(instructions.argument(i), instructions.index(i));
+                    break;
+                case VMInstructions.LABEL:
+                    writeLabel(instructions.symbol(i));
+                    break;
+                case VMInstructions.GOTO:
+                    writeGoto(instructions.symbol(i));
+                    break;
+                case VMInstructions.IF_GOTO:
+                    writeIf(instructions.symbol(i));
+                    break;
+                case VMInstructions.FUNCTION:
+                    writeFunction(instructions.symbol(i), instructions.argument(i));
+                    break;
+                case VMInstructions.CALL:
+                    writeCall(instructions.symbol(i), instructions.argument(i));
+                    break;
+                case VMInstructions.RETURN:
+                    writeReturn();
+                    break;
+                case VMInstructions.JUMP_TABLE:
+                    String[] labels = new String[instructions.argument(i)];
+                    for (int entry = 0; entry < labels.length; entry++) {
+                        if (i + 1 + entry >= instructions.size() || instructions.opcode(i + 1 + entry) != VMInstructions.GOTO) {
+                            throw new Exception("A jump-table must be followed by its " + labels.length + " gotos");
+                        }
+                        labels[entry] = instructions.symbol(i + 1 + entry);
+                    }
+                    writeJumpTable(instructions.index(i), labels);
+                    i += labels.length;
+                    break;
+                default:
+                    writeArithmetic(opcode);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @param opcode - the VMInstructions opcode of an arithmetic or logical command
+     */
+    public void writeArithmetic(int opcode) {
+        if (cacheTopOfStack) {
+            writeCachedArithmetic(opcode);
+            return;
+        }
+        switch (opcode) {
+            case VMInstructions.ADD:
+                writeBinary("M=D+M");
+                break;
+            case VMInstructions.SUB:
+                writeBinary("M=M-D");
+                break;
+            case VMInstructions.AND:
+                writeBinary("M=D&M");
+                break;
+            case VMInstructions.OR:
+                writeBinary("M=D|M");
+                break;
+            case VMInstructions.NEG:
+                writeUnary("M=-M");
+                break;
+            case VMInstructions.NOT:
+                writeUnary("M=!M");
+                break;
+            case VMInstructions.EQ:
+                writeComparison("JEQ");
+                break;
+            case VMInstructions.GT:
+                writeComparison("JGT");
+                break;
+            case VMInstructions.LT:
+                writeComparison("JLT");
+                break;
+        }
+    }
+
+    /**
+     * Computes opcode with its result left in D.
+     */
+    private void writeCachedArithmetic(int opcode) {
+        if (!topOfStackInD && (opcode == VMInstructions.NEG || opcode == VMInstructions.NOT)) {
+            // cheaper in place than through D
+            writeUnary(opcode == VMInstructions.NEG ? "M=-M" : "M=!M");
+            return;
+        }
+        if (optimizeForSize && (opcode == VMInstructions.EQ || opcode == VMInstructions.GT || opcode == VMInstructions.LT)) {
+            // the stubs take both operands in RAM
+            spillTopOfStack();
+            writeComparison(opcode == VMInstructions.EQ ? "JEQ" : opcode == VMInstructions.GT ? "JGT" : "JLT");
+            return;
+        }
+
+        loadTopOfStack();
+        switch (opcode) {
+            case VMInstructions.NEG:
+                write("D=-D");
+                return;
+            case VMInstructions.NOT:
+                write("D=!D");
+                return;
+        }
+
+        // D = y, M = x
+        write("@SP");
+        write("AM=M-1");
+        switch (opcode) {
+            case VMInstructions.ADD:
+                write("D=D+M");
+                break;
+            case VMInstructions.SUB:
+                write("D=M-D");
+                break;
+            case VMInstructions.AND:
+                write("D=D&M");
+                break;
+            case VMInstructions.OR:
+                write("D=D|M");
+                break;
+            default:
+                String jump = opcode == VMInstructions.EQ ? "JEQ" : opcode == VMInstructions.GT ? "JGT" : "JLT";
+                String trueLabel = newLabel("TRUE");
+                String endLabel = newLabel("END");
+                stubSites[0]++;
+                write("D=M-D");
+                write("@" + trueLabel);
+                write("D;" + jump);
+                write("D=0");
+                write("@" + endLabel);
+                write("0;JMP");
+                write("(" + trueLabel + ")");
+                write("D=-1");
+                write("(" + endLabel + ")");
+                break;
+        }
+    }
+
+    /**
+     * Pops y, then replaces x on top of the stack with the result of computation on D=y and M=x.
+     */
+    private void writeBinary(String computation) {
+        write("@SP");
+        write("AM=M-1");
+        write("D=M");
+        write("A=A-1");
+        write(computation);
+    }
+
+    private void writeUnary(String computation) {
+        write("@SP");
+        write("A=M-1");
+        write(computation);
+    }
+
+    /**
+     * Pops y and replaces x with -1 (true) if x - y satisfies jump, or 0 (false) otherwise.
+     */
+    private void writeComparison(String jump) {
+        stubSites[0]++;
+        if (optimizeForSize) {
+            int stub = Arrays.asList(COMPARISON_JUMPS).indexOf(jump);
+            stubUsed[stub] = true;
+            writeStubJump("$" + jump);
+            return;
+        }
+        writeComparisonBody(jump, newLabel("TRUE"));
+    }
+
+    private void writeComparisonBody(String jump, String trueLabel) {
+        write("@SP");
+        write("AM=M-1");
+        write("D=M");
+        write("A=A-1");
+        write("D=M-D");
+        write("M=-1");
+        write("@" + trueLabel);
+        write("D;" + jump);
+        write("@SP");
+        write("A=M-1");
+        write("M=0");
+        write("(" + trueLabel + ")");
+    }
+
+    public void writePush(int segment, int index) throws Exception {
+        if (cacheTopOfStack) {
+            spillTopOfStack();
+            writeLoad(segment, index);
+            topOfStackInD = true;
+            return;
+        }
+        switch (segment) {
+            case VMInstructions.CONSTANT:
+                if (index <= 1) {
+                    // 0 and 1 can be written without loading A
+                    writePushComputation(index == 0 ? "0" : "1");
+                    return;
+                }
+                write("@" + index);
+                write("D=A");
+                break;
+            default:
+                if (isIndexed(segment)) {
+                    if (index == 0) {
+                        write("@" + baseRegister(segment));
+                        write("A=M");
+                    }
+                    else {
+                        write("@" + index);
+                        write("D=A");
+                        write("@" + baseRegister(segment));
+                        write("A=D+M");
+                    }
+                }
+                else {
+                    write("@" + fixedAddress(segment, index));
+                }
+                write("D=M");
+                break;
+        }
+        writePushComputation("D");
+    }
+
+    /**
+     * Loads the value of an entry of a segment into D.
+     */
+    private void writeLoad(int segment, int index) throws Exception {
+        switch (segment) {
+            case VMInstructions.CONSTANT:
+                if (index <= 1) {
+                    write(index == 0 ? "D=0" : "D=1");
+                }
+                else {
+                    write("@" + index);
+                    write("D=A");
+                }
+                return;
+            default:
+                if (isIndexed(segment)) {
+                    if (index == 0) {
+                        write("@" + baseRegister(segment));
+                        write("A=M");
+                    }
+                    else {
+                        write("@" + index);
+                        write("D=A");
+                        write("@" + baseRegister(segment));
+                        write("A=D+M");
+                    }
+                }
+                else {
+                    write("@" + fixedAddress(segment, index));
+                }
+                write("D=M");
+                return;
+        }
+    }
+
+    /**
+     * Writes the top of the stack from D to RAM, if it is cached.
+     */
+    private void spillTopOfStack() {
+        if (topOfStackInD) {
+            writePushComputation("D");
+            topOfStackInD = false;
+        }
+    }
+
+    /**
+     * Pops the top of the stack into D, if it is not already cached there.
+     */
+    private void loadTopOfStack() {
+        if (!topOfStackInD) {
+            write("@SP");
+            write("AM=M-1");
+            write("D=M");
+            topOfStackInD = true;
+        }
+    }
+
+    /**
+     * Pushes the value of a computation (D, 0, 1 or -1) onto the stack.
+     */
+    private void writePushComputation(String computation) {
+        write("@SP");
+        write("M=M+1");
+        write("A=M-1");
+        write("M=" + computation);
+    }
+
+    public void writePop(int segment, int index) throws Exception {
+        if (cacheTopOfStack && (topOfStackInD || index <= MAX_STEPPED_INDEX || !isIndexed(segment))) {
+            if (segment == VMInstructions.CONSTANT) {
+                throw new Exception("Cannot pop to the constant segment");
+            }
+            loadTopOfStack();
+            topOfStackInD = false;
+            if (!isIndexed(segment)) {
+                write("@" + fixedAddress(segment, index));
+                write("M=D");
+            }
+            else if (index <= MAX_STEPPED_INDEX) {
+                // step A to the entry, since D is taken
+                write("@" + baseRegister(segment));
+                write("A=M");
+                for (int i = 0; i < index; i++) {
+                    write("A=A+1");
+                }
+                write("M=D");
+            }
+            else {
+                // park the value in R13 while the address is computed
+                write("@R13");
+                write("M=D");
+                write("@" + index);
+                write("D=A");
+                write("@" + baseRegister(segment));
+                write("D=D+M");
+                write("@R14");
+                write("M=D");
+                write("@R13");
+                write("D=M");
+                write("@R14");
+                write("A=M");
+                write("M=D");
+            }
+            return;
+        }
+        if (segment == VMInstructions.CONSTANT) {
+            throw new Exception("Cannot pop to the constant segment");
+        }
+        if (!isIndexed(segment)) {
+            write("@SP");
+            write("AM=M-1");
+            write("D=M");
+            write("@" + fixedAddress(segment, index));
+            write("M=D");
+        }
+        else if (index == 0) {
+            write("@SP");
+            write("AM=M-1");
+            write("D=M");
+            write("@" + baseRegister(segment));
+            write("A=M");
+            write("M=D");
+        }
+        else {
+            // keep the target address in R13 while the value is popped
+            write("@" + index);
+            write("D=A");
+            write("@" + baseRegister(segment));
+            write("D=D+M");
+            write("@R13");
+            write("M=D");
+            write("@SP");
+            write("AM=M-1");
+            write("D=M");
+            write("@R13");
+            write("A=M");
+            write("M=D");
+        }
+    }
+
+    public void writeLabel(String label) {
+        spillTopOfStack();
+        write("(" + functionName + "$" + label + ")");
+    }
+
+    public void writeGoto(String label) {
+        spillTopOfStack();
+        write("@" + functionName + "$" + label);
+        write("0;JMP");
+    }
+
+    public void writeIf(String label) {
+        if (topOfStackInD) {
+            // the condition is already in D
+            topOfStackInD = false;
+        }
+        else {
+            write("@SP");
+            write("AM=M-1");
+            write("D=M");
+        }
+        write("@" + functionName + "$" + label);
+        write("D;JNE");
+    }
+
+    /**
+     * Pops a value and jumps to labels[value - first], or past the table if value - first is out of range.
+     * Hack cannot read its ROM as data, so the table is one of jumps, two words each, which the popped
+     * value indexes into with a computed jump: a bounds check and about a dozen instructions, whatever
+     * the number of labels.
+     */
+    public void writeJumpTable(int first, String[] labels) {
+        String endLabel = newLabel("TABLE_END");
+        loadTopOfStack();
+        topOfStackInD = false;
+        if (first == 1) {
+            write("D=D-1");
+        }
+        else if (first > 0) {
+            write("@" + first);
+            write("D=D-A");
+        }
+        else if (first < 0) {
+            write("@" + -first);
+            write("D=D+A");
+        }
+        write("@" + endLabel);
+        write("D;JLT");
+        write("@" + labels.length);
+        write("D=D-A");
+        write("@" + endLabel);
+        write("D;JGE");
+        // D = value - first - labels.length, so the entry is 2 * D words before the end of the table
+        write("@" + endLabel);
+        write("A=D+A");
+        write("A=D+A");
+        write("0;JMP");
+        for (String label : labels) {
+            write("@" + functionName + "$" + label);
+            write("0;JMP");
+        }
+        write("(" + endLabel + ")");
+    }
+
+    public void writeFunction(String name, int nLocals) {
+        spillTopOfStack();
+        functionName = name;
+        optimizeForSize = optimizeAllForSize || coldFunctions.contains(name);
+        inLeaf = leafFunctions != null && leafFunctions.contains(name);
+        write("(" + name + ")");
+        if (inLeaf) {
+            // the return address comes in D; save the pointers the function sets, and zero the locals it needs zeroed
+            write("@" + name + "$$return");
+            write("M=D");
+            for (int pointer = 0; pointer <= 1; pointer++) {
+                if (leafFunctions.setsPointer(name, pointer)) {
+                    write(pointer == 0 ? "@THIS" : "@THAT");
+                    write("D=M");
+                    write("@" + name + "$$pointer" + pointer);
+                    write("M=D");
+                }
+            }
+            for (int i = 0; i < nLocals; i++) {
+                if (leafFunctions.zeroesLocal(name, i)) {
+                    write("@" + name + "$$local" + i);
+                    write("M=0");
+                }
+            }
+        }
+        else if (nLocals > 0) {
+            // zero every local, then move SP past them
+            write("@SP");
+            write("A=M");
+            write("M=0");
+            for (int i = 1; i < nLocals; i++) {
+                write("A=A+1");
+                write("M=0");
+            }
+            write("D=A+1");
+            write("@SP");
+            write("M=D");
+        }
+    }
+
+    public void writeCall(String name, int nArgs) {
+        if (leafFunctions != null && leafFunctions.contains(name)) {
+            writeLeafCall(name, nArgs);
+            return;
+        }
+        spillTopOfStack();
+        String returnLabel = newLabel("ret");
+        stubSites[1]++;
+
+        if (optimizeForSize) {
+            // the stub takes nArgs + 5 in R13, the function in R14 and the return address in D
+            stubUsed[COMPARISON_JUMPS.length] = true;
+            write("@" + (nArgs + 5));
+            write("D=A");
+            write("@R13");
+            write("M=D");
+            write("@" + name);
+            write("D=A");
+            write("@R14");
+            write("M=D");
+            write("@" + returnLabel);
+            write("D=A");
+            write("@$CALL");
+            write("0;JMP");
+            write("(" + returnLabel + ")");
+            return;
+        }
+
+        // push the return address and the caller's frame
+        write("@" + returnLabel);
+        write("D=A");
+        writePushComputation("D");
+        for (String register : new String[] { "LCL", "ARG", "THIS", "THAT" }) {
+            write("@" + register);
+            write("D=M");
+            writePushComputation("D");
+        }
+
+        // ARG = SP - nArgs - 5, LCL = SP
+        write("@SP");
+        write("D=M");
+        write("@LCL");
+        write("M=D");
+        write("@" + (nArgs + 5));
+        write("D=D-A");
+        write("@ARG");
+        write("M=D");
+
+        write("@" + name);
+        write("0;JMP");
+        write("(" + returnLabel + ")");
+    }
+
+    /**
+     * Calls a leaf function: pops the arguments into its variables, the last first, and jumps to it with
+     * the return address in D.  It returns with its value in D, or on the stack without top-of-stack caching.
+     */
+    private void writeLeafCall(String name, int nArgs) {
+        for (int i = nArgs - 1; i >= 0; i--) {
+            loadTopOfStack();
+            topOfStackInD = false;
+            write("@" + name + "$$argument" + i);
+            write("M=D");
+        }
+        // the return address is passed in D, so a value cached there (with no arguments popped) is spilled
+        spillTopOfStack();
+        String returnLabel = newLabel("ret");
+        write("@" + returnLabel);
+        write("D=A");
+        write("@" + name);
+        write("0;JMP");
+        write("(" + returnLabel + ")");
+        topOfStackInD = cacheTopOfStack;
+    }
+
+    public void writeReturn() {
+        if (inLeaf) {
+            writeLeafReturn();
+            return;
+        }
+        spillTopOfStack();
+        stubSites[2]++;
+        if (optimizeForSize) {
+            stubUsed[COMPARISON_JUMPS.length + 1] = true;
+            write("@$RETURN");
+            write("0;JMP");
+            return;
+        }
+        writeReturnBody();
+    }
+
+    /**
+     * Returns from a leaf function, restoring the pointers it saved.
+     */
+    private void writeLeafReturn() {
+        boolean restores = leafFunctions.setsPointer(functionName, 0) || leafFunctions.setsPointer(functionName, 1);
+        if (restores) {
+            // restoring takes D
+            spillTopOfStack();
+            for (int pointer = 0; pointer <= 1; pointer++) {
+                if (leafFunctions.setsPointer(functionName, pointer)) {
+                    write("@" + functionName + "$$pointer" + pointer);
+                    write("D=M");
+                    write(pointer == 0 ? "@THIS" : "@THAT");
+                    write("M=D");
+                }
+            }
+        }
+        if (cacheTopOfStack) {
+            loadTopOfStack();
+        }
+        write("@" + functionName + "$$return");
+        write("A=M");
+        write("0;JMP");
+        topOfStackInD = false;
+    }
+
+    private void writeReturnBody() {
+        // R13 = frame (LCL), R14 = return address
+        write("@LCL");
+        write("D=M");
+        write("@R13");
+        write("M=D");
+        write("@5");
+        write("A=D-A");
+        write("D=M");
+        write("@R14");
+        write("M=D");
+
+        // *ARG = return value, SP = ARG + 1
+        write("@SP");
+        write("AM=M-1");
+        write("D=M");
+        write("@ARG");
+        write("A=M");
+        write("M=D");
+        write("D=A+1");
+        write("@SP");
+        write("M=D");
+
+        // restore THAT, THIS, ARG, LCL from the frame
+        for (String register : new String[] { "THAT", "THIS", "ARG", "LCL" }) {
+            write("@R13");
+            write("AM=M-1");
+            write("D=M");
+            write("@" + register);
+            write("M=D");
+        }
+
+        write("@R14");
+        write("A=M");
+        write("0;JMP");
+    }
+
+    /**
+     * Jumps to a stub with the address of the next instruction in D.
+     */
+    private void writeStubJump(String stub) {
+        String returnLabel = newLabel("ret");
+        write("@" + returnLabel);
+        write("D=A");
+        write("@" + stub);
+        write("0;JMP");
+        write("(" + returnLabel + ")");
+    }
+
+    /**
+     * Writes the shared stubs that have been used.  Call after the last command has been written.
+     */
+    public void close() {
+        spillTopOfStack();
+        functionName = "";
+        inLeaf = false;
+        sourceMap.add(romWords, null, 0, 0, null);
+        for (int i = 0; i < COMPARISON_JUMPS.length; i++) {
+            if (stubUsed[i]) {
+                // R15 = return address
+                write("($" + COMPARISON_JUMPS[i] + ")");
+                write("@R15");
+                write("M=D");
+                writeComparisonBody(COMPARISON_JUMPS[i], "$" + COMPARISON_JUMPS[i] + "$TRUE");
+                write("@R15");
+                write("A=M");
+                write("0;JMP");
+            }
+        }
+
+        if (stubUsed[COMPARISON_JUMPS.length]) {
+            write("($CALL)");
+            // push the return address and the caller's frame
+            writePushComputation("D");
+            for (String register : new String[] { "LCL", "ARG", "THIS", "THAT" }) {
+                write("@" + register);
+                write("D=M");
+                writePushComputation("D");
+            }
+
+            // ARG = SP - (nArgs + 5), LCL = SP
+            write("@SP");
+            write("D=M");
+            write("@LCL");
+            write("M=D");
+            write("@R13");
+            write("D=D-M");
+            write("@ARG");
+            write("M=D");
+
+            write("@R14");
+            write("A=M");
+            write("0;JMP");
+        }
+
+        if (stubUsed[COMPARISON_JUMPS.length + 1]) {
+            write("($RETURN)");
+            writeReturnBody();
+        }
+    }
+
+    /**
+     * Returns the Hack assembly written so far.
+     */
+    public String getAssembly() {
+        return assembly.toString();
+    }
+
+    /**
+     * Returns the number of comparisons, calls and returns written so far, in that order.
+     */
+    public int[] getStubSites() {
+        return stubSites;
+    }
+
+    /**
+     * Returns the source of each ROM word written so far; the bootstrap, stubs and commands not compiled
+     * from Jack have none.
+     */
+    public SourceMap getSourceMap() {
+        return sourceMap;
+    }
+
+    /**
+     * Returns the number of instructions written so far, which is the number of ROM words they take up.
+     */
+    public int getRomWords() {
+        return romWords;
+    }
+
+    /**
+     * Returns whether a segment is addressed through a base register (LCL, ARG, THIS or THAT).
+     * A leaf function's locals and arguments are in variables instead.
+     */
+    private boolean isIndexed(int segment) {
+        return (segment == VMInstructions.LOCAL || segment == VMInstructions.ARGUMENT) && !inLeaf
+                || segment == VMInstructions.THIS || segment == VMInstructions.THAT;
+    }
+
+    private String baseRegister(int segment) {
+        switch (segment) {
+            case VMInstructions.LOCAL:
+                return "LCL";
+            case VMInstructions.ARGUMENT:
+                return "ARG";
+            case VMInstructions.THIS:
+                return "THIS";
+            default:
+                return "THAT";
+        }
+    }
+
+    /**
+     * Returns the symbol or address of an entry of the static, pointer or temp segment, or of the local
+     * or argument segment of a leaf function.
+     */
+    private String fixedAddress(int segment, int index) throws Exception {
+        switch (segment) {
+            case VMInstructions.LOCAL:
+            case VMInstructions.ARGUMENT:
+                // a $$ never appears in a function's own labels
+                return functionName + "$$" + VMInstructions.SEGMENT_NAMES[segment] + index;
+            case VMInstructions.STATIC:
+                return fileName + "." + index;
+            case VMInstructions.POINTER:
+                if (index > 1) throw new Exception("Invalid pointer index: " + index);
+                return "" + (3 + index);
+            case VMInstructions.TEMP:
+                if (index > 7) throw new Exception("Invalid temp index: " + index);
+                return "" + (5 + index);
+            default:
+                throw new Exception("Invalid segment: " + segment);
+        }
+    }
+
+    /**
+     * Returns a label no other part of the program uses.
+     */
+    private String newLabel(String prefix) {
+        return functionName + "$" + prefix + "." + labelCounter++;
+    }
+
+    private void write(String line) {
+        assembly.append(line).append('\n');
+        if (!line.startsWith("(")) {
+            romWords++;
+        }
+    }
+}
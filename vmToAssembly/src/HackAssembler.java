@@ -0,0 +1,221 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Assembles Hack assembly into machine code.
+ *
+ * Besides the usual predefined symbols, labels and variables, a symbol which looks like a function
+ * name (Class.name) but is never declared as a label is treated as an external function, such as
+ * one of the OS: instead of becoming a variable, it is given an address just past the end of the
+ * program, which the HackEmulator can recognise and run natively.
+ */
+public class HackAssembler {
+    private final static String[] COMPUTATIONS = {
+            "0", "101010", "1", "111111", "-1", "111010", "D", "001100", "A", "110000",
+            "!D", "001101", "!A", "110001", "-D", "001111", "-A", "110011",
+            "D+1", "011111", "A+1", "110111", "D-1", "001110", "A-1", "110010",
+            "D+A", "000010", "A+D", "000010", "D-A", "010011", "A-D", "000111",
+            "D&A", "000000", "A&D", "000000", "D|A", "010101", "A|D", "010101"
+    };
+    private final static String[] JUMPS = { "", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP" };
+
+    private static HashMap<String, Integer> computationBits = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < COMPUTATIONS.length; i += 2) {
+            int bits = Integer.parseInt(COMPUTATIONS[i + 1], 2);
+            computationBits.put(COMPUTATIONS[i], bits);
+            if (COMPUTATIONS[i].contains("A")) {
+                // the same computation on M sets the a bit
+                computationBits.put(COMPUTATIONS[i].replace('A', 'M'), bits | 0x40);
+            }
+        }
+    }
+
+    private String text;
+    private LinkedHashMap<String, Integer> labels = new LinkedHashMap<String, Integer>();
+    private LinkedHashMap<String, Integer> externals = new LinkedHashMap<String, Integer>();
+
+    public HackAssembler(String text) {
+        this.text = text;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("IMPROPER USAGE!");
+            System.out.println("CORRECT USAGE: HackAssembler file.asm");
+            System.exit(1);
+        }
+
+        String inLocation = args[0];
+        int[] program = new HackAssembler(new String(Files.readAllBytes(new File(inLocation).toPath()))).assemble();
+
+        StringBuilder out = new StringBuilder();
+        for (int word : program) {
+            String bits = Integer.toBinaryString(word | 0x10000);
+            out.append(bits.substring(1)).append('\n');
+        }
+        FileWriter writer = new FileWriter(inLocation.substring(0, inLocation.lastIndexOf(".asm")) + ".hack");
+        writer.write(out.toString());
+        writer.close();
+    }
+
+    /**
+     * @return the machine code, one instruction per word
+     * @throws Exception if a line is not a valid instruction
+     */
+    public int[] assemble() throws Exception {
+        // first pass: find the address of every label
+        ArrayList<String> instructions = new ArrayList<String>();
+        for (String line : text.split("\n")) {
+            int commentStart = line.indexOf("//");
+            if (commentStart != -1) {
+                line = line.substring(0, commentStart);
+            }
+            line = line.replace(" ", "").replace("\t", "");
+            if (line.isEmpty()) continue;
+
+            if (line.startsWith("(")) {
+                labels.put(line.substring(1, line.length() - 1), instructions.size());
+            }
+            else {
+                instructions.add(line);
+            }
+        }
+
+        // second pass: translate, allocating variables from 16 as they are first used
+        HashMap<String, Integer> variables = new HashMap<String, Integer>();
+        int nextVariable = 16;
+        int[] program = new int[instructions.size()];
+        for (int i = 0; i < program.length; i++) {
+            String instruction = instructions.get(i);
+            if (instruction.startsWith("@")) {
+                String symbol = instruction.substring(1);
+                int value;
+                if (Character.isDigit(symbol.charAt(0))) {
+                    value = Integer.parseInt(symbol);
+                    if (value > 0x7FFF) throw new Exception("Constant too large: " + instruction);
+                }
+                else if (predefinedAddress(symbol) != -1) {
+                    value = predefinedAddress(symbol);
+                }
+                else if (labels.containsKey(symbol)) {
+                    value = labels.get(symbol);
+                }
+                else if (isFunctionName(symbol)) {
+                    if (!externals.containsKey(symbol)) {
+                        externals.put(symbol, program.length + externals.size());
+                    }
+                    value = externals.get(symbol);
+                }
+                else {
+                    if (!variables.containsKey(symbol)) {
+                        variables.put(symbol, nextVariable++);
+                    }
+                    value = variables.get(symbol);
+                }
+                program[i] = value;
+            }
+            else {
+                program[i] = translateComputation(instruction);
+            }
+        }
+
+        if (program.length + externals.size() > 0x8000) {
+            throw new Exception("Program too large: " + program.length + " instructions");
+        }
+        return program;
+    }
+
+    /**
+     * Returns every label and the address it stands for, in the order they appear.
+     */
+    public LinkedHashMap<String, Integer> getLabels() {
+        return labels;
+    }
+
+    /**
+     * Returns every external function and the address given to it, in the order they were first used.
+     */
+    public LinkedHashMap<String, Integer> getExternals() {
+        return externals;
+    }
+
+    /**
+     * Translates a C-instruction, dest=comp;jump, into 111a cccc ccdd djjj.
+     */
+    private int translateComputation(String instruction) throws Exception {
+        String dest = "";
+        String jump = "";
+        int equals = instruction.indexOf('=');
+        if (equals != -1) {
+            dest = instruction.substring(0, equals);
+            instruction = instruction.substring(equals + 1);
+        }
+        int semicolon = instruction.indexOf(';');
+        if (semicolon != -1) {
+            jump = instruction.substring(semicolon + 1);
+            instruction = instruction.substring(0, semicolon);
+        }
+
+        Integer computation = computationBits.get(instruction);
+        int jumpBits = Arrays.asList(JUMPS).indexOf(jump);
+        if (computation == null || jumpBits == -1) {
+            throw new Exception("Invalid instruction: " + instruction);
+        }
+
+        int destBits = 0;
+        for (char register : dest.toCharArray()) {
+            switch (register) {
+                case 'A':
+                    destBits |= 4;
+                    break;
+                case 'D':
+                    destBits |= 2;
+                    break;
+                case 'M':
+                    destBits |= 1;
+                    break;
+                default:
+                    throw new Exception("Invalid destination: " + dest);
+            }
+        }
+
+        return 0xE000 | computation << 6 | destBits << 3 | jumpBits;
+    }
+
+    private static int predefinedAddress(String symbol) {
+        switch (symbol) {
+            case "SP":
+                return 0;
+            case "LCL":
+                return 1;
+            case "ARG":
+                return 2;
+            case "THIS":
+                return 3;
+            case "THAT":
+                return 4;
+            case "SCREEN":
+                return 0x4000;
+            case "KBD":
+                return 0x6000;
+        }
+        if (symbol.matches("R([0-9]|1[0-5])")) {
+            return Integer.parseInt(symbol.substring(1));
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether symbol is Class.name, as opposed to a static variable (Class.0) or a label (Function$label).
+     */
+    private static boolean isFunctionName(String symbol) {
+        return symbol.matches("[A-Za-z_]\\w*\\.[A-Za-z_]\\w*");
+    }
+}
@@ -0,0 +1,442 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Runs Hack machine code headless, counting cycles, so the effect of compiler and translator changes
+ * on run time can be measured.  Every instruction takes one cycle.
+ *
+ * ROM and RAM are int arrays; RAM values are kept 16-bit and sign-extended.  Calls to functions the
+ * program does not define (see HackAssembler) run natively in the StubOS and are charged its estimate
+ * of their cost.  If the program does not define Sys.init, the bootstrap's call to it calls Main.main
+ * instead, and the program halts when Main.main returns.  A program also halts when it jumps to the
+ * instruction before the jump, forever (the usual "(END) @END 0;JMP"), or calls Sys.halt or Sys.error.
+ *
+ * With a SourceMap (read from the .map file next to a .asm file, if there is one), cycles are also
+ * attributed to the Jack source lines the instructions were compiled from.
+ */
+public class HackEmulator {
+    public final static int RAM_SIZE = 0x8000;
+    public final static int ROM_SIZE = 0x8000;
+    public final static long DEFAULT_MAX_CYCLES = 100000000L;
+
+    // native ids besides those of the StubOS
+    private final static int SYS_INIT = -1;
+    private final static int MAIN_RETURNED = -2;
+    private final static int SYS_INIT_CYCLES = 50;
+    // the number of source lines main lists
+    private final static int LISTED_SOURCE_LINES = 20;
+
+    private int[] rom;
+    private int programSize;
+    private int[] ram = new int[RAM_SIZE];
+    // the StubOS id of each address past the end of the program
+    private int[] nativeIds;
+    private String[] nativeNames;
+    private int mainAddress = -1;
+    private LinkedHashMap<String, Integer> labels;
+    private SourceMap sourceMap = null;
+    private StubOS os = new StubOS(ram);
+
+    private int pc = 0;
+    private int a = 0;
+    private int d = 0;
+    private long cycles = 0;
+    // the cycles spent at each address, natives included
+    private long[] addressCycles;
+    private int peakStack = 0;
+    private boolean halted = false;
+
+    /**
+     * @param assembly - a whole program, starting with bootstrap code
+     * @throws Exception if the program cannot be assembled, or calls a function nothing defines
+     */
+    public HackEmulator(String assembly) throws Exception {
+        HackAssembler assembler = new HackAssembler(assembly);
+        rom = assembler.assemble();
+        programSize = rom.length;
+        labels = assembler.getLabels();
+
+        LinkedHashMap<String, Integer> externals = assembler.getExternals();
+        nativeIds = new int[externals.size() + 1];
+        nativeNames = new String[externals.size() + 1];
+        for (Map.Entry<String, Integer> external : externals.entrySet()) {
+            int id = StubOS.lookup(external.getKey());
+            if (external.getKey().equals("Sys.init")) {
+                id = SYS_INIT;
+                if (!labels.containsKey("Main.main")) throw new Exception("Undefined function: Main.main");
+                mainAddress = labels.get("Main.main");
+            }
+            else if (id == -1) {
+                throw new Exception("Undefined function: " + external.getKey());
+            }
+            nativeIds[external.getValue() - programSize] = id;
+            nativeNames[external.getValue() - programSize] = external.getKey();
+        }
+        nativeIds[externals.size()] = MAIN_RETURNED;
+        nativeNames[externals.size()] = "Main.main";
+        addressCycles = new long[programSize + nativeIds.length];
+    }
+
+    public static void main(String[] args) throws Exception {
+        String inLocation = null;
+        long maxCycles = DEFAULT_MAX_CYCLES;
+        boolean optimizeForSize = false;
+        boolean cacheTopOfStack = true;
+        boolean leafCalls = true;
+        for (String arg : args) {
+            if (arg.startsWith("--max-cycles=")) {
+                maxCycles = Long.parseLong(arg.substring("--max-cycles=".length()));
+            }
+            else if (arg.equals("--optimize=size")) {
+                optimizeForSize = true;
+            }
+            else if (arg.equals("--optimize=speed")) {
+                optimizeForSize = false;
+            }
+            else if (arg.equals("--no-tos-cache")) {
+                cacheTopOfStack = false;
+            }
+            else if (arg.equals("--no-leaf-calls")) {
+                leafCalls = false;
+            }
+            else if (!arg.startsWith("-") && inLocation == null) {
+                inLocation = arg;
+            }
+            else {
+                inLocation = null;
+                break;
+            }
+        }
+
+        // check for proper usage
+        if (inLocation == null) {
+            System.out.println("IMPROPER USAGE!");
+            System.out.println("CORRECT USAGE: HackEmulator [--max-cycles=N] [--optimize=size|speed] [--no-tos-cache] [--no-leaf-calls] inLocation");
+            System.out.println("where inLocation is a .asm file of a whole program, or a .vm file or folder of .vm files");
+            System.out.println("  --max-cycles=N   stop after N cycles (default " + DEFAULT_MAX_CYCLES + ")");
+            System.out.println("  --optimize=..., --no-tos-cache, --no-leaf-calls   how to translate .vm files (see VMTranslator)");
+            System.exit(1);
+        }
+
+        HackEmulator emulator = load(new File(inLocation), optimizeForSize, cacheTopOfStack, leafCalls);
+        long start = System.nanoTime();
+        boolean finished = emulator.run(maxCycles);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.print(emulator.getOutput());
+        if (!emulator.getOutput().isEmpty() && !emulator.getOutput().endsWith("\n")) {
+            System.out.println();
+        }
+        System.out.println("cycles: " + emulator.getCycles() + (finished ? "" : " (stopped at the cycle limit)"));
+        if (emulator.getErrorCode() != 0) {
+            System.out.println("Sys.error: " + emulator.getErrorCode());
+        }
+        System.out.println("peak stack: " + emulator.getPeakStack() + " words");
+        System.out.println("peak heap: " + emulator.getPeakHeap() + " words");
+        System.out.println(String.format("speed: %.1f million instructions per second", emulator.getCycles() * 1000.0 / Math.max(elapsed, 1)));
+        System.out.println("cycles by function:");
+        for (Map.Entry<String, Long> function : emulator.getFunctionCycles().entrySet()) {
+            System.out.println(String.format("  %12d  %s", function.getValue(), function.getKey()));
+        }
+        if (emulator.sourceMap != null) {
+            System.out.println("cycles by source line:");
+            int listed = 0;
+            for (Map.Entry<String, Long> line : emulator.getLineCycles().entrySet()) {
+                if (listed++ == LISTED_SOURCE_LINES) break;
+                System.out.println(String.format("  %12d  %s", line.getValue(), line.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Loads a .asm file, or translates a .vm file or a folder of .vm files as a whole program.
+     */
+    public static HackEmulator load(File inFile, boolean optimizeForSize, boolean cacheTopOfStack) throws Exception {
+        return load(inFile, optimizeForSize, cacheTopOfStack, true);
+    }
+
+    /**
+     * @param leafCalls - whether to call leaf functions with the lighter convention (see LeafFunctions)
+     */
+    public static HackEmulator load(File inFile, boolean optimizeForSize, boolean cacheTopOfStack, boolean leafCalls)
+            throws Exception {
+        if (inFile.getName().endsWith(".asm")) {
+            HackEmulator emulator = new HackEmulator(new String(Files.readAllBytes(inFile.toPath())));
+            File mapFile = new File(inFile.getPath() + ".map");
+            if (mapFile.exists()) {
+                emulator.setSourceMap(SourceMap.read(mapFile));
+            }
+            return emulator;
+        }
+
+        CodeWriter codeWriter = new CodeWriter(optimizeForSize, cacheTopOfStack);
+        ArrayList<String> classNames = new ArrayList<String>();
+        ArrayList<VMInstructions> classes = new ArrayList<VMInstructions>();
+        VMTranslator.parse(inFile, classNames, classes);
+        VMTranslator.translateProgram(codeWriter, classNames, classes, leafCalls);
+        codeWriter.close();
+        return new HackEmulator(codeWriter.getAssembly());
+    }
+
+    /**
+     * Runs the program until it halts or maxCycles cycles have run in total.
+     * @return whether the program halted
+     * @throws Exception if the program runs an invalid instruction
+     */
+    public boolean run(long maxCycles) throws Exception {
+        // work on locals, which the JIT can keep in registers
+        int[] rom = this.rom;
+        int[] ram = this.ram;
+        long[] addressCycles = this.addressCycles;
+        int programSize = this.programSize;
+        int pc = this.pc;
+        int a = this.a;
+        int d = this.d;
+        long cycles = this.cycles;
+        int peakStack = this.peakStack;
+
+        while (!halted && cycles < maxCycles) {
+            if (pc >= programSize) {
+                this.pc = pc;
+                this.a = a;
+                this.d = d;
+                this.cycles = cycles;
+                runNative(pc);
+                pc = this.pc;
+                cycles = this.cycles;
+                continue;
+            }
+
+            int instruction = rom[pc];
+            addressCycles[pc]++;
+            cycles++;
+
+            // A-instruction
+            if ((instruction & 0x8000) == 0) {
+                a = instruction;
+                pc++;
+                continue;
+            }
+
+            // C-instruction: 111a cccc ccdd djjj
+            int y = (instruction & 0x1000) != 0 ? ram[a & 0x7FFF] : a;
+            int out;
+            switch ((instruction >> 6) & 0x3F) {
+                case 0b101010: out = 0; break;
+                case 0b111111: out = 1; break;
+                case 0b111010: out = -1; break;
+                case 0b001100: out = d; break;
+                case 0b110000: out = y; break;
+                case 0b001101: out = ~d; break;
+                case 0b110001: out = ~y; break;
+                case 0b001111: out = -d; break;
+                case 0b110011: out = -y; break;
+                case 0b011111: out = d + 1; break;
+                case 0b110111: out = y + 1; break;
+                case 0b001110: out = d - 1; break;
+                case 0b110010: out = y - 1; break;
+                case 0b000010: out = d + y; break;
+                case 0b010011: out = d - y; break;
+                case 0b000111: out = y - d; break;
+                case 0b000000: out = d & y; break;
+                case 0b010101: out = d | y; break;
+                default:
+                    throw new Exception("Invalid instruction at " + pc + ": " + Integer.toBinaryString(instruction));
+            }
+            out = (short) out;
+
+            int target = a & 0x7FFF;
+            if ((instruction & 0x08) != 0) {
+                ram[target] = out;
+                if (target == 0 && out > peakStack) {
+                    peakStack = out;
+                }
+            }
+            if ((instruction & 0x10) != 0) {
+                d = out;
+            }
+            if ((instruction & 0x20) != 0) {
+                a = out;
+            }
+
+            int jump = instruction & 7;
+            if (jump != 0 && ((jump & 4) != 0 && out < 0 || (jump & 2) != 0 && out == 0 || (jump & 1) != 0 && out > 0)) {
+                if (target == pc - 1 && rom[target] == target) {
+                    // an endless loop on itself
+                    halted = true;
+                }
+                pc = target;
+            }
+            else {
+                pc++;
+            }
+        }
+
+        this.pc = pc;
+        this.a = a;
+        this.d = d;
+        this.cycles = cycles;
+        this.peakStack = peakStack;
+        return halted;
+    }
+
+    /**
+     * Runs the function at an address past the end of the program, which was called with the usual
+     * calling convention, and returns from it.
+     */
+    private void runNative(int address) {
+        int id = nativeIds[address - programSize];
+        if (id == MAIN_RETURNED) {
+            halted = true;
+            return;
+        }
+
+        if (id == SYS_INIT) {
+            // call Main.main, returning to MAIN_RETURNED
+            int sp = ram[0];
+            ram[sp] = programSize + nativeIds.length - 1;
+            for (int i = 1; i <= 4; i++) {
+                ram[sp + i] = ram[i];
+            }
+            ram[0] = sp + 5;
+            ram[2] = sp;
+            ram[1] = sp + 5;
+            pc = mainAddress;
+            addressCycles[address] += SYS_INIT_CYCLES;
+            cycles += SYS_INIT_CYCLES;
+            return;
+        }
+
+        int value = os.call(id, ram[2]);
+        addressCycles[address] += StubOS.cycles(id);
+        cycles += StubOS.cycles(id);
+
+        // return: the return address is read first, since with no arguments *ARG is where it was saved
+        int frame = ram[1];
+        int returnAddress = ram[frame - 5];
+        ram[ram[2]] = value;
+        ram[0] = ram[2] + 1;
+        ram[4] = ram[frame - 1];
+        ram[3] = ram[frame - 2];
+        ram[2] = ram[frame - 3];
+        ram[1] = ram[frame - 4];
+        pc = returnAddress;
+
+        if (os.isHalted()) {
+            halted = true;
+        }
+    }
+
+    public long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * Returns the cycles charged for calls to the StubOS, which are estimates, not emulated.
+     */
+    public long getOSCycles() {
+        long osCycles = 0;
+        for (int address = programSize; address < addressCycles.length; address++) {
+            osCycles += addressCycles[address];
+        }
+        return osCycles;
+    }
+
+    /**
+     * Returns the deepest the stack got, in words above its base at 256.
+     */
+    public int getPeakStack() {
+        return Math.max(peakStack - 256, 0);
+    }
+
+    /**
+     * Returns the most heap words the StubOS had allocated at once.
+     */
+    public int getPeakHeap() {
+        return os.getPeakHeap();
+    }
+
+    public String getOutput() {
+        return os.getOutput();
+    }
+
+    public int getErrorCode() {
+        return os.getErrorCode();
+    }
+
+    public int[] getRam() {
+        return ram;
+    }
+
+    /**
+     * Sets the map from ROM addresses to the Jack source they were compiled from.
+     */
+    public void setSourceMap(SourceMap sourceMap) {
+        this.sourceMap = sourceMap;
+    }
+
+    /**
+     * Returns the cycles spent on each source line, as "file:line in subroutine", most first.
+     * The subroutine is the one the instructions ran in, which differs from the line's own when it was inlined.
+     * Instructions with no source (the bootstrap and shared stubs) and the StubOS are left out.
+     */
+    public LinkedHashMap<String, Long> getLineCycles() {
+        LinkedHashMap<String, Long> lineCycles = new LinkedHashMap<String, Long>();
+        for (int address = 0; address < programSize; address++) {
+            String line = sourceMap.lineOf(address);
+            if (line != null && addressCycles[address] > 0) {
+                lineCycles.merge(line + " in " + sourceMap.subroutineOf(address), addressCycles[address], Long::sum);
+            }
+        }
+        return sortedByCycles(lineCycles);
+    }
+
+    /**
+     * Returns the cycles spent in each function, most first.  Functions are found from the labels:
+     * each label with no $ in it, or only a leading $ (the translator's shared stubs), starts one.
+     * Cycles before the first label are the bootstrap's.
+     */
+    public LinkedHashMap<String, Long> getFunctionCycles() {
+        LinkedHashMap<String, Long> functionCycles = new LinkedHashMap<String, Long>();
+        String function = "(bootstrap)";
+        ArrayList<Map.Entry<String, Integer>> starts = new ArrayList<Map.Entry<String, Integer>>();
+        for (Map.Entry<String, Integer> label : labels.entrySet()) {
+            if (label.getKey().indexOf('$', 1) == -1) {
+                starts.add(label);
+            }
+        }
+
+        int next = 0;
+        for (int address = 0; address < programSize; address++) {
+            while (next < starts.size() && starts.get(next).getValue() == address) {
+                function = starts.get(next++).getKey();
+            }
+            functionCycles.merge(function, addressCycles[address], Long::sum);
+        }
+        for (int i = 0; i < nativeIds.length; i++) {
+            if (nativeIds[i] != MAIN_RETURNED) {
+                functionCycles.merge(nativeNames[i] + " (stub OS)", addressCycles[programSize + i], Long::sum);
+            }
+        }
+
+        return sortedByCycles(functionCycles);
+    }
+
+    /**
+     * Returns the nonzero entries of cycles, most first.
+     */
+    private static LinkedHashMap<String, Long> sortedByCycles(LinkedHashMap<String, Long> cycles) {
+        ArrayList<Map.Entry<String, Long>> sorted = new ArrayList<Map.Entry<String, Long>>(cycles.entrySet());
+        sorted.sort((x, y) -> Long.compare(y.getValue(), x.getValue()));
+        LinkedHashMap<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : sorted) {
+            if (entry.getValue() > 0) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+}
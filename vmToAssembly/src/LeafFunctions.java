@@ -0,0 +1,296 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Finds the functions of a whole program which the CodeWriter can call with a lighter convention than
+ * the usual one: leaf functions, which call nothing, so cannot be running twice at once.
+ *
+ * Instead of a frame on the stack, such a function keeps its arguments, its locals, its return address
+ * and, only if it sets them, the caller's THIS and THAT in variables of its own (which the assembler puts
+ * in RAM from 16, after the statics).  A call pops the arguments into their variables and jumps with the
+ * return address in D; the return leaves the value in D (or on the stack, without top-of-stack caching)
+ * and jumps back.  LCL and ARG are never touched.
+ *
+ * A function only qualifies if every call to it passes the same number of arguments, it uses no more
+ * arguments and locals than it has, and its stack provably never drops below where it started and holds
+ * exactly the returned value at each return, since the convention does not restore SP.  Sys.init and
+ * Main.main never qualify: the bootstrap (or the emulator, in place of a missing Sys.init) calls them
+ * the usual way.  If the variables would not all fit below the stack, the functions called from the most
+ * places are chosen first.  When optimizing for size, only functions of at most MAX_ARGS_FOR_SIZE arguments
+ * qualify, since popping more takes more ROM at each call than jumping to the shared call stub.
+ */
+public class LeafFunctions {
+    private final static int FIRST_VARIABLE = 16;
+    private final static int STACK_BASE = 256;
+    private final static int MAX_ARGS_FOR_SIZE = 2;
+
+    private static class Leaf {
+        private int nArgs;
+        private boolean setsThis;
+        private boolean setsThat;
+        // the locals which may be read before they are set, so must start at 0
+        private boolean[] zeroedLocals;
+        private int callSites;
+    }
+
+    private LinkedHashMap<String, Leaf> leaves = new LinkedHashMap<String, Leaf>();
+
+    /**
+     * @param classNames - the name of each class (the file its statics are named after)
+     * @param classes - the commands of each class
+     * @param optimizeForSize - whether the program is translated for size
+     */
+    public LeafFunctions(ArrayList<String> classNames, ArrayList<VMInstructions> classes, boolean optimizeForSize) {
+        // the arguments passed by every call of each function, or -1 if calls disagree
+        HashMap<String, Integer> nArgs = new HashMap<String, Integer>();
+        HashMap<String, Integer> callSites = new HashMap<String, Integer>();
+        HashSet<String> statics = new HashSet<String>();
+        for (int k = 0; k < classes.size(); k++) {
+            VMInstructions instructions = classes.get(k);
+            for (int i = 0; i < instructions.size(); i++) {
+                int opcode = instructions.opcode(i);
+                if (opcode == VMInstructions.CALL) {
+                    nArgs.merge(instructions.symbol(i), instructions.argument(i), (x, y) -> x.equals(y) ? x : -1);
+                    callSites.merge(instructions.symbol(i), 1, Integer::sum);
+                }
+                else if ((opcode == VMInstructions.PUSH || opcode == VMInstructions.POP)
+                        && instructions.argument(i) == VMInstructions.STATIC) {
+                    statics.add(classNames.get(k) + "." + instructions.index(i));
+                }
+            }
+        }
+
+        ArrayList<Map.Entry<String, Leaf>> candidates = new ArrayList<Map.Entry<String, Leaf>>();
+        for (VMInstructions instructions : classes) {
+            for (int start = 0; start < instructions.size(); start++) {
+                if (instructions.opcode(start) != VMInstructions.FUNCTION) {
+                    continue;
+                }
+                String name = instructions.symbol(start);
+                int end = start + 1;
+                while (end < instructions.size() && instructions.opcode(end) != VMInstructions.FUNCTION) {
+                    end++;
+                }
+                int calledWith = nArgs.getOrDefault(name, -1);
+                if (!name.equals("Sys.init") && !name.equals("Main.main") && calledWith >= 0
+                        && (!optimizeForSize || calledWith <= MAX_ARGS_FOR_SIZE)) {
+                    Leaf leaf = analyze(instructions, start, end, calledWith);
+                    if (leaf != null) {
+                        leaf.callSites = callSites.get(name);
+                        candidates.add(Map.entry(name, leaf));
+                    }
+                }
+                start = end - 1;
+            }
+        }
+
+        candidates.sort((x, y) -> Integer.compare(y.getValue().callSites, x.getValue().callSites));
+        int freeVariables = STACK_BASE - FIRST_VARIABLE - statics.size();
+        for (Map.Entry<String, Leaf> candidate : candidates) {
+            int variables = variables(candidate.getValue());
+            if (variables <= freeVariables) {
+                leaves.put(candidate.getKey(), candidate.getValue());
+                freeVariables -= variables;
+            }
+        }
+    }
+
+    /**
+     * Returns how a function can be called with the lighter convention, or null if it cannot.
+     * @param start - the position of its function command
+     * @param end - the position after its last command
+     * @param nArgs - the number of arguments every call passes
+     */
+    private static Leaf analyze(VMInstructions instructions, int start, int end, int nArgs) {
+        if (end - start < 2) {
+            return null;
+        }
+        int nLocals = instructions.argument(start);
+        Leaf leaf = new Leaf();
+        leaf.nArgs = nArgs;
+        leaf.zeroedLocals = new boolean[nLocals];
+
+        HashMap<String, Integer> labels = new HashMap<String, Integer>();
+        for (int i = start + 1; i < end; i++) {
+            int opcode = instructions.opcode(i);
+            int segment = instructions.argument(i);
+            int index = instructions.index(i);
+            if (opcode == VMInstructions.CALL) {
+                return null;
+            }
+            if (opcode == VMInstructions.LABEL) {
+                labels.put(instructions.symbol(i), i);
+            }
+            if (opcode == VMInstructions.PUSH || opcode == VMInstructions.POP) {
+                if (segment == VMInstructions.ARGUMENT && index >= nArgs || segment == VMInstructions.LOCAL && index >= nLocals) {
+                    return null;
+                }
+                if (opcode == VMInstructions.POP && segment == VMInstructions.POINTER) {
+                    leaf.setsThis |= index == 0;
+                    leaf.setsThat |= index == 1;
+                }
+            }
+        }
+
+        // the stack depth before each command, found by following every jump until nothing changes
+        int[] depth = new int[end - start];
+        Arrays.fill(depth, -1);
+        depth[1] = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = start + 1; i < end; i++) {
+                int before = depth[i - start];
+                if (before < 0) {
+                    continue;
+                }
+                int opcode = instructions.opcode(i);
+                if (before < popped(opcode) || opcode == VMInstructions.RETURN && before != 1) {
+                    return null;
+                }
+                int after = before - popped(opcode) + pushed(opcode);
+                ArrayList<Integer> next = new ArrayList<Integer>();
+                if (opcode == VMInstructions.GOTO || opcode == VMInstructions.IF_GOTO) {
+                    Integer target = labels.get(instructions.symbol(i));
+                    if (target == null) {
+                        return null;
+                    }
+                    next.add(target);
+                }
+                if (opcode == VMInstructions.JUMP_TABLE) {
+                    // one of its gotos, or past them
+                    int past = i + instructions.argument(i) + 1;
+                    if (past >= end) {
+                        return null;
+                    }
+                    for (int entry = i + 1; entry <= past; entry++) {
+                        next.add(entry);
+                    }
+                }
+                else if (opcode != VMInstructions.GOTO && opcode != VMInstructions.RETURN) {
+                    if (i + 1 == end) {
+                        // it would run off into the next function
+                        return null;
+                    }
+                    next.add(i + 1);
+                }
+                for (int successor : next) {
+                    if (depth[successor - start] == -1) {
+                        depth[successor - start] = after;
+                        changed = true;
+                    }
+                    else if (depth[successor - start] != after) {
+                        return null;
+                    }
+                }
+            }
+        }
+
+        for (int local = 0; local < nLocals; local++) {
+            leaf.zeroedLocals[local] = !isSetBeforeRead(instructions, start, end, local);
+        }
+        return leaf;
+    }
+
+    /**
+     * Returns how many values a command (other than a call) takes off the stack.
+     */
+    private static int popped(int opcode) {
+        switch (opcode) {
+            case VMInstructions.PUSH:
+            case VMInstructions.LABEL:
+            case VMInstructions.GOTO:
+                return 0;
+            case VMInstructions.POP:
+            case VMInstructions.IF_GOTO:
+            case VMInstructions.JUMP_TABLE:
+            case VMInstructions.NEG:
+            case VMInstructions.NOT:
+            case VMInstructions.RETURN:
+                return 1;
+            default:
+                return 2;
+        }
+    }
+
+    /**
+     * Returns how many values a command (other than a call) puts on the stack.
+     */
+    private static int pushed(int opcode) {
+        switch (opcode) {
+            case VMInstructions.POP:
+            case VMInstructions.IF_GOTO:
+            case VMInstructions.JUMP_TABLE:
+            case VMInstructions.RETURN:
+            case VMInstructions.LABEL:
+            case VMInstructions.GOTO:
+                return 0;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Returns whether a function pops into one of its locals before any label, jump or read of it.
+     */
+    private static boolean isSetBeforeRead(VMInstructions instructions, int start, int end, int local) {
+        for (int i = start + 1; i < end; i++) {
+            int opcode = instructions.opcode(i);
+            if (opcode == VMInstructions.LABEL || opcode == VMInstructions.GOTO || opcode == VMInstructions.IF_GOTO
+                    || opcode == VMInstructions.JUMP_TABLE || opcode == VMInstructions.RETURN) {
+                return false;
+            }
+            if ((opcode == VMInstructions.PUSH || opcode == VMInstructions.POP)
+                    && instructions.argument(i) == VMInstructions.LOCAL && instructions.index(i) == local) {
+                return opcode == VMInstructions.POP;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of variables a leaf function uses: its arguments, locals, return address and saved pointers.
+     */
+    private static int variables(Leaf leaf) {
+        return leaf.nArgs + leaf.zeroedLocals.length + 1 + (leaf.setsThis ? 1 : 0) + (leaf.setsThat ? 1 : 0);
+    }
+
+    /**
+     * Returns whether a function is called with the lighter convention.
+     */
+    public boolean contains(String function) {
+        return leaves.containsKey(function);
+    }
+
+    /**
+     * Returns the number of arguments every call of a leaf function passes.
+     */
+    public int arguments(String function) {
+        return leaves.get(function).nArgs;
+    }
+
+    /**
+     * Returns whether a leaf function sets pointer 0 (if index is 0) or pointer 1, and so saves and restores it.
+     */
+    public boolean setsPointer(String function, int index) {
+        return index == 0 ? leaves.get(function).setsThis : leaves.get(function).setsThat;
+    }
+
+    /**
+     * Returns whether a local of a leaf function may be read before it is set, so must be zeroed on entry.
+     */
+    public boolean zeroesLocal(String function, int local) {
+        return leaves.get(function).zeroedLocals[local];
+    }
+
+    /**
+     * Returns the number of leaf functions.
+     */
+    public int size() {
+        return leaves.size();
+    }
+}
@@ -0,0 +1,243 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Links the classes of a whole program into one image of functions, before it is translated to assembly.
+ *
+ * Functions with identical bodies are folded: one copy is kept, and the others become aliases of it, every
+ * call to them calling the copy instead.  Bodies are compared with their labels numbered in the order they
+ * appear (labels only mean something within their function), their statics named after their class (so
+ * functions of different classes using statics never match), calls to themselves standing for the function
+ * itself, and calls to aliases calling the functions they alias.  Folding can make the callers of the folded
+ * functions identical too, so it is done until nothing changes.  Sys.init and Main.main, which the bootstrap
+ * (or the emulator, in place of a missing Sys.init) calls by name, are never made aliases.
+ *
+ * The functions are then laid out from Sys.init and Main.main, each after the first function that calls it,
+ * in the order of the calls, so callers and callees sit together; functions nothing can call from there are
+ * left out.  A jump on the Hack machine costs the same however far it goes, so the order itself saves no
+ * cycles, and how often each call runs is not needed.  A program defining neither function keeps every one
+ * that is not an alias, in the order of its classes.  If a class has commands outside any function, or two
+ * classes define the same function, the program is left as it is.
+ *
+ * The image is one list of functions with the class each belongs to (which its statics are named after), so
+ * it is translated like a program whose classes are single functions.
+ */
+public class Linker {
+    private final static String[] ENTRY_POINTS = { "Sys.init", "Main.main" };
+
+    // each function of the program, in the order of its classes
+    private ArrayList<String> names = new ArrayList<String>();
+    private ArrayList<String> classOf = new ArrayList<String>();
+    private ArrayList<VMInstructions> instructionsOf = new ArrayList<VMInstructions>();
+    private ArrayList<Integer> startOf = new ArrayList<Integer>();
+    private ArrayList<Integer> endOf = new ArrayList<Integer>();
+    private HashMap<String, Integer> functionNamed = new HashMap<String, Integer>();
+
+    // the function each folded function was made an alias of
+    private HashMap<String, String> aliases = new HashMap<String, String>();
+    private int unreachableFunctions = 0;
+
+    private ArrayList<String> linkedClassNames = new ArrayList<String>();
+    private ArrayList<VMInstructions> linkedFunctions = new ArrayList<VMInstructions>();
+
+    /**
+     * @param classNames - the name of each class (the file its statics are named after)
+     * @param classes - the commands of each class
+     */
+    public Linker(ArrayList<String> classNames, ArrayList<VMInstructions> classes) {
+        if (!split(classNames, classes)) {
+            linkedClassNames.addAll(classNames);
+            linkedFunctions.addAll(classes);
+            return;
+        }
+        fold();
+        for (int function : layout()) {
+            VMInstructions linked = new VMInstructions();
+            VMInstructions instructions = instructionsOf.get(function);
+            for (int i = startOf.get(function); i < endOf.get(function); i++) {
+                linked.setSource(instructions, i);
+                String symbol = instructions.symbol(i);
+                linked.add(instructions.opcode(i), instructions.argument(i), instructions.index(i),
+                        instructions.opcode(i) == VMInstructions.CALL ? resolve(symbol) : symbol);
+            }
+            linkedClassNames.add(classOf.get(function));
+            linkedFunctions.add(linked);
+        }
+        unreachableFunctions = names.size() - aliases.size() - linkedFunctions.size();
+    }
+
+    /**
+     * Returns the class of each function of the image.
+     */
+    public ArrayList<String> getClassNames() {
+        return linkedClassNames;
+    }
+
+    /**
+     * Returns the commands of each function of the image, in the order they are laid out.
+     */
+    public ArrayList<VMInstructions> getFunctions() {
+        return linkedFunctions;
+    }
+
+    /**
+     * Returns the number of functions folded into identical ones.
+     */
+    public int getFoldedFunctions() {
+        return aliases.size();
+    }
+
+    /**
+     * Returns the number of functions left out because nothing can call them.
+     */
+    public int getUnreachableFunctions() {
+        return unreachableFunctions;
+    }
+
+    /**
+     * Finds where each function starts and ends.
+     * @return whether every command is in a function, and no function is defined twice
+     */
+    private boolean split(ArrayList<String> classNames, ArrayList<VMInstructions> classes) {
+        for (int k = 0; k < classes.size(); k++) {
+            VMInstructions instructions = classes.get(k);
+            if (instructions.size() > 0 && instructions.opcode(0) != VMInstructions.FUNCTION) {
+                return false;
+            }
+            for (int start = 0; start < instructions.size(); ) {
+                int end = start + 1;
+                while (end < instructions.size() && instructions.opcode(end) != VMInstructions.FUNCTION) {
+                    end++;
+                }
+                if (functionNamed.put(instructions.symbol(start), names.size()) != null) {
+                    return false;
+                }
+                names.add(instructions.symbol(start));
+                classOf.add(classNames.get(k));
+                instructionsOf.add(instructions);
+                startOf.add(start);
+                endOf.add(end);
+                start = end;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes each function with the same body as one before it an alias of that one, until nothing changes.
+     * The entry points come first, so they are the copies kept.
+     */
+    private void fold() {
+        ArrayList<Integer> order = new ArrayList<Integer>();
+        for (String entryPoint : ENTRY_POINTS) {
+            if (functionNamed.containsKey(entryPoint)) {
+                order.add(functionNamed.get(entryPoint));
+            }
+        }
+        for (int function = 0; function < names.size(); function++) {
+            if (!order.contains(function)) {
+                order.add(function);
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            HashMap<String, Integer> kept = new HashMap<String, Integer>();
+            for (int function : order) {
+                if (aliases.containsKey(names.get(function))) continue;
+                Integer copy = kept.putIfAbsent(body(function), function);
+                if (copy != null && !isEntryPoint(names.get(function))) {
+                    aliases.put(names.get(function), names.get(copy));
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the body of a function as text which is the same for functions that do the same.
+     */
+    private String body(int function) {
+        VMInstructions instructions = instructionsOf.get(function);
+        String name = names.get(function);
+        HashMap<String, Integer> labelNumbers = new HashMap<String, Integer>();
+        StringBuilder body = new StringBuilder();
+        for (int i = startOf.get(function); i < endOf.get(function); i++) {
+            int opcode = instructions.opcode(i);
+            body.append(opcode).append(' ').append(instructions.argument(i)).append(' ').append(instructions.index(i));
+            if (opcode == VMInstructions.LABEL || opcode == VMInstructions.GOTO || opcode == VMInstructions.IF_GOTO) {
+                labelNumbers.putIfAbsent(instructions.symbol(i), labelNumbers.size());
+                body.append(' ').append(labelNumbers.get(instructions.symbol(i)));
+            }
+            else if (opcode == VMInstructions.CALL) {
+                String callee = resolve(instructions.symbol(i));
+                body.append(' ').append(callee.equals(name) ? "" : callee);
+            }
+            else if ((opcode == VMInstructions.PUSH || opcode == VMInstructions.POP)
+                    && instructions.argument(i) == VMInstructions.STATIC) {
+                body.append(' ').append(classOf.get(function));
+            }
+            body.append('\n');
+        }
+        return body.toString();
+    }
+
+    /**
+     * Returns the positions of the functions of the image, in the order they are laid out.
+     */
+    private ArrayList<Integer> layout() {
+        ArrayList<Integer> layout = new ArrayList<Integer>();
+        ArrayDeque<Integer> toVisit = new ArrayDeque<Integer>();
+        for (String entryPoint : ENTRY_POINTS) {
+            if (functionNamed.containsKey(entryPoint)) {
+                toVisit.addLast(functionNamed.get(entryPoint));
+            }
+        }
+        if (toVisit.isEmpty()) {
+            for (int function = 0; function < names.size(); function++) {
+                if (!aliases.containsKey(names.get(function))) {
+                    layout.add(function);
+                }
+            }
+            return layout;
+        }
+
+        HashSet<Integer> visited = new HashSet<Integer>();
+        while (!toVisit.isEmpty()) {
+            int function = toVisit.removeFirst();
+            if (!visited.add(function)) continue;
+            layout.add(function);
+            // its callees next, the first called first
+            VMInstructions instructions = instructionsOf.get(function);
+            for (int i = endOf.get(function) - 1; i >= startOf.get(function); i--) {
+                if (instructions.opcode(i) == VMInstructions.CALL) {
+                    Integer callee = functionNamed.get(resolve(instructions.symbol(i)));
+                    if (callee != null && !visited.contains(callee)) {
+                        toVisit.addFirst(callee);
+                    }
+                }
+            }
+        }
+        return layout;
+    }
+
+    /**
+     * Returns the function a call to name calls: name, or the function it is an alias of.
+     */
+    private String resolve(String name) {
+        while (aliases.containsKey(name)) {
+            name = aliases.get(name);
+        }
+        return name;
+    }
+
+    private static boolean isEntryPoint(String name) {
+        for (String entryPoint : ENTRY_POINTS) {
+            if (entryPoint.equals(name)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Parses the text of a .vm file into VMInstructions.
+ */
+public class Parser {
+    private String text;
+
+    public Parser(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @return the commands of the text, in order
+     * @throws Exception if a line is not a valid VM command
+     */
+    public VMInstructions parse() throws Exception {
+        VMInstructions instructions = new VMInstructions();
+        int lineNumber = 0;
+
+        for (String line : text.split("\n")) {
+            lineNumber++;
+
+            // remove comments and surrounding whitespace
+            int commentStart = line.indexOf("//");
+            if (commentStart != -1) {
+                line = line.substring(0, commentStart);
+            }
+            line = line.trim();
+            if (line.isEmpty()) continue;
+
+            String[] parts = line.split("\\s+");
+            try {
+                switch (parts[0]) {
+                    case "push":
+                        instructions.add(VMInstructions.PUSH, VMInstructions.segmentNumber(parts[1]), Integer.parseInt(parts[2]), null);
+                        break;
+                    case "pop":
+                        instructions.add(VMInstructions.POP, VMInstructions.segmentNumber(parts[1]), Integer.parseInt(parts[2]), null);
+                        break;
+                    case "label":
+                        instructions.add(VMInstructions.LABEL, 0, 0, parts[1]);
+                        break;
+                    case "goto":
+                        instructions.add(VMInstructions.GOTO, 0, 0, parts[1]);
+                        break;
+                    case "if-goto":
+                        instructions.add(VMInstructions.IF_GOTO, 0, 0, parts[1]);
+                        break;
+                    case "function":
+                        instructions.add(VMInstructions.FUNCTION, Integer.parseInt(parts[2]), 0, parts[1]);
+                        break;
+                    case "call":
+                        instructions.add(VMInstructions.CALL, Integer.parseInt(parts[2]), 0, parts[1]);
+                        break;
+                    case "return":
+                        instructions.add(VMInstructions.RETURN, 0, 0, null);
+                        break;
+                    case "jump-table":
+                        instructions.add(VMInstructions.JUMP_TABLE, Integer.parseInt(parts[2]), Integer.parseInt(parts[1]), null);
+                        break;
+                    default:
+                        instructions.add(VMInstructions.arithmeticOpcode(parts[0]), 0, 0, null);
+                        break;
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                throw new Exception("Invalid VM command on line " + lineNumber + ": " + line);
+            } catch (Exception e) {
+                throw new Exception(e.getMessage() + " on line " + lineNumber);
+            }
+        }
+
+        return instructions;
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps the instructions of a compiled program (the commands of a .vm file, or the ROM addresses of a .asm file)
+ * back to the Jack source they were compiled from: for each range of consecutive instructions with the same
+ * source, its file, line and column, and the subroutine the instructions belong to.
+ *
+ * It is written next to the .vm or .asm file, with ".map" appended to the name, as text:
+ *   sourcemap 1
+ *   files <file>...
+ *   subroutines <subroutine>...
+ *   <range>...
+ * where each range is a line of up to five numbers, each the difference from the previous range's:
+ * start instruction, file, line, column and subroutine (an index into the lists above, or -1 for none).
+ * Trailing zeros are left out.
+ */
+public class SourceMap {
+    private final static String HEADER = "sourcemap 1";
+    private final static int INITIAL_CAPACITY = 64;
+
+    private ArrayList<String> files = new ArrayList<String>();
+    private ArrayList<String> subroutines = new ArrayList<String>();
+
+    private int[] start = new int[INITIAL_CAPACITY];
+    private int[] file = new int[INITIAL_CAPACITY];
+    private int[] line = new int[INITIAL_CAPACITY];
+    private int[] column = new int[INITIAL_CAPACITY];
+    private int[] subroutine = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Returns the map of the commands of a .vm file, numbered from 0 in the order they are written.
+     */
+    public static SourceMap of(VMInstructions instructions) {
+        SourceMap map = new SourceMap();
+        String function = null;
+        for (int i = 0; i < instructions.size(); i++) {
+            if (instructions.opcode(i) == VMInstructions.FUNCTION) {
+                function = instructions.symbol(i);
+            }
+            map.add(i, instructions.sourceFile(i), instructions.sourceLine(i), instructions.sourceColumn(i), function);
+        }
+        return map;
+    }
+
+    /**
+     * Maps the instructions from instruction onwards (until the next range) to a source position.
+     * Ranges must be added in order; a range with the same source as the previous one extends it.
+     * @param sourceFile - the source file, or null if the instructions have no source
+     * @param functionName - the subroutine, or null if they are in none
+     */
+    public void add(int instruction, String sourceFile, int sourceLine, int sourceColumn, String functionName) {
+        int fileIndex = indexOf(files, sourceFile);
+        int subroutineIndex = indexOf(subroutines, functionName);
+        if (size > 0 && start[size - 1] == instruction) {
+            // the previous range turned out to be empty
+            size--;
+        }
+        if (size > 0 && file[size - 1] == fileIndex && line[size - 1] == sourceLine && column[size - 1] == sourceColumn
+                && subroutine[size - 1] == subroutineIndex) {
+            return;
+        }
+
+        if (size == start.length) {
+            int capacity = size * 2;
+            start = Arrays.copyOf(start, capacity);
+            file = Arrays.copyOf(file, capacity);
+            line = Arrays.copyOf(line, capacity);
+            column = Arrays.copyOf(column, capacity);
+            subroutine = Arrays.copyOf(subroutine, capacity);
+        }
+        start[size] = instruction;
+        file[size] = fileIndex;
+        line[size] = sourceLine;
+        column[size] = sourceColumn;
+        subroutine[size] = subroutineIndex;
+        size++;
+    }
+
+    private static int indexOf(ArrayList<String> names, String name) {
+        if (name == null) {
+            return -1;
+        }
+        int index = names.indexOf(name);
+        if (index == -1) {
+            names.add(name);
+            index = names.size() - 1;
+        }
+        return index;
+    }
+
+    /**
+     * Returns "file:line:column" for an instruction, or null if it has no source.
+     */
+    public String positionOf(int instruction) {
+        int range = find(instruction);
+        return range == -1 || file[range] == -1 ? null : files.get(file[range]) + ":" + line[range] + ":" + column[range];
+    }
+
+    /**
+     * Returns "file:line" for an instruction, or null if it has no source.
+     */
+    public String lineOf(int instruction) {
+        int range = find(instruction);
+        return range == -1 || file[range] == -1 ? null : files.get(file[range]) + ":" + line[range];
+    }
+
+    /**
+     * Returns the subroutine an instruction belongs to, or null if it is in none.
+     */
+    public String subroutineOf(int instruction) {
+        int range = find(instruction);
+        return range == -1 || subroutine[range] == -1 ? null : subroutines.get(subroutine[range]);
+    }
+
+    /**
+     * Returns the range an instruction is in, or -1 if it is before the first one.
+     */
+    private int find(int instruction) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (start[middle] <= instruction) {
+                low = middle + 1;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    public void write(File mapFile) throws Exception {
+        StringBuilder text = new StringBuilder(HEADER).append('\n');
+        text.append("files");
+        for (String name : files) {
+            text.append(' ').append(name);
+        }
+        text.append("\nsubroutines");
+        for (String name : subroutines) {
+            text.append(' ').append(name);
+        }
+        text.append('\n');
+
+        int[] previous = new int[5];
+        for (int i = 0; i < size; i++) {
+            int[] current = { start[i], file[i], line[i], column[i], subroutine[i] };
+            int fields = current.length;
+            while (fields > 1 && current[fields - 1] == previous[fields - 1]) {
+                fields--;
+            }
+            for (int field = 0; field < fields; field++) {
+                if (field > 0) text.append(' ');
+                text.append(current[field] - previous[field]);
+            }
+            text.append('\n');
+            previous = current;
+        }
+
+        FileWriter writer = new FileWriter(mapFile);
+        writer.write(text.toString());
+        writer.close();
+    }
+
+    /**
+     * Reads a map written by write.
+     * @throws Exception if the file is not a source map
+     */
+    public static SourceMap read(File mapFile) throws Exception {
+        List<String> lines = Files.readAllLines(mapFile.toPath());
+        if (lines.size() < 3 || !lines.get(0).equals(HEADER) || !lines.get(1).startsWith("files")
+                || !lines.get(2).startsWith("subroutines")) {
+            throw new Exception("Not a source map: " + mapFile.getPath());
+        }
+
+        SourceMap map = new SourceMap();
+        map.files.addAll(names(lines.get(1)));
+        map.subroutines.addAll(names(lines.get(2)));
+        int[] current = new int[5];
+        for (int i = 3; i < lines.size(); i++) {
+            String[] deltas = lines.get(i).trim().split(" ");
+            for (int field = 0; field < deltas.length; field++) {
+                current[field] += Integer.parseInt(deltas[field]);
+            }
+            map.add(current[0], current[1] == -1 ? null : map.files.get(current[1]), current[2], current[3],
+                    current[4] == -1 ? null : map.subroutines.get(current[4]));
+        }
+        return map;
+    }
+
+    private static List<String> names(String line) {
+        String[] words = line.trim().split(" ");
+        return Arrays.asList(words).subList(1, words.length);
+    }
+}
@@ -0,0 +1,322 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A stand-in for the Jack OS, written in Java, so that programs can be run without the OS's .vm files.
+ * It works directly on the program's RAM: arguments are read from RAM, and objects it creates
+ * (arrays, strings) live on the program's heap, so the program can use them as usual.
+ *
+ * The screen and keyboard are not emulated: drawing does nothing and reading returns nothing.
+ * Text printed through Output is collected, and can be read back with getOutput.
+ *
+ * The real OS functions take many cycles, which a native call does not; each is charged a rough
+ * estimate of what the real one costs (see cycles), so that cycle counts stay comparable.
+ */
+public class StubOS {
+    private final static int HEAP_BASE = 2048;
+    private final static int HEAP_END = 16384;
+
+    // every function, its number of arguments and its estimated cost in cycles, including the return
+    private final static String[] NAMES = {
+            "Math.init", "Math.abs", "Math.multiply", "Math.divide", "Math.min", "Math.max", "Math.sqrt",
+            "Memory.init", "Memory.peek", "Memory.poke", "Memory.alloc", "Memory.deAlloc",
+            "Array.new", "Array.dispose",
+            "String.new", "String.dispose", "String.length", "String.charAt", "String.setCharAt",
+            "String.appendChar", "String.eraseLastChar", "String.intValue", "String.setInt",
+            "String.backSpace", "String.doubleQuote", "String.newLine",
+            "Output.init", "Output.moveCursor", "Output.printChar", "Output.printString", "Output.printInt",
+            "Output.println", "Output.backSpace",
+            "Screen.init", "Screen.clearScreen", "Screen.setColor", "Screen.drawPixel", "Screen.drawLine",
+            "Screen.drawRectangle", "Screen.drawCircle",
+            "Keyboard.init", "Keyboard.keyPressed", "Keyboard.readChar", "Keyboard.readLine", "Keyboard.readInt",
+            "Sys.halt", "Sys.error", "Sys.wait"
+    };
+    private final static int[] ARITY = {
+            0, 1, 2, 2, 2, 2, 1,
+            0, 1, 2, 1, 1,
+            1, 1,
+            1, 1, 1, 2, 3,
+            2, 1, 1, 2,
+            0, 0, 0,
+            0, 2, 1, 1, 1,
+            0, 0,
+            0, 0, 1, 2, 4,
+            4, 3,
+            0, 0, 0, 1, 1,
+            0, 1, 1
+    };
+    private final static int[] CYCLES = {
+            50, 60, 400, 700, 60, 60, 900,
+            50, 50, 50, 150, 100,
+            200, 150,
+            250, 150, 50, 60, 60,
+            80, 60, 300, 400,
+            50, 50, 50,
+            50, 100, 900, 1000, 1200,
+            200, 300,
+            50, 50000, 50, 300, 3000,
+            20000, 20000,
+            50, 60, 1000, 1000, 1000,
+            50, 50, 50
+    };
+
+    private int[] ram;
+    private StringBuilder output = new StringBuilder();
+    private boolean halted = false;
+    private int errorCode = 0;
+
+    // the heap: blocks are preceded by their size, and freed blocks are kept first-fit in freeBlocks
+    private int heapTop = HEAP_BASE;
+    private ArrayList<Integer> freeBlocks = new ArrayList<Integer>();
+    private int heapUsed = 0;
+    private int peakHeap = 0;
+
+    /**
+     * @param ram - the program's RAM, where values are 16-bit, sign-extended
+     */
+    public StubOS(int[] ram) {
+        this.ram = ram;
+    }
+
+    /**
+     * Returns the id of an OS function, or -1 if it is not one.
+     */
+    public static int lookup(String name) {
+        return Arrays.asList(NAMES).indexOf(name);
+    }
+
+    public static String name(int id) {
+        return NAMES[id];
+    }
+
+    public static int arity(int id) {
+        return ARITY[id];
+    }
+
+    /**
+     * Returns the estimated number of cycles the real OS function takes, including its call and return.
+     */
+    public static int cycles(int id) {
+        return CYCLES[id];
+    }
+
+    /**
+     * Runs an OS function.
+     * @param id - the function, as returned by lookup
+     * @param args - the RAM address of its first argument
+     * @return the value it returns (0 for void functions)
+     */
+    public int call(int id, int args) {
+        int arg0 = arity(id) > 0 ? ram[args] : 0;
+        int arg1 = arity(id) > 1 ? ram[args + 1] : 0;
+
+        switch (NAMES[id]) {
+            case "Math.abs":
+                return (short) Math.abs(arg0);
+            case "Math.multiply":
+                return (short) (arg0 * arg1);
+            case "Math.divide":
+                if (arg1 == 0) return error(3);
+                return (short) (arg0 / arg1);
+            case "Math.min":
+                return Math.min(arg0, arg1);
+            case "Math.max":
+                return Math.max(arg0, arg1);
+            case "Math.sqrt":
+                if (arg0 < 0) return error(4);
+                return (int) Math.sqrt(arg0);
+
+            case "Memory.peek":
+                return ram[arg0 & 0x7FFF];
+            case "Memory.poke":
+                ram[arg0 & 0x7FFF] = arg1;
+                return 0;
+            case "Memory.alloc":
+            case "Array.new":
+                if (arg0 <= 0) return error(NAMES[id].equals("Array.new") ? 2 : 5);
+                return alloc(arg0);
+            case "Memory.deAlloc":
+            case "Array.dispose":
+            case "String.dispose":
+                deAlloc(arg0);
+                return 0;
+
+            // a string is [maximum length, length, characters...]
+            case "String.new":
+                if (arg0 < 0) return error(14);
+                return newString(arg0);
+            case "String.length":
+                return ram[arg0 + 1];
+            case "String.charAt":
+                if (arg1 < 0 || arg1 >= ram[arg0 + 1]) return error(15);
+                return ram[arg0 + 2 + arg1];
+            case "String.setCharAt":
+                if (arg1 < 0 || arg1 >= ram[arg0 + 1]) return error(16);
+                ram[arg0 + 2 + arg1] = ram[args + 2];
+                return 0;
+            case "String.appendChar":
+                if (ram[arg0 + 1] >= ram[arg0]) return error(17);
+                ram[arg0 + 2 + ram[arg0 + 1]] = arg1;
+                ram[arg0 + 1]++;
+                return arg0;
+            case "String.eraseLastChar":
+                if (ram[arg0 + 1] == 0) return error(18);
+                ram[arg0 + 1]--;
+                return 0;
+            case "String.intValue":
+                return (short) parseInt(stringValue(arg0));
+            case "String.setInt":
+                String digits = Integer.toString(arg1);
+                if (digits.length() > ram[arg0]) return error(19);
+                for (int i = 0; i < digits.length(); i++) {
+                    ram[arg0 + 2 + i] = digits.charAt(i);
+                }
+                ram[arg0 + 1] = digits.length();
+                return 0;
+            case "String.backSpace":
+                return 129;
+            case "String.doubleQuote":
+                return 34;
+            case "String.newLine":
+                return 128;
+
+            case "Output.printChar":
+                print(arg0);
+                return 0;
+            case "Output.printString":
+                for (int i = 0; i < ram[arg0 + 1]; i++) {
+                    print(ram[arg0 + 2 + i]);
+                }
+                return 0;
+            case "Output.printInt":
+                output.append(arg0);
+                return 0;
+            case "Output.println":
+                output.append('\n');
+                return 0;
+            case "Output.backSpace":
+                if (output.length() > 0) output.setLength(output.length() - 1);
+                return 0;
+
+            case "Keyboard.readLine":
+                return newString(0);
+
+            case "Sys.halt":
+                halted = true;
+                return 0;
+            case "Sys.error":
+                return error(arg0);
+
+            default:
+                // the init functions, the screen, and reading the keyboard: nothing to do
+                return 0;
+        }
+    }
+
+    /**
+     * Returns whether Sys.halt or Sys.error has been called.
+     */
+    public boolean isHalted() {
+        return halted;
+    }
+
+    /**
+     * Returns the code Sys.error was called with (or an OS function failed with), or 0.
+     */
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * Returns the text printed so far.
+     */
+    public String getOutput() {
+        return output.toString();
+    }
+
+    /**
+     * Returns the largest number of heap words that were allocated at once, including block headers.
+     */
+    public int getPeakHeap() {
+        return peakHeap;
+    }
+
+    private int error(int code) {
+        errorCode = code;
+        halted = true;
+        return 0;
+    }
+
+    /**
+     * Allocates a block of size words, first-fit from the freed blocks, or else from the top of the heap.
+     * @return the address of the block, or 0 if the heap is full
+     */
+    private int alloc(int size) {
+        int block = -1;
+        for (int i = 0; i < freeBlocks.size(); i++) {
+            if (ram[freeBlocks.get(i) - 1] >= size) {
+                block = freeBlocks.remove(i);
+                break;
+            }
+        }
+        if (block == -1) {
+            if (heapTop + size + 1 > HEAP_END) return error(6);
+            block = heapTop + 1;
+            ram[heapTop] = size;
+            heapTop += size + 1;
+        }
+
+        heapUsed += ram[block - 1] + 1;
+        peakHeap = Math.max(peakHeap, heapUsed);
+        return block;
+    }
+
+    private void deAlloc(int block) {
+        if (block > HEAP_BASE && block < heapTop && !freeBlocks.contains(block)) {
+            heapUsed -= ram[block - 1] + 1;
+            freeBlocks.add(block);
+        }
+    }
+
+    private int newString(int maxLength) {
+        int string = alloc(maxLength + 2);
+        if (string != 0) {
+            ram[string] = maxLength;
+            ram[string + 1] = 0;
+        }
+        return string;
+    }
+
+    private void print(int c) {
+        if (c == 128) {
+            output.append('\n');
+        }
+        else if (c == 129) {
+            if (output.length() > 0) output.setLength(output.length() - 1);
+        }
+        else {
+            output.append((char) c);
+        }
+    }
+
+    private String stringValue(int string) {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < ram[string + 1]; i++) {
+            value.append((char) ram[string + 2 + i]);
+        }
+        return value.toString();
+    }
+
+    /**
+     * Parses the leading integer of value (with an optional minus sign), as the Jack OS does.
+     */
+    private static int parseInt(String value) {
+        int result = 0;
+        int i = value.startsWith("-") ? 1 : 0;
+        while (i < value.length() && Character.isDigit(value.charAt(i))) {
+            result = result * 10 + value.charAt(i) - '0';
+            i++;
+        }
+        return value.startsWith("-") ? -result : result;
+    }
+}
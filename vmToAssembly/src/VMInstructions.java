@@ -0,0 +1,224 @@
+import java.util.Arrays;
+
+/**
+ * A sequence of VM commands, stored as parallel arrays instead of text, so the compiler can hand
+ * its output straight to the CodeWriter and passes can rewrite it without parsing.
+ * Each command has an opcode, an int argument (the segment of a push or pop, or the number of
+ * arguments or locals of a call or function), an int index, and a symbol (a label or function name).
+ * Commands compiled from Jack also record the source file, line and column they came from (see setSource).
+ */
+public class VMInstructions {
+    public final static int PUSH = 0;
+    public final static int POP = 1;
+    public final static int ADD = 2;
+    public final static int SUB = 3;
+    public final static int NEG = 4;
+    public final static int EQ = 5;
+    public final static int GT = 6;
+    public final static int LT = 7;
+    public final static int AND = 8;
+    public final static int OR = 9;
+    public final static int NOT = 10;
+    public final static int LABEL = 11;
+    public final static int GOTO = 12;
+    public final static int IF_GOTO = 13;
+    public final static int FUNCTION = 14;
+    public final static int CALL = 15;
+    public final static int RETURN = 16;
+    // pops a value and jumps to the (value - index)th of the argument gotos right after it,
+    // or past them all if there is no such goto; the compiler only writes it for translation to assembly
+    public final static int JUMP_TABLE = 17;
+
+    public final static String[] COMMAND_NAMES = {
+            "push", "pop", "add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not",
+            "label", "goto", "if-goto", "function", "call", "return", "jump-table"
+    };
+
+    public final static int ARGUMENT = 0;
+    public final static int LOCAL = 1;
+    public final static int STATIC = 2;
+    public final static int CONSTANT = 3;
+    public final static int THIS = 4;
+    public final static int THAT = 5;
+    public final static int POINTER = 6;
+    public final static int TEMP = 7;
+
+    public final static String[] SEGMENT_NAMES = {
+            "argument", "local", "static", "constant", "this", "that", "pointer", "temp"
+    };
+
+    private final static int INITIAL_CAPACITY = 64;
+
+    private int[] opcode = new int[INITIAL_CAPACITY];
+    private int[] argument = new int[INITIAL_CAPACITY];
+    private int[] index = new int[INITIAL_CAPACITY];
+    private String[] symbol = new String[INITIAL_CAPACITY];
+    private String[] sourceFile = new String[INITIAL_CAPACITY];
+    private int[] sourceLine = new int[INITIAL_CAPACITY];
+    private int[] sourceColumn = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // the source position given to the commands added from now on
+    private String currentFile = null;
+    private int currentLine = 0;
+    private int currentColumn = 0;
+
+    /**
+     * Appends a command.
+     * @return the position of the new command
+     */
+    public int add(int commandOpcode, int commandArgument, int commandIndex, String commandSymbol) {
+        if (size == opcode.length) {
+            int capacity = size * 2;
+            opcode = Arrays.copyOf(opcode, capacity);
+            argument = Arrays.copyOf(argument, capacity);
+            index = Arrays.copyOf(index, capacity);
+            symbol = Arrays.copyOf(symbol, capacity);
+            sourceFile = Arrays.copyOf(sourceFile, capacity);
+            sourceLine = Arrays.copyOf(sourceLine, capacity);
+            sourceColumn = Arrays.copyOf(sourceColumn, capacity);
+        }
+
+        opcode[size] = commandOpcode;
+        argument[size] = commandArgument;
+        index[size] = commandIndex;
+        symbol[size] = commandSymbol;
+        sourceFile[size] = currentFile;
+        sourceLine[size] = currentLine;
+        sourceColumn[size] = currentColumn;
+        return size++;
+    }
+
+    /**
+     * Appends every command of other, with its source position.
+     */
+    public void addAll(VMInstructions other) {
+        for (int i = 0; i < other.size; i++) {
+            setSource(other, i);
+            add(other.opcode[i], other.argument[i], other.index[i], other.symbol[i]);
+        }
+    }
+
+    /**
+     * Sets the source position of the commands added from now on.
+     * @param file - the name of the source file, or null if they have no source
+     * @param line - the line, from 1
+     * @param column - the column, from 1
+     */
+    public void setSource(String file, int line, int column) {
+        currentFile = file;
+        currentLine = line;
+        currentColumn = column;
+    }
+
+    /**
+     * Gives the commands added from now on the source position of the command of other at position.
+     */
+    public void setSource(VMInstructions other, int position) {
+        setSource(other.sourceFile[position], other.sourceLine[position], other.sourceColumn[position]);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int opcode(int position) {
+        return opcode[position];
+    }
+
+    /**
+     * Returns the segment of a push or pop, the number of arguments or locals of a call or function,
+     * or the number of gotos of a jump-table.
+     */
+    public int argument(int position) {
+        return argument[position];
+    }
+
+    /**
+     * Returns the index of a push or pop, or the value the first goto of a jump-table is taken for.
+     */
+    public int index(int position) {
+        return index[position];
+    }
+
+    /**
+     * Returns the label of a label, goto or if-goto, or the function name of a function or call.
+     */
+    public String symbol(int position) {
+        return symbol[position];
+    }
+
+    /**
+     * Returns the name of the source file a command was compiled from, or null if it has none.
+     */
+    public String sourceFile(int position) {
+        return sourceFile[position];
+    }
+
+    public int sourceLine(int position) {
+        return sourceLine[position];
+    }
+
+    public int sourceColumn(int position) {
+        return sourceColumn[position];
+    }
+
+    /**
+     * Returns the opcode of an arithmetic or logical command, like "add".
+     * @throws IllegalArgumentException if command is not one
+     */
+    public static int arithmeticOpcode(String command) {
+        for (int i = ADD; i <= NOT; i++) {
+            if (COMMAND_NAMES[i].equals(command)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unrecognized arithmetic command: " + command);
+    }
+
+    /**
+     * Returns the segment number of a segment name, like "local".
+     * @throws IllegalArgumentException if segment is not a segment name
+     */
+    public static int segmentNumber(String segment) {
+        for (int i = 0; i < SEGMENT_NAMES.length; i++) {
+            if (SEGMENT_NAMES[i].equals(segment)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unrecognized segment: " + segment);
+    }
+
+    /**
+     * Returns the VM text of one command, without a line break.
+     */
+    public String toString(int position) {
+        switch (opcode[position]) {
+            case PUSH:
+            case POP:
+                return COMMAND_NAMES[opcode[position]] + " " + SEGMENT_NAMES[argument[position]] + " " + index[position];
+            case LABEL:
+            case GOTO:
+            case IF_GOTO:
+                return COMMAND_NAMES[opcode[position]] + " " + symbol[position];
+            case FUNCTION:
+            case CALL:
+                return COMMAND_NAMES[opcode[position]] + " " + symbol[position] + " " + argument[position];
+            case JUMP_TABLE:
+                return COMMAND_NAMES[JUMP_TABLE] + " " + index[position] + " " + argument[position];
+            default:
+                return COMMAND_NAMES[opcode[position]];
+        }
+    }
+
+    /**
+     * Returns the VM text of every command, one per line.
+     */
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            text.append(toString(i)).append('\n');
+        }
+        return text.toString();
+    }
+}
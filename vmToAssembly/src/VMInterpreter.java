@@ -0,0 +1,675 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Runs VMInstructions directly, without translating them to assembly, as a fast reference for
+ * checking that the compiler's optimizations do not change what a program does.
+ *
+ * Memory is laid out as on the Hack machine (SP, LCL, ARG, THIS and THAT in RAM[0..4], statics from 16,
+ * the stack from 256, the heap from 2048) and calls build the same frames, so a program behaves the same
+ * way here as in the HackEmulator.  Functions the program does not define run in the StubOS; if the
+ * program does not define Sys.init, it starts at Main.main and halts when Main.main returns.
+ *
+ * Before running, the commands are decoded into int arrays with their labels, calls and statics resolved,
+ * and common sequences are fused into superinstructions, each dispatched once:
+ * push x, push y, (binary op); push x, (binary op); push x, pop y; push x, if-goto; not, if-goto.
+ *
+ * It also counts how often each function is entered, each call is made and each if-goto jumps or falls
+ * through, which JackAnalyzer --profile-generate saves as a Profile.
+ */
+public class VMInterpreter {
+    public final static long DEFAULT_MAX_STEPS = 100000000L;
+
+    // decoded opcodes; a push or pop operand is a (kind, x, y) triple, see load
+    private final static int PUSH = 0;             // operand a, b, c
+    private final static int POP = 1;              // operand a, b, c
+    private final static int BINARY = 2;           // a: VMInstructions opcode
+    private final static int UNARY = 3;            // a: VMInstructions opcode
+    private final static int GOTO = 4;             // a: target
+    private final static int IF_GOTO = 5;          // a: target
+    private final static int FUNCTION = 6;         // a: number of locals
+    private final static int CALL = 7;             // a: target, b: number of arguments
+    private final static int CALL_NATIVE = 8;      // a: StubOS id, b: number of arguments
+    private final static int RETURN = 9;
+    private final static int HALT = 10;
+    // superinstructions
+    private final static int PUSH_PUSH_BINARY = 11; // operands a, b, c and d, e, f; g: VMInstructions opcode
+    private final static int PUSH_BINARY = 12;      // operand a, b, c; g: VMInstructions opcode
+    private final static int PUSH_POP = 13;         // operands a, b, c and d, e, f
+    private final static int PUSH_IF_GOTO = 14;     // operand a, b, c; g: target
+    private final static int NOT_IF_GOTO = 15;      // a: target
+    // the gotos of a jump-table are decoded right after it
+    private final static int JUMP_TABLE = 16;       // a: the value of the first goto after it, b: the number of gotos
+
+    // operand kinds
+    private final static int CONSTANT = 0;         // x: the value
+    private final static int FIXED = 1;            // x: the address (static, temp or pointer)
+    private final static int INDIRECT = 2;         // x: the address of the base register, y: the index
+
+    private boolean superinstructions;
+    private ArrayList<String> classNames = new ArrayList<String>();
+    private ArrayList<VMInstructions> classInstructions = new ArrayList<VMInstructions>();
+
+    // the decoded program
+    private int size = 0;
+    private int[] op, a, b, c, d, e, f, g;
+    // the number of VM commands each decoded instruction stands for
+    private int[] length;
+    private String[] functionOf;
+    // the label of each if-goto and the function of each call
+    private String[] symbolOf;
+    // how often each function was entered, each call made and each if-goto jumped; and each if-goto fell through
+    private long[] executions;
+    private long[] fallThroughs;
+
+    private int[] ram = new int[HackEmulator.RAM_SIZE];
+    private StubOS os = new StubOS(ram);
+    private int pc = -1;
+    private int sp;
+    private long steps = 0;
+    private boolean halted = false;
+
+    /**
+     * @param superinstructions - whether to fuse common sequences of commands
+     */
+    public VMInterpreter(boolean superinstructions) {
+        this.superinstructions = superinstructions;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String inLocation = null;
+        long maxSteps = DEFAULT_MAX_STEPS;
+        boolean superinstructions = true;
+        for (String arg : args) {
+            if (arg.startsWith("--max-steps=")) {
+                maxSteps = Long.parseLong(arg.substring("--max-steps=".length()));
+            }
+            else if (arg.equals("--no-superinstructions")) {
+                superinstructions = false;
+            }
+            else if (!arg.startsWith("-") && inLocation == null) {
+                inLocation = arg;
+            }
+            else {
+                inLocation = null;
+                break;
+            }
+        }
+
+        // check for proper usage
+        if (inLocation == null) {
+            System.out.println("IMPROPER USAGE!");
+            System.out.println("CORRECT USAGE: VMInterpreter [--max-steps=N] [--no-superinstructions] inLocation");
+            System.out.println("where inLocation is a folder of .vm files or an individual .vm file");
+            System.exit(1);
+        }
+
+        VMInterpreter interpreter = new VMInterpreter(superinstructions);
+        File inFile = new File(inLocation);
+        File[] inFiles = inFile.isDirectory() ? inFile.listFiles() : new File[] { inFile };
+        Arrays.sort(inFiles);
+        for (File thisInFile : inFiles) {
+            String inFileName = thisInFile.getName();
+            if (inFileName.endsWith(".vm")) {
+                VMInstructions instructions = new Parser(new String(Files.readAllBytes(thisInFile.toPath()))).parse();
+                interpreter.addClass(inFileName.substring(0, inFileName.lastIndexOf(".vm")), instructions);
+            }
+        }
+
+        long start = System.nanoTime();
+        boolean finished = interpreter.run(maxSteps);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.print(interpreter.getOutput());
+        if (!interpreter.getOutput().isEmpty() && !interpreter.getOutput().endsWith("\n")) {
+            System.out.println();
+        }
+        System.out.println("VM commands run: " + interpreter.getSteps() + (finished ? "" : " (stopped at the limit)"));
+        if (interpreter.getErrorCode() != 0) {
+            System.out.println("Sys.error: " + interpreter.getErrorCode());
+        }
+        System.out.println(String.format("speed: %.1f million VM commands per second", interpreter.getSteps() * 1000.0 / Math.max(elapsed, 1)));
+    }
+
+    /**
+     * Adds the commands of a class (a .vm file) to the program.  Call before run.
+     */
+    public void addClass(String className, VMInstructions instructions) {
+        classNames.add(className);
+        classInstructions.add(instructions);
+    }
+
+    /**
+     * Runs the program until it halts or maxSteps VM commands have run in total.
+     * @return whether the program halted
+     * @throws Exception if the program cannot be linked, or fails in a way the Hack machine would not survive
+     */
+    public boolean run(long maxSteps) throws Exception {
+        if (pc == -1) {
+            decode();
+        }
+
+        // work on locals, which the JIT can keep in registers
+        int[] op = this.op, a = this.a, b = this.b, c = this.c, d = this.d, e = this.e, f = this.f, g = this.g;
+        int[] length = this.length;
+        long[] executions = this.executions, fallThroughs = this.fallThroughs;
+        int[] ram = this.ram;
+        int pc = this.pc;
+        int sp = this.sp;
+        long steps = this.steps;
+
+        try {
+            while (!halted && steps < maxSteps) {
+                steps += length[pc];
+                switch (op[pc]) {
+                    case PUSH:
+                        ram[sp++] = load(a[pc], b[pc], c[pc]);
+                        pc++;
+                        break;
+                    case POP:
+                        store(a[pc], b[pc], c[pc], ram[--sp]);
+                        pc++;
+                        break;
+                    case BINARY:
+                        sp--;
+                        ram[sp - 1] = binary(a[pc], ram[sp - 1], ram[sp]);
+                        pc++;
+                        break;
+                    case UNARY:
+                        ram[sp - 1] = (short) (a[pc] == VMInstructions.NEG ? -ram[sp - 1] : ~ram[sp - 1]);
+                        pc++;
+                        break;
+                    case GOTO:
+                        if (a[pc] == pc) {
+                            // an endless loop on itself
+                            halted = true;
+                        }
+                        pc = a[pc];
+                        break;
+                    case IF_GOTO:
+                        if (ram[--sp] != 0) {
+                            executions[pc]++;
+                            pc = a[pc];
+                        }
+                        else {
+                            fallThroughs[pc]++;
+                            pc++;
+                        }
+                        break;
+                    case FUNCTION:
+                        executions[pc]++;
+                        for (int i = 0; i < a[pc]; i++) {
+                            ram[sp++] = 0;
+                        }
+                        pc++;
+                        break;
+                    case CALL:
+                        executions[pc]++;
+                        ram[sp] = pc + 1;
+                        ram[sp + 1] = ram[1];
+                        ram[sp + 2] = ram[2];
+                        ram[sp + 3] = ram[3];
+                        ram[sp + 4] = ram[4];
+                        sp += 5;
+                        ram[2] = sp - 5 - b[pc];
+                        ram[1] = sp;
+                        pc = a[pc];
+                        break;
+                    case CALL_NATIVE:
+                        sp -= b[pc];
+                        ram[sp] = os.call(a[pc], sp);
+                        sp++;
+                        halted = os.isHalted();
+                        pc++;
+                        break;
+                    case RETURN:
+                        int frame = ram[1];
+                        int returnAddress = ram[frame - 5];
+                        ram[ram[2]] = ram[sp - 1];
+                        sp = ram[2] + 1;
+                        ram[4] = ram[frame - 1];
+                        ram[3] = ram[frame - 2];
+                        ram[2] = ram[frame - 3];
+                        ram[1] = ram[frame - 4];
+                        pc = returnAddress;
+                        break;
+                    case HALT:
+                        halted = true;
+                        break;
+                    case JUMP_TABLE:
+                        int entry = ram[--sp] - a[pc];
+                        pc += entry >= 0 && entry < b[pc] ? entry + 1 : b[pc] + 1;
+                        break;
+                    case PUSH_PUSH_BINARY:
+                        ram[sp++] = binary(g[pc], load(a[pc], b[pc], c[pc]), load(d[pc], e[pc], f[pc]));
+                        pc++;
+                        break;
+                    case PUSH_BINARY:
+                        ram[sp - 1] = binary(g[pc], ram[sp - 1], load(a[pc], b[pc], c[pc]));
+                        pc++;
+                        break;
+                    case PUSH_POP:
+                        store(d[pc], e[pc], f[pc], load(a[pc], b[pc], c[pc]));
+                        pc++;
+                        break;
+                    case PUSH_IF_GOTO:
+                        if (load(a[pc], b[pc], c[pc]) != 0) {
+                            executions[pc]++;
+                            pc = g[pc];
+                        }
+                        else {
+                            fallThroughs[pc]++;
+                            pc++;
+                        }
+                        break;
+                    case NOT_IF_GOTO:
+                        if (ram[--sp] == 0) {
+                            executions[pc]++;
+                            pc = a[pc];
+                        }
+                        else {
+                            fallThroughs[pc]++;
+                            pc++;
+                        }
+                        break;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException exception) {
+            throw new Exception("Invalid memory access in " + functionOf[pc] + ": " + exception.getMessage());
+        } finally {
+            this.pc = pc;
+            this.sp = sp;
+            this.steps = steps;
+            ram[0] = sp;
+        }
+        return halted;
+    }
+
+    /**
+     * Returns the value of a push operand.
+     */
+    private int load(int kind, int x, int y) {
+        switch (kind) {
+            case CONSTANT:
+                return x;
+            case FIXED:
+                return ram[x];
+            default:
+                return ram[(ram[x] + y) & 0x7FFF];
+        }
+    }
+
+    /**
+     * Stores a value into a pop operand.
+     */
+    private void store(int kind, int x, int y, int value) {
+        if (kind == FIXED) {
+            ram[x] = value;
+        }
+        else {
+            ram[(ram[x] + y) & 0x7FFF] = value;
+        }
+    }
+
+    /**
+     * Comparisons test the sign of the 16-bit x - y, as the translated code does, so they overflow the same way.
+     */
+    private static int binary(int opcode, int x, int y) {
+        switch (opcode) {
+            case VMInstructions.ADD:
+                return (short) (x + y);
+            case VMInstructions.SUB:
+                return (short) (x - y);
+            case VMInstructions.AND:
+                return x & y;
+            case VMInstructions.OR:
+                return x | y;
+            case VMInstructions.EQ:
+                return x == y ? -1 : 0;
+            case VMInstructions.GT:
+                return (short) (x - y) > 0 ? -1 : 0;
+            default:
+                return (short) (x - y) < 0 ? -1 : 0;
+        }
+    }
+
+    /**
+     * Returns the number of VM commands run so far (a superinstruction counts as the commands it replaced).
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    public String getOutput() {
+        return os.getOutput();
+    }
+
+    public int getErrorCode() {
+        return os.getErrorCode();
+    }
+
+    public int getPeakHeap() {
+        return os.getPeakHeap();
+    }
+
+    public int[] getRam() {
+        return ram;
+    }
+
+    /**
+     * Returns how often each function was entered, by name, in the order the functions were added.
+     */
+    public LinkedHashMap<String, Long> getFunctionCounts() {
+        LinkedHashMap<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < size; i++) {
+            if (op[i] == FUNCTION) {
+                counts.put(functionOf[i], executions[i]);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Returns how often each function called each other function (not counting calls to the StubOS),
+     * keyed by "caller callee".
+     */
+    public LinkedHashMap<String, Long> getCallCounts() {
+        LinkedHashMap<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < size; i++) {
+            if (op[i] == CALL) {
+                String key = functionOf[i] + " " + symbolOf[i];
+                counts.put(key, counts.getOrDefault(key, 0L) + executions[i]);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Returns how often each if-goto jumped and fell through, as {jumped, fell through}, keyed by
+     * "function label".  If a function has several if-gotos to a label, their counts are added.
+     */
+    public LinkedHashMap<String, long[]> getBranchCounts() {
+        LinkedHashMap<String, long[]> counts = new LinkedHashMap<String, long[]>();
+        for (int i = 0; i < size; i++) {
+            if (op[i] == IF_GOTO || op[i] == PUSH_IF_GOTO || op[i] == NOT_IF_GOTO) {
+                String key = functionOf[i] + " " + symbolOf[i];
+                long[] count = counts.computeIfAbsent(key, k -> new long[2]);
+                count[0] += executions[i];
+                count[1] += fallThroughs[i];
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Links the classes into one program of int arrays, and sets up the stack to call the entry point.
+     */
+    private void decode() throws Exception {
+        int capacity = 1;
+        for (VMInstructions instructions : classInstructions) {
+            capacity += instructions.size();
+        }
+        op = new int[capacity];
+        a = new int[capacity];
+        b = new int[capacity];
+        c = new int[capacity];
+        d = new int[capacity];
+        e = new int[capacity];
+        f = new int[capacity];
+        g = new int[capacity];
+        length = new int[capacity];
+        functionOf = new String[capacity];
+        symbolOf = new String[capacity];
+        executions = new long[capacity];
+        fallThroughs = new long[capacity];
+
+        // first pass: where every function and label starts, and the address of every static, as the assembler allocates them
+        HashMap<String, Integer> targets = new HashMap<String, Integer>();
+        HashMap<String, Integer> statics = new HashMap<String, Integer>();
+        int position = 0;
+        for (int k = 0; k < classInstructions.size(); k++) {
+            VMInstructions instructions = classInstructions.get(k);
+            String function = "";
+            for (int i = 0; i < instructions.size(); i++) {
+                switch (instructions.opcode(i)) {
+                    case VMInstructions.FUNCTION:
+                        function = instructions.symbol(i);
+                        targets.put(function, position);
+                        break;
+                    case VMInstructions.LABEL:
+                        targets.put(function + "$" + instructions.symbol(i), position);
+                        break;
+                    case VMInstructions.PUSH:
+                    case VMInstructions.POP:
+                        if (instructions.argument(i) == VMInstructions.STATIC) {
+                            String name = classNames.get(k) + "." + instructions.index(i);
+                            if (!statics.containsKey(name)) {
+                                statics.put(name, 16 + statics.size());
+                            }
+                        }
+                        break;
+                }
+                if (instructions.opcode(i) != VMInstructions.LABEL) {
+                    int fused = superinstructions ? fusedLength(instructions, i) : 1;
+                    i += fused - 1;
+                    position++;
+                }
+            }
+        }
+
+        // second pass: decode
+        for (int k = 0; k < classInstructions.size(); k++) {
+            VMInstructions instructions = classInstructions.get(k);
+            String className = classNames.get(k);
+            String function = "";
+            for (int i = 0; i < instructions.size(); i++) {
+                int opcode = instructions.opcode(i);
+                if (opcode == VMInstructions.LABEL) continue;
+                if (opcode == VMInstructions.FUNCTION) {
+                    function = instructions.symbol(i);
+                }
+
+                int fused = superinstructions ? fusedLength(instructions, i) : 1;
+                functionOf[size] = function;
+                length[size] = fused;
+                if (fused == 1) {
+                    decodeCommand(instructions, i, className, function, targets, statics);
+                }
+                else {
+                    decodeSuperinstruction(instructions, i, fused, className, function, targets, statics);
+                }
+                size++;
+                i += fused - 1;
+            }
+        }
+
+        op[size] = HALT;
+        functionOf[size] = "";
+
+        // call the entry point with the return address at HALT, as the bootstrap would
+        String entry = targets.containsKey("Sys.init") ? "Sys.init" : "Main.main";
+        if (!targets.containsKey(entry)) throw new Exception("Undefined function: Main.main");
+        sp = 256;
+        ram[sp] = size;
+        sp += 5;
+        ram[2] = sp - 5;
+        ram[1] = sp;
+        pc = targets.get(entry);
+    }
+
+    /**
+     * Returns how many commands starting at i make up a superinstruction, or 1 if none does.
+     * Labels are commands too, so a superinstruction never spans one.
+     */
+    private static int fusedLength(VMInstructions instructions, int i) {
+        int next = i + 1 < instructions.size() ? instructions.opcode(i + 1) : -1;
+        if (instructions.opcode(i) == VMInstructions.NOT) {
+            return next == VMInstructions.IF_GOTO ? 2 : 1;
+        }
+        if (instructions.opcode(i) != VMInstructions.PUSH) {
+            return 1;
+        }
+        if (next == VMInstructions.PUSH && i + 2 < instructions.size() && isBinary(instructions.opcode(i + 2))) {
+            return 3;
+        }
+        if (isBinary(next) || next == VMInstructions.IF_GOTO
+                || next == VMInstructions.POP && instructions.argument(i + 1) != VMInstructions.CONSTANT) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static boolean isBinary(int opcode) {
+        return opcode >= VMInstructions.ADD && opcode <= VMInstructions.OR && opcode != VMInstructions.NEG;
+    }
+
+    private void decodeCommand(VMInstructions instructions, int i, String className, String function,
+                               HashMap<String, Integer> targets, HashMap<String, Integer> statics) throws Exception {
+        int opcode = instructions.opcode(i);
+        switch (opcode) {
+            case VMInstructions.PUSH:
+                op[size] = PUSH;
+                decodeOperand(instructions, i, className, statics, a, b, c);
+                break;
+            case VMInstructions.POP:
+                if (instructions.argument(i) == VMInstructions.CONSTANT) {
+                    throw new Exception("Cannot pop to the constant segment in " + function);
+                }
+                op[size] = POP;
+                decodeOperand(instructions, i, className, statics, a, b, c);
+                break;
+            case VMInstructions.NEG:
+            case VMInstructions.NOT:
+                op[size] = UNARY;
+                a[size] = opcode;
+                break;
+            case VMInstructions.GOTO:
+                op[size] = GOTO;
+                a[size] = target(targets, function + "$" + instructions.symbol(i));
+                break;
+            case VMInstructions.IF_GOTO:
+                op[size] = IF_GOTO;
+                a[size] = target(targets, function + "$" + instructions.symbol(i));
+                symbolOf[size] = instructions.symbol(i);
+                break;
+            case VMInstructions.FUNCTION:
+                op[size] = FUNCTION;
+                a[size] = instructions.argument(i);
+                break;
+            case VMInstructions.CALL:
+                String name = instructions.symbol(i);
+                b[size] = instructions.argument(i);
+                symbolOf[size] = name;
+                if (targets.containsKey(name)) {
+                    op[size] = CALL;
+                    a[size] = targets.get(name);
+                }
+                else if (StubOS.lookup(name) != -1) {
+                    op[size] = CALL_NATIVE;
+                    a[size] = StubOS.lookup(name);
+                }
+                else {
+                    throw new Exception("Undefined function: " + name);
+                }
+                break;
+            case VMInstructions.RETURN:
+                op[size] = RETURN;
+                break;
+            case VMInstructions.JUMP_TABLE:
+                op[size] = JUMP_TABLE;
+                a[size] = instructions.index(i);
+                b[size] = instructions.argument(i);
+                break;
+            default:
+                op[size] = BINARY;
+                a[size] = opcode;
+                break;
+        }
+    }
+
+    private void decodeSuperinstruction(VMInstructions instructions, int i, int fused, String className, String function,
+                                        HashMap<String, Integer> targets, HashMap<String, Integer> statics) throws Exception {
+        if (instructions.opcode(i) == VMInstructions.NOT) {
+            op[size] = NOT_IF_GOTO;
+            a[size] = target(targets, function + "$" + instructions.symbol(i + 1));
+            symbolOf[size] = instructions.symbol(i + 1);
+            return;
+        }
+
+        decodeOperand(instructions, i, className, statics, a, b, c);
+        int second = instructions.opcode(i + 1);
+        if (fused == 3) {
+            op[size] = PUSH_PUSH_BINARY;
+            decodeOperand(instructions, i + 1, className, statics, d, e, f);
+            g[size] = instructions.opcode(i + 2);
+        }
+        else if (second == VMInstructions.POP) {
+            op[size] = PUSH_POP;
+            decodeOperand(instructions, i + 1, className, statics, d, e, f);
+        }
+        else if (second == VMInstructions.IF_GOTO) {
+            op[size] = PUSH_IF_GOTO;
+            g[size] = target(targets, function + "$" + instructions.symbol(i + 1));
+            symbolOf[size] = instructions.symbol(i + 1);
+        }
+        else {
+            op[size] = PUSH_BINARY;
+            g[size] = second;
+        }
+    }
+
+    /**
+     * Decodes the segment and index of the push or pop at i into an operand (kind, x, y).
+     */
+    private void decodeOperand(VMInstructions instructions, int i, String className, HashMap<String, Integer> statics,
+                               int[] kind, int[] x, int[] y) throws Exception {
+        int index = instructions.index(i);
+        switch (instructions.argument(i)) {
+            case VMInstructions.CONSTANT:
+                kind[size] = CONSTANT;
+                x[size] = index;
+                break;
+            case VMInstructions.STATIC:
+                kind[size] = FIXED;
+                x[size] = statics.get(className + "." + index);
+                break;
+            case VMInstructions.POINTER:
+                if (index > 1) throw new Exception("Invalid pointer index: " + index);
+                kind[size] = FIXED;
+                x[size] = 3 + index;
+                break;
+            case VMInstructions.TEMP:
+                if (index > 7) throw new Exception("Invalid temp index: " + index);
+                kind[size] = FIXED;
+                x[size] = 5 + index;
+                break;
+            default:
+                kind[size] = INDIRECT;
+                x[size] = baseRegister(instructions.argument(i));
+                y[size] = index;
+                break;
+        }
+    }
+
+    private static int baseRegister(int segment) {
+        switch (segment) {
+            case VMInstructions.LOCAL:
+                return 1;
+            case VMInstructions.ARGUMENT:
+                return 2;
+            case VMInstructions.THIS:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+
+    private static int target(HashMap<String, Integer> targets, String label) throws Exception {
+        if (!targets.containsKey(label)) throw new Exception("Undefined label: " + label);
+        return targets.get(label);
+    }
+}
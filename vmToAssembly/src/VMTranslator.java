@@ -0,0 +1,174 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class VMTranslator {
+    public static void main(String[] args) throws Exception {
+        String inLocation = null;
+        boolean optimizeForSize = false;
+        boolean benchmark = false;
+        boolean cacheTopOfStack = true;
+        boolean leafCalls = true;
+        for (String arg : args) {
+            if (arg.equals("--optimize=size")) {
+                optimizeForSize = true;
+            }
+            else if (arg.equals("--optimize=speed")) {
+                optimizeForSize = false;
+            }
+            else if (arg.equals("--no-tos-cache")) {
+                cacheTopOfStack = false;
+            }
+            else if (arg.equals("--no-leaf-calls")) {
+                leafCalls = false;
+            }
+            else if (arg.equals("--benchmark")) {
+                benchmark = true;
+            }
+            else if (!arg.startsWith("-") && inLocation == null) {
+                inLocation = arg;
+            }
+            else {
+                inLocation = null;
+                break;
+            }
+        }
+
+        // check for proper usage
+        if (inLocation == null) {
+            System.out.println("IMPROPER USAGE!");
+            System.out.println("CORRECT USAGE: VMTranslator [--optimize=size|speed] [--no-tos-cache] [--no-leaf-calls] [--benchmark] inLocation");
+            System.out.println("where inLocation is the name of a folder of .vm files or an individual .vm file");
+            System.out.println("  --optimize=size  share one copy of the code for comparisons, calls and returns");
+            System.out.println("  --optimize=speed write that code out at every use (the default)");
+            System.out.println("  --no-tos-cache   keep the whole stack in RAM instead of the top of it in D");
+            System.out.println("  --no-leaf-calls  call every function of a folder with the usual frame, not leaf functions without one");
+            System.out.println("  --benchmark      report the ROM words (and, for a folder, the cycles) with each setting");
+            System.exit(1);
+        }
+
+        final File inFile = new File(inLocation);
+
+        if (benchmark) {
+            int speedWords = translate(inFile, false, cacheTopOfStack, leafCalls).getRomWords();
+            CodeWriter size = translate(inFile, true, cacheTopOfStack, leafCalls);
+            int[] sites = size.getStubSites();
+            System.out.println("ROM words, --optimize=speed: " + speedWords);
+            System.out.println("ROM words, --optimize=size:  " + size.getRomWords() + " (" + (size.getRomWords() - speedWords) + ")");
+            System.out.println("extra cycles with --optimize=size, each time one runs:");
+            System.out.println("  " + sites[0] + " comparisons: +" + CodeWriter.COMPARISON_STUB_CYCLES);
+            System.out.println("  " + sites[1] + " calls: +" + CodeWriter.CALL_STUB_CYCLES);
+            System.out.println("  " + sites[2] + " returns: +" + CodeWriter.RETURN_STUB_CYCLES);
+            if (cacheTopOfStack) {
+                int uncachedWords = translate(inFile, false, false, leafCalls).getRomWords();
+                System.out.println("ROM words, --optimize=speed --no-tos-cache: " + uncachedWords);
+            }
+
+            if (inFile.isDirectory()) {
+                // a whole program: run it each way
+                System.out.println("cycles on the HackEmulator (up to " + HackEmulator.DEFAULT_MAX_CYCLES + "):");
+                for (boolean forSize : new boolean[] { false, true }) {
+                    for (boolean cache : new boolean[] { true, false }) {
+                        HackEmulator emulator = HackEmulator.load(inFile, forSize, cache, leafCalls);
+                        emulator.run(HackEmulator.DEFAULT_MAX_CYCLES);
+                        String setting = "--optimize=" + (forSize ? "size" : "speed") + (cache ? "" : " --no-tos-cache");
+                        System.out.println(String.format("  %-32s %d", setting, emulator.getCycles()));
+                    }
+                }
+            }
+            return;
+        }
+
+        File outFile;
+        if (inFile.isDirectory()) {
+            outFile = new File(inFile, inFile.getName() + ".asm");
+        }
+        else {
+            outFile = new File(inFile.getPath().substring(0, inFile.getPath().lastIndexOf(".vm")) + ".asm");
+        }
+
+        FileWriter writer = new FileWriter(outFile);
+        writer.write(translate(inFile, optimizeForSize, cacheTopOfStack, leafCalls).getAssembly());
+        writer.close();
+    }
+
+    /**
+     * Translates a .vm file, or a folder of .vm files as a whole program.
+     * @return the CodeWriter holding the translation
+     */
+    public static CodeWriter translate(File inFile, boolean optimizeForSize) throws Exception {
+        return translate(inFile, optimizeForSize, true);
+    }
+
+    /**
+     * @param cacheTopOfStack - whether to keep the top of the stack in D within basic blocks
+     */
+    public static CodeWriter translate(File inFile, boolean optimizeForSize, boolean cacheTopOfStack) throws Exception {
+        return translate(inFile, optimizeForSize, cacheTopOfStack, true);
+    }
+
+    /**
+     * @param leafCalls - whether a whole program calls its leaf functions with the lighter convention (see LeafFunctions)
+     */
+    public static CodeWriter translate(File inFile, boolean optimizeForSize, boolean cacheTopOfStack, boolean leafCalls)
+            throws Exception {
+        CodeWriter codeWriter = new CodeWriter(optimizeForSize, cacheTopOfStack);
+
+        if (inFile.isDirectory()) {
+            ArrayList<String> classNames = new ArrayList<String>();
+            ArrayList<VMInstructions> classes = new ArrayList<VMInstructions>();
+            parse(inFile, classNames, classes);
+            translateProgram(codeWriter, classNames, classes, leafCalls);
+        }
+        else {
+            translateFile(inFile, codeWriter);
+        }
+
+        codeWriter.close();
+        return codeWriter;
+    }
+
+    /**
+     * Translates a whole program: the bootstrap code, which sets up the stack and calls Sys.init, then every class.
+     * @param leafCalls - whether to call leaf functions with the lighter convention (see LeafFunctions)
+     */
+    public static void translateProgram(CodeWriter codeWriter, ArrayList<String> classNames, ArrayList<VMInstructions> classes,
+                                        boolean leafCalls) throws Exception {
+        if (leafCalls) {
+            // which functions those are depends on every call in the program
+            codeWriter.setLeafFunctions(new LeafFunctions(classNames, classes, codeWriter.isOptimizingForSize()));
+        }
+        codeWriter.writeInit();
+        for (int k = 0; k < classes.size(); k++) {
+            codeWriter.setFileName(classNames.get(k));
+            codeWriter.write(classes.get(k));
+        }
+    }
+
+    /**
+     * Parses a .vm file, or every .vm file in a folder in name order, adding the name and commands of each class.
+     */
+    static void parse(File inFile, ArrayList<String> classNames, ArrayList<VMInstructions> classes) throws Exception {
+        File[] inFiles = inFile.isDirectory() ? inFile.listFiles() : new File[] { inFile };
+        Arrays.sort(inFiles);
+        for (File thisInFile : inFiles) {
+            String inFileName = thisInFile.getName();
+            if (inFileName.endsWith(".vm")) {
+                classNames.add(inFileName.substring(0, inFileName.lastIndexOf(".vm")));
+                classes.add(new Parser(new String(Files.readAllBytes(thisInFile.toPath()))).parse());
+            }
+        }
+    }
+
+    /**
+     * Parses a .vm file and translates it with codeWriter.
+     */
+    static void translateFile(File inFile, CodeWriter codeWriter) throws Exception {
+        String inFileName = inFile.getName();
+        VMInstructions instructions = new Parser(new String(Files.readAllBytes(inFile.toPath()))).parse();
+        codeWriter.setFileName(inFileName.substring(0, inFileName.lastIndexOf(".vm")));
+        codeWriter.write(instructions);
+    }
+}